@@ -53,6 +53,9 @@ public class ConsolePanel extends JPanel {
     /* Button to stop the current knock if run periodically  */
     public JButton btnStop;
 
+    /* Button to knock several configurations at once */
+    public JButton btnMultiKnock;
+
     /* Combo box used to select the configuration to apply to knock */
     public JFwknopComboBox cbConfigList;
 
@@ -62,6 +65,9 @@ public class ConsolePanel extends JPanel {
     /* Period between two fwknop execution */
     public JFwknopTextField varPeriod;
 
+    /* Check box used to compute the period from the access timeout of the stanza */
+    public JFwknopCheckBox adaptivePeriod;
+
     public ConsolePanel(Map<EnumFwknopRcKey, IFwknopVariable> varMap) {
         super(new MigLayout("insets 0 10 10 10, aligny top, flowy, gap 0, fill", "", ""));
         initialize(varMap);
@@ -111,16 +117,24 @@ public class ConsolePanel extends JPanel {
         this.btnStop.setToolTipText(InternationalizationHelper.getMessage("i18n.btn.stop"));
         this.btnStop.setEnabled(false);
         btnPanel.add(btnStop);
+        ImageIcon multiKnockImg = new ImageIcon(this.getClass().getResource("/plus16.png"));
+        this.btnMultiKnock = new JButton(multiKnockImg);
+        this.btnMultiKnock.setToolTipText(InternationalizationHelper.getMessage("i18n.btn.multi.knock"));
+        btnPanel.add(btnMultiKnock);
 
         topPanel.add(btnPanel);
 
-        JPanel settingsPanel = new JPanel(new MigLayout("insets 0, gap 5, flowx", "[70]0![][][]", ""));
+        JPanel settingsPanel = new JPanel(new MigLayout("insets 0, gap 5, flowx", "[70]0![][][][][]", ""));
         settingsPanel.add(new JFwknopLabel(InternationalizationHelper.getMessage("i18n.period")), "growx");
         this.varPeriod = new JFwknopTextField("30");
         settingsPanel.add(this.varPeriod);
         this.periodicExecution = new JFwknopCheckBox(false);
         this.periodicExecution.setToolTipText(InternationalizationHelper.getMessage("i18n.enable.periodic.knock"));
         settingsPanel.add(periodicExecution);
+        settingsPanel.add(new JFwknopLabel(InternationalizationHelper.getMessage("i18n.adaptive.period")));
+        this.adaptivePeriod = new JFwknopCheckBox(false);
+        this.adaptivePeriod.setToolTipText(InternationalizationHelper.getMessage("i18n.enable.adaptive.period"));
+        settingsPanel.add(this.adaptivePeriod);
         this.cbConfigList = new JFwknopComboBox(new String[]{"Default"});
         settingsPanel.add(this.cbConfigList);
 
@@ -25,6 +25,7 @@ import com.cipherdyne.gui.components.JFwknopComboBox;
 import com.cipherdyne.gui.components.JFwknopTextField;
 import com.cipherdyne.jfwknop.EnumFwknopConfigKey;
 import com.cipherdyne.jfwknop.EnumFwknopRcKey;
+import com.cipherdyne.jfwknop.EnumKnockEngine;
 import com.cipherdyne.utils.InternationalizationHelper;
 import java.awt.Toolkit;
 import java.awt.event.KeyEvent;
@@ -271,6 +272,9 @@ public class MainWindowView extends DefaultFrame implements IConsole {
             this.settingsTab.varFwknopArgs.setVerbose(true);
         }
 
+        this.settingsTab.btnFwknopBinary.setSelected(
+            EnumKnockEngine.FWKNOP == EnumKnockEngine.fromValue(fwknopContext.get(EnumFwknopConfigKey.KNOCK_ENGINE)));
+
         repaint();
     }
 
@@ -369,6 +373,13 @@ public class MainWindowView extends DefaultFrame implements IConsole {
         return this.settingsTab.btnFwknopTest;
     }
 
+    /**
+     * @return the check box used to knock with the fwknop binary rather than the in-process engine
+     */
+    public JCheckBox getBtnFwknopBinary() {
+        return this.settingsTab.btnFwknopBinary;
+    }
+
     /**
      * @return the default rijndael key length
      */
@@ -426,10 +437,24 @@ public class MainWindowView extends DefaultFrame implements IConsole {
         return this.consolePanel.btnStop;
     }
 
+    /**
+     * @return the button used to knock several configurations at once
+     */
+    public JButton getBtnMultiKnock() {
+        return this.consolePanel.btnMultiKnock;
+    }
+
     public JFwknopTextField getFwknopPeriod() {
         return this.consolePanel.varPeriod;
     }
 
+    /**
+     * @return the check box used to compute the period from the access timeout
+     */
+    public JFwknopCheckBox getAdaptivePeriod() {
+        return this.consolePanel.adaptivePeriod;
+    }
+
     public JButton getButton(EnumButton buttonId) {
         return this.btnMap.get(buttonId);
     }
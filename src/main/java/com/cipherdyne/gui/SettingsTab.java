@@ -46,6 +46,7 @@ public class SettingsTab extends JPanel {
     public JFwknopTextField varFwknopExtraArgs;
     public JCheckBox btnFwknopVerbose;
     public JCheckBox btnFwknopTest;
+    public JCheckBox btnFwknopBinary;
     public JButton btnSaveFwknopSettings;
     
     public JFwknopTextField varRijndaelKeyLength;
@@ -77,6 +78,8 @@ public class SettingsTab extends JPanel {
         this.btnBrowseforFwknop = new JButton(InternationalizationHelper.getMessage("i18n.fwknop.browse"));
         this.btnFwknopVerbose = new JCheckBox();
         this.btnFwknopTest = new JCheckBox();
+        this.btnFwknopBinary = new JCheckBox();
+        this.btnFwknopBinary.setToolTipText(InternationalizationHelper.getMessage("i18n.fwknop.use.binary.tooltip"));
         this.btnSaveFwknopSettings = new JButton(InternationalizationHelper.getMessage("i18n.save.fwknop.settings"));
 
         // Create panel
@@ -95,6 +98,8 @@ public class SettingsTab extends JPanel {
         fwknopPanel.add(this.btnFwknopVerbose, "height 24, wrap");
         fwknopPanel.add(new JFwknopLabel(InternationalizationHelper.getMessage("i18n.fwknop.test")), "growx");
         fwknopPanel.add(this.btnFwknopTest, "height 24, wrap");
+        fwknopPanel.add(new JFwknopLabel(InternationalizationHelper.getMessage("i18n.fwknop.use.binary")), "growx");
+        fwknopPanel.add(this.btnFwknopBinary, "height 24, wrap");
         fwknopPanel.add(this.btnSaveFwknopSettings, "gaptop 5, span 3, growx");
 
         return fwknopPanel;
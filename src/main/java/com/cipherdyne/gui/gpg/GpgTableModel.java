@@ -18,23 +18,20 @@
  */
 package com.cipherdyne.gui.gpg;
 
+import com.cipherdyne.utils.GpgUtils;
 import com.cipherdyne.utils.InternationalizationHelper;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.security.Security;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.table.AbstractTableModel;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
-import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 
 /**
  *
@@ -86,9 +83,7 @@ public class GpgTableModel extends AbstractTableModel {
         this.gpgKeyData = new ArrayList<>();
         
         // Read the keyring
-        FileInputStream in = new FileInputStream(this.gpgHomeDirectory + "/pubring.gpg");
-        Security.addProvider(new BouncyCastleProvider());
-        PGPPublicKeyRingCollection pubRings = new PGPPublicKeyRingCollection(in, new JcaKeyFingerprintCalculator());
+        PGPPublicKeyRingCollection pubRings = GpgUtils.readPublicKeyRings(this.gpgHomeDirectory);
 
         Iterator rIt = pubRings.getKeyRings();
         PGPPublicKey pubKey = null;
@@ -129,12 +124,6 @@ public class GpgTableModel extends AbstractTableModel {
 
             this.gpgKeyData.add(new GpgTableModel.SimpleGpgKey(keyId, userId));
         }
-
-        try {
-            in.close();
-        } catch (IOException ex) {
-            Logger.getLogger(GpgTableModel.class.getName()).log(Level.SEVERE, null, ex);
-        }
     }
 
     @Override
@@ -24,6 +24,9 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
@@ -85,6 +88,47 @@ public class AccessFile {
         }
     }
 
+    /**
+     * Load the stanzas of the access file. As for fwknopd, each SOURCE key starts a new stanza.
+     * Keys that are not handled by JFwknop are ignored.
+     *
+     * @return the settings of each stanza, in the order of the file
+     * @throws IOException if the file cannot be read
+     */
+    public List<Map<EnumFwknopdRcKey, String>> load() throws IOException {
+        final List<Map<EnumFwknopdRcKey, String>> stanzas = new ArrayList<>();
+        Map<EnumFwknopdRcKey, String> stanza = null;
+        int lineNumber = 0;
+
+        for (final String rawLine : Files.readAllLines(Paths.get(this.filename), Charset.forName("utf-8"))) {
+            lineNumber++;
+            final String line = rawLine.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            final String[] keyValue = line.split("\\s+", 2);
+            final EnumFwknopdRcKey key;
+            try {
+                key = EnumFwknopdRcKey.valueOf(keyValue[0]);
+            } catch (IllegalArgumentException e) {
+                LOGGER.debug("Ignoring " + keyValue[0] + " at line " + lineNumber + " of " + this.filename);
+                continue;
+            }
+
+            if (key == EnumFwknopdRcKey.SOURCE) {
+                stanza = new EnumMap<>(EnumFwknopdRcKey.class);
+                stanzas.add(stanza);
+            } else if (stanza == null) {
+                LOGGER.warn("Ignoring " + key + " set before any SOURCE at line " + lineNumber + " of " + this.filename);
+                continue;
+            }
+            stanza.put(key, keyValue.length > 1 ? keyValue[1].trim() : "");
+        }
+
+        return stanzas;
+    }
+
     /**
      * Create a line for an access conf file.
      *
@@ -20,8 +20,16 @@ package com.cipherdyne.jfwknop;
 
 import com.cipherdyne.gui.MainWindowView;
 import com.cipherdyne.gui.components.JFwknopComboBox;
+import com.cipherdyne.knock.KnockTarget;
+import com.cipherdyne.utils.InternationalizationHelper;
 import java.awt.event.ActionEvent;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.JList;
+import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
+import javax.swing.ListSelectionModel;
 
 /**
  *
@@ -53,15 +61,26 @@ public class ConsoleController extends AbstractController {
                 this.parentController.updateFwknopModel();
 
                 if (this.parentView.getPeriodicExecution().isSelected()) {
-                    period = Long.parseLong(this.parentView.getFwknopPeriod().getText());
                     stopEnabled = true;
+                    if (!this.parentView.getAdaptivePeriod().isSelected()) {
+                        period = Long.parseLong(this.parentView.getFwknopPeriod().getText());
+                    }
                 }
 
                 this.parentView.getBtnStop().setEnabled(stopEnabled);
-                this.parentController.getFwknopClientModel().start(period);
+                if (stopEnabled && this.parentView.getAdaptivePeriod().isSelected()) {
+                    this.parentController.getFwknopClientModel().startAdaptive();
+                } else {
+                    this.parentController.getFwknopClientModel().start(period);
+                }
             }
         });
 
+        // The period is computed from the access timeout when the adaptive period is selected
+        this.parentView.getAdaptivePeriod().addActionListener(e -> {
+            this.parentView.getFwknopPeriod().setEnabled(!this.parentView.getAdaptivePeriod().isSelected());
+        });
+
         this.parentView.getCbConfigList().addActionListener((ActionEvent e) -> {
             JFwknopComboBox cb = ((JFwknopComboBox) e.getSource());
             String filename = cb.getText();
@@ -84,5 +103,50 @@ public class ConsoleController extends AbstractController {
             this.parentController.getFwknopClientModel().stop();
             this.parentView.getBtnStop().setEnabled(false);
         });
+
+        // Add action listener to knock several configurations at once
+        this.parentView.getBtnMultiKnock().addActionListener((ActionEvent e) -> {
+            final JList<KnockTarget> targetList = new JList<>(listKnockTargets().toArray(new KnockTarget[0]));
+            targetList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+            targetList.setVisibleRowCount(10);
+
+            final int result = JOptionPane.showConfirmDialog(this.parentView,
+                new Object[]{InternationalizationHelper.getMessage("i18n.select.the.configurations.to.knock"),
+                    new JScrollPane(targetList)},
+                InternationalizationHelper.getMessage("i18n.btn.multi.knock"),
+                JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE);
+
+            if (result == JOptionPane.OK_OPTION && !targetList.getSelectedValuesList().isEmpty()) {
+                this.parentController.updateFwknopModel();
+                this.parentController.getFwknopClientModel().knockAll(targetList.getSelectedValuesList());
+            }
+        });
+    }
+
+    /**
+     * Build the list of configurations that can be knocked from the recent rc files. A multi stanza
+     * file provides one configuration per stanza.
+     *
+     * @return the list of configurations that can be knocked
+     */
+    private List<KnockTarget> listKnockTargets() {
+        final List<KnockTarget> targets = new ArrayList<>();
+
+        for (final String rcFilename : JFwknopConfig.getInstance().getRecentFileList()) {
+            try {
+                final List<String> stanzaList = new RcFile(rcFilename).lookUpStanza();
+                if (stanzaList.isEmpty()) {
+                    targets.add(new KnockTarget(rcFilename, null));
+                }
+                for (final String stanza : stanzaList) {
+                    targets.add(new KnockTarget(rcFilename, stanza));
+                }
+            } catch (IOException ex) {
+                MainWindowController.LOGGER.error("Unable to load rc file : " + rcFilename);
+            }
+        }
+
+        return targets;
     }
 }
@@ -23,6 +23,13 @@ public enum EnumFwknopConfigKey {
     FWKNOP_ARGS("fwknop_args"),
     FWKNOP_EXTRA_ARGS("fwknop_extra_args"),
     FWKNOP_VERBOSE("fwknop_verbose"),
+    KNOCK_ENGINE("knock_engine"),
+    KNOCK_JITTER("knock_jitter"),
+    RESOLVE_IP_TTL("resolve_ip_ttl"),
+    KNOCK_RATE_LIMIT("knock_rate_limit"),
+    KNOCK_BURST("knock_burst"),
+    KNOCK_MAX_QUEUE_DELAY("knock_max_queue_delay"),
+    KNOCK_VERIFY("knock_verify"),
 
     KEY_RIJNDAEL_LENGTH("key_rijndael_length"),
     KEY_HMAC_LENGTH("key_hmac_length"),
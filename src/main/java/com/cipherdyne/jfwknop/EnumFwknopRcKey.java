@@ -41,6 +41,7 @@ public enum EnumFwknopRcKey {
     RAND_PORT(Y_N, "i18n.spa.random.source.port"),
     KEY_FILE(FILE_PATH, ""),
     HTTP_USER_AGENT(STRING, ""),
+    HTTP_PROXY(STRING, ""),
 
     NAT_ACCESS(IP_PLUS_PORT, "i18n.nat.access.ip"),
     NAT_LOCAL(Y_N, "i18n.nat.local"),
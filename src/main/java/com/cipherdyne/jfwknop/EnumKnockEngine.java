@@ -0,0 +1,59 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.jfwknop;
+
+/**
+ * Engines that can be used to send SPA packets
+ */
+public enum EnumKnockEngine {
+
+    // In-process SPA engine
+    JAVA("java"),
+
+    // External fwknop binary
+    FWKNOP("fwknop");
+
+    private final String value;
+
+    private EnumKnockEngine(final String value) {
+        this.value = value;
+    }
+
+    /**
+     * @return the value stored in the JFwknop configuration file
+     */
+    public String getValue() {
+        return this.value;
+    }
+
+    /**
+     * Look up an engine from its configuration value
+     *
+     * @param value value read from the JFwknop configuration file
+     * @return the matching engine, or the fwknop binary if the value is unknown
+     */
+    public static EnumKnockEngine fromValue(final String value) {
+        for (EnumKnockEngine engine : values()) {
+            if (engine.value.equals(value)) {
+                return engine;
+            }
+        }
+        return FWKNOP;
+    }
+}
@@ -19,58 +19,125 @@
 package com.cipherdyne.jfwknop;
 
 import com.cipherdyne.gui.IConsole;
-import java.io.BufferedReader;
+import com.cipherdyne.knock.EnumKnockError;
+import com.cipherdyne.knock.EnumKnockOutcome;
+import com.cipherdyne.knock.EnumKnockPhase;
+import com.cipherdyne.knock.KnockGrantCache;
+import com.cipherdyne.knock.KnockRateLimiter;
+import com.cipherdyne.knock.KnockResult;
+import com.cipherdyne.knock.KnockResultEvent;
+import com.cipherdyne.knock.KnockTarget;
+import com.cipherdyne.knock.KnockTimings;
+import com.cipherdyne.knock.PortProbe;
+import com.cipherdyne.knock.PortProbeResult;
+import com.cipherdyne.knock.RateLimitExceededException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
 /**
- * This class intends to provide an interface to run external commands periodically or only once.
+ * This class intends to provide an interface to run external commands. Periodic executions are
+ * driven by the {@link com.cipherdyne.knock.KnockScheduler}.
  */
-public class ExternalCommand implements Runnable {
+public class ExternalCommand implements IKnockCommand {
 
     // Logger
     static final Logger LOGGER = LogManager.getLogger(ExternalCommand.class.getName());
 
+    // Maximum time given to a knock run with the fwknop binary, in milliseconds
+    public static final long KNOCK_TIMEOUT = 60000;
+
     // Command line to execute - can be more than one arguments - space separated list
     private final String[] args;
 
-    // Timeout before two executions - Set to 0 to run the only command once
-    private final long period;
+    // Maximum run time in milliseconds - 0 for no limit
+    private final long timeout;
+
+    // Set to false when the command has to be stoppped
+    private volatile boolean isRunning;
 
-    // Set to false when a periodic command has to be stoppped
-    private boolean isRunning;
+    // Runner of the current process - null if none
+    private volatile ProcessRunner runner;
 
     // IConsole interface used to log external command output
     private final IConsole console;
 
+    // True if the command is a knock, whose result is published on the knock event bus
+    private final boolean knock;
+
+    // Configuration knocked - null if unknown
+    private final KnockTarget target;
+
+    // rc settings of the knock, used to rate limit and verify it - null if unknown
+    private final Map<EnumFwknopRcKey, String> rcConfig;
+
+    // Timings of the command setup, reported along with the first run - null once reported
+    private final AtomicReference<KnockTimings> setupTimings;
+
+    // Set to true to knock even if the access is still open from a previous knock
+    private final boolean renew;
+
+    // True if the fwknop binary runs in test mode and does not send the packet
+    private final boolean test;
+
     /**
-     * External command constructor that is executed only once
+     * External command constructor for commands that are not time limited
      *
      * @param args List of argument to use to build the process
      * @param console IConsole appender to log command output
      */
     public ExternalCommand(final String[] args, IConsole console) {
-        this.args = args;
-        this.period = 0;
-        this.console = console;
-        this.isRunning = false;
+        this(args, 0, console);
+    }
+
+    /**
+     * External command constructor. Periodic executions are handled by the knock scheduler.
+     *
+     * @param args List of argument to use to build the process
+     * @param timeout Maximum run time in milliseconds - 0 for no limit
+     * @param console IConsole appender to log command output
+     */
+    public ExternalCommand(final String[] args, long timeout, IConsole console) {
+        this(args, timeout, console, false, null, null, null, false, false);
     }
 
     /**
-     * External command constructor that runs a command periodically.
+     * External command constructor for knocks. The knock results are published on the knock event
+     * bus.
      *
      * @param args List of argument to use to build the process
-     * @param period Period between two command executions
+     * @param timeout Maximum run time in milliseconds - 0 for no limit
      * @param console IConsole appender to log command output
+     * @param target configuration knocked - null if unknown
+     * @param rcConfig rc settings of the knock, used to rate limit and verify it - null if unknown
+     * @param setupTimings timings of the command setup - null if not measured
+     * @param renew true to knock even if the access is still open, as periodic knocks do
+     * @param test true if the fwknop binary runs in test mode and does not send the packet
      */
-    public ExternalCommand(final String[] args, long period, IConsole console) {
+    public ExternalCommand(final String[] args, long timeout, IConsole console, final KnockTarget target,
+        final Map<EnumFwknopRcKey, String> rcConfig, final KnockTimings setupTimings, final boolean renew,
+        final boolean test) {
+        this(args, timeout, console, true, target, rcConfig, setupTimings, renew, test);
+    }
+
+    private ExternalCommand(final String[] args, long timeout, IConsole console, final boolean knock,
+        final KnockTarget target, final Map<EnumFwknopRcKey, String> rcConfig, final KnockTimings setupTimings,
+        final boolean renew, final boolean test) {
+        this.knock = knock;
+        this.renew = renew;
+        this.test = test;
+        this.target = target;
+        this.rcConfig = rcConfig != null ? new HashMap<>(rcConfig) : Collections.emptyMap();
+        this.setupTimings = new AtomicReference<>(setupTimings);
         this.args = args;
-        this.period = period;
+        this.timeout = timeout;
         this.console = console;
-        this.isRunning = false;
+        this.isRunning = true;
     }
 
     /**
@@ -87,45 +154,121 @@ public class ExternalCommand implements Runnable {
     @Override
     public void run() {
 
-        this.isRunning = true;
+        if (!this.isRunning) {
+            return;
+        }
 
+        if (this.knock) {
+            // Test knocks bypass the cache, so that they never grant or join a real knock
+            KnockGrantCache.getInstance().knock(this.test ? null : this.target, this.rcConfig, this.renew,
+                this::runKnock);
+        } else {
+            runCommand();
+        }
+    }
+
+    /**
+     * Run the fwknop binary and wait for it to complete. The result is published by the
+     * {@link KnockGrantCache}.
+     *
+     * @return the result event of the knock
+     */
+    private KnockResultEvent runKnock() {
+        final KnockTimings timings = KnockTimings.resume(this.setupTimings.getAndSet(null));
         try {
-            while (this.isRunning) {
-
-                appendToConsole("[*] Executing : " + Arrays.toString(this.args));
-
-                // Build the process and run it
-                ProcessBuilder pb = new ProcessBuilder(args);
-                pb = pb.redirectErrorStream(true);
-                Process p = pb.start();
-                BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
-
-                // For each line, send the message to the console appender
-                String line;
-                while ((line = br.readLine()) != null) {
-                    appendToConsole(line);
-                }
-
-                // Check if we run only once or if we wait a bit before running the command again
-                // TODO: can be achieve with a timer
-                if (period == 0) {
-                    isRunning = false;
-                } else {
-                    Thread.sleep(this.period * 1000);
-                }
+            // Test knocks do not reach the server and do not use its tokens
+            if (!this.test) {
+                KnockRateLimiter.getInstance().acquire(this.rcConfig.get(EnumFwknopRcKey.SPA_SERVER));
             }
+            timings.mark(EnumKnockPhase.QUEUE);
+        } catch (RateLimitExceededException e) {
+            return createFailure(e.getMessage(), timings, EnumKnockOutcome.DROPPED, EnumKnockError.RATE_LIMITED);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return createFailure("Interrupted", timings, EnumKnockOutcome.STOPPED, EnumKnockError.INTERRUPTED);
+        }
+
+        try {
+            final ProcessResult result = createRunner().run();
+            LOGGER.info(Arrays.toString(this.args) + " " + result);
+
+            timings.recordProcess(result);
+            return KnockResultEvent.fromProcess(this.target, result, timings,
+                result.isSuccess() ? PortProbe.verifyIfEnabled(this.rcConfig, timings)
+                : Collections.<PortProbeResult>emptyList());
+        } catch (IOException e) {
+            LOGGER.error("[*] Unable to execute : " + Arrays.toString(this.args), e);
+            return createFailure("Unable to execute : " + e.getMessage(), timings, EnumKnockOutcome.FAILED,
+                EnumKnockError.PROCESS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return createFailure("Interrupted", timings, EnumKnockOutcome.STOPPED, EnumKnockError.INTERRUPTED);
+        } finally {
+            this.runner = null;
+        }
+    }
 
-        } catch (IOException | InterruptedException e) {
+    /**
+     * Run a command that is not a knock and log its outcome to the console
+     */
+    private void runCommand() {
+        try {
+            final ProcessResult result = createRunner().run();
+            LOGGER.info(Arrays.toString(this.args) + " " + result);
+            appendToConsole("[*] " + Arrays.toString(this.args) + " " + result);
+        } catch (IOException e) {
             LOGGER.error("[*] Unable to execute : " + Arrays.toString(this.args), e);
             appendToConsole("[*] Unable to execute : " + Arrays.toString(this.args) + "\n" + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.runner = null;
+        }
+    }
+
+    /**
+     * @return the runner of the process, cancelled if the command has been stopped
+     */
+    private ProcessRunner createRunner() {
+        appendToConsole("[*] Executing : " + Arrays.toString(this.args));
+
+        final ProcessRunner processRunner = new ProcessRunner(this.args, this.timeout, this::appendToConsole);
+        this.runner = processRunner;
+
+        // The command may have been stopped before the runner was published
+        if (!this.isRunning) {
+            processRunner.cancel();
         }
+
+        return processRunner;
+    }
+
+    /**
+     * Build the result of a knock that could not run the fwknop binary
+     *
+     * @param message reason of the failure
+     * @param timings timings of the knock
+     * @param outcome outcome of the knock
+     * @param error class of the error
+     * @return the result event of the knock
+     */
+    private KnockResultEvent createFailure(final String message, final KnockTimings timings,
+        final EnumKnockOutcome outcome, final EnumKnockError error) {
+        return new KnockResultEvent(new KnockResult(this.target, false, message, 0, timings), EnumKnockEngine.FWKNOP,
+            outcome, error, KnockResultEvent.UNKNOWN_SIZE);
     }
 
     /**
-     * Stop the curent command. This method has to be executed when the command is run periodically
-     * to be able to stop the process
+     * Stop the current command. The running process and its descendants, if any, are destroyed
+     * and the command will not be run anymore.
      */
+    @Override
     public void stop() {
         this.isRunning = false;
+
+        final ProcessRunner processRunner = this.runner;
+        if (processRunner != null) {
+            processRunner.cancel();
+        }
     }
 }
@@ -0,0 +1,46 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.jfwknop;
+
+import javax.swing.*;
+import javax.swing.plaf.nimbus.NimbusLookAndFeel;
+
+/**
+ * Bootstrap of the graphical interface. Kept apart from {@link MainClass} so that the headless
+ * mode does not load any Swing or AWT class.
+ */
+public class GuiLauncher {
+
+    private GuiLauncher() {
+    }
+
+    /**
+     * Install the look and feel and build the main window on the event dispatch thread
+     */
+    public static void launch() {
+        try {
+            UIManager.setLookAndFeel(NimbusLookAndFeel.class.getName());
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException | UnsupportedLookAndFeelException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+
+        javax.swing.SwingUtilities.invokeLater(() -> new MainWindowController());
+    }
+}
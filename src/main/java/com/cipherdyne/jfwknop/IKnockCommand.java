@@ -0,0 +1,46 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.jfwknop;
+
+/**
+ * This interface provides the default methods expected for a knock command, whether it runs the
+ * fwknop binary or the in-process SPA engine.
+ */
+public interface IKnockCommand extends Runnable {
+
+    /**
+     * Prepare the next run ahead of its deadline. The knock scheduler calls this method shortly
+     * before each periodic run so that the expensive work is kept off the critical path. Commands
+     * with nothing to prepare keep the default implementation.
+     */
+    public default void prepare() {
+    }
+
+    /**
+     * Run the command once. Periodic runs are driven by the knock scheduler.
+     */
+    @Override
+    public void run();
+
+    /**
+     * Stop the command. The current run, if any, has to be aborted as soon as possible and the
+     * command must not do anything if it is run again.
+     */
+    public void stop();
+}
@@ -48,6 +48,18 @@ public class JFwknopConfig {
     private static final String CONFIG_RECENT_FILE_PREFIX = "recentFile";
 
     private static final int MAX_RECENT_FILES = 5;
+
+    // Default time the external IP resolved for ALLOW_IP=resolve is cached, in seconds
+    private static final String DEFAULT_RESOLVE_IP_TTL = "300";
+
+    // Default maximum number of knocks per minute and per SPA server - 0 for no limit
+    private static final String DEFAULT_KNOCK_RATE_LIMIT = "0";
+
+    // Default number of knocks that can be sent at once to a SPA server
+    private static final String DEFAULT_KNOCK_BURST = "5";
+
+    // Default time a rate limited knock can wait for its turn, in seconds - 0 to drop it at once
+    private static final String DEFAULT_KNOCK_MAX_QUEUE_DELAY = "2";
     private final RecentFiles recentFiles;
 
     private Map<EnumFwknopConfigKey, String> configKeyMap;
@@ -148,6 +160,13 @@ public class JFwknopConfig {
         this.configKeyMap.put(EnumFwknopConfigKey.FWKNOP_VERBOSE, "1");
         this.configKeyMap.put(EnumFwknopConfigKey.FWKNOP_FILEPATH, "/usr/bin/fwknop");
         this.configKeyMap.put(EnumFwknopConfigKey.FWKNOP_EXTRA_ARGS, "");
+        this.configKeyMap.put(EnumFwknopConfigKey.KNOCK_ENGINE, EnumKnockEngine.FWKNOP.getValue());
+        this.configKeyMap.put(EnumFwknopConfigKey.KNOCK_JITTER, "0");
+        this.configKeyMap.put(EnumFwknopConfigKey.RESOLVE_IP_TTL, DEFAULT_RESOLVE_IP_TTL);
+        this.configKeyMap.put(EnumFwknopConfigKey.KNOCK_RATE_LIMIT, DEFAULT_KNOCK_RATE_LIMIT);
+        this.configKeyMap.put(EnumFwknopConfigKey.KNOCK_BURST, DEFAULT_KNOCK_BURST);
+        this.configKeyMap.put(EnumFwknopConfigKey.KNOCK_MAX_QUEUE_DELAY, DEFAULT_KNOCK_MAX_QUEUE_DELAY);
+        this.configKeyMap.put(EnumFwknopConfigKey.KNOCK_VERIFY, "0");
 
         // Set default key settings
         this.configKeyMap.put(EnumFwknopConfigKey.KEY_RIJNDAEL_LENGTH, "16");
@@ -177,6 +196,20 @@ public class JFwknopConfig {
             this.configKeyMap.get(EnumFwknopConfigKey.FWKNOP_FILEPATH));
         this.configProperties.setProperty(EnumFwknopConfigKey.FWKNOP_EXTRA_ARGS.getKey(),
             this.configKeyMap.get(EnumFwknopConfigKey.FWKNOP_EXTRA_ARGS));
+        this.configProperties.setProperty(EnumFwknopConfigKey.KNOCK_ENGINE.getKey(),
+            this.configKeyMap.get(EnumFwknopConfigKey.KNOCK_ENGINE));
+        this.configProperties.setProperty(EnumFwknopConfigKey.KNOCK_JITTER.getKey(),
+            this.configKeyMap.get(EnumFwknopConfigKey.KNOCK_JITTER));
+        this.configProperties.setProperty(EnumFwknopConfigKey.RESOLVE_IP_TTL.getKey(),
+            this.configKeyMap.get(EnumFwknopConfigKey.RESOLVE_IP_TTL));
+        this.configProperties.setProperty(EnumFwknopConfigKey.KNOCK_RATE_LIMIT.getKey(),
+            this.configKeyMap.get(EnumFwknopConfigKey.KNOCK_RATE_LIMIT));
+        this.configProperties.setProperty(EnumFwknopConfigKey.KNOCK_BURST.getKey(),
+            this.configKeyMap.get(EnumFwknopConfigKey.KNOCK_BURST));
+        this.configProperties.setProperty(EnumFwknopConfigKey.KNOCK_MAX_QUEUE_DELAY.getKey(),
+            this.configKeyMap.get(EnumFwknopConfigKey.KNOCK_MAX_QUEUE_DELAY));
+        this.configProperties.setProperty(EnumFwknopConfigKey.KNOCK_VERIFY.getKey(),
+            this.configKeyMap.get(EnumFwknopConfigKey.KNOCK_VERIFY));
 
         this.configProperties.setProperty(EnumFwknopConfigKey.KEY_RIJNDAEL_LENGTH.getKey(),
             this.configKeyMap.get(EnumFwknopConfigKey.KEY_RIJNDAEL_LENGTH));
@@ -218,6 +251,22 @@ public class JFwknopConfig {
             this.configProperties.getProperty(EnumFwknopConfigKey.FWKNOP_FILEPATH.getKey()));
         this.configKeyMap.put(EnumFwknopConfigKey.FWKNOP_EXTRA_ARGS,
             this.configProperties.getProperty(EnumFwknopConfigKey.FWKNOP_EXTRA_ARGS.getKey()));
+        this.configKeyMap.put(EnumFwknopConfigKey.KNOCK_ENGINE,
+            this.configProperties.getProperty(EnumFwknopConfigKey.KNOCK_ENGINE.getKey(),
+                EnumKnockEngine.FWKNOP.getValue()));
+        this.configKeyMap.put(EnumFwknopConfigKey.KNOCK_JITTER,
+            this.configProperties.getProperty(EnumFwknopConfigKey.KNOCK_JITTER.getKey(), "0"));
+        this.configKeyMap.put(EnumFwknopConfigKey.RESOLVE_IP_TTL,
+            this.configProperties.getProperty(EnumFwknopConfigKey.RESOLVE_IP_TTL.getKey(), DEFAULT_RESOLVE_IP_TTL));
+        this.configKeyMap.put(EnumFwknopConfigKey.KNOCK_RATE_LIMIT,
+            this.configProperties.getProperty(EnumFwknopConfigKey.KNOCK_RATE_LIMIT.getKey(), DEFAULT_KNOCK_RATE_LIMIT));
+        this.configKeyMap.put(EnumFwknopConfigKey.KNOCK_BURST,
+            this.configProperties.getProperty(EnumFwknopConfigKey.KNOCK_BURST.getKey(), DEFAULT_KNOCK_BURST));
+        this.configKeyMap.put(EnumFwknopConfigKey.KNOCK_MAX_QUEUE_DELAY,
+            this.configProperties.getProperty(EnumFwknopConfigKey.KNOCK_MAX_QUEUE_DELAY.getKey(),
+                DEFAULT_KNOCK_MAX_QUEUE_DELAY));
+        this.configKeyMap.put(EnumFwknopConfigKey.KNOCK_VERIFY,
+            this.configProperties.getProperty(EnumFwknopConfigKey.KNOCK_VERIFY.getKey(), "0"));
 
         // Read the key settings
         this.configKeyMap.put(EnumFwknopConfigKey.KEY_RIJNDAEL_LENGTH,
@@ -18,20 +18,17 @@
  */
 package com.cipherdyne.jfwknop;
 
-import javax.swing.*;
-import javax.swing.plaf.nimbus.NimbusLookAndFeel;
+import com.cipherdyne.knock.KnockCli;
 
 public class MainClass {
 
     public static void main(final String[] args) {
 
-        try {
-            UIManager.setLookAndFeel(NimbusLookAndFeel.class.getName());
-        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException | UnsupportedLookAndFeelException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        // Knock from the command line without initializing the graphical interface
+        if (KnockCli.isHeadless(args)) {
+            System.exit(new KnockCli(System.out, System.err).run(args));
         }
 
-        javax.swing.SwingUtilities.invokeLater(() -> new MainWindowController());
+        GuiLauncher.launch();
     }
 }
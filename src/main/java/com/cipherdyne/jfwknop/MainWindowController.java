@@ -21,6 +21,7 @@ package com.cipherdyne.jfwknop;
 import com.cipherdyne.gui.MainWindowView;
 import com.cipherdyne.gui.components.IFwknopVariable;
 import static com.cipherdyne.jfwknop.JFwknopConfig.getJfwknopWorkingDirectory;
+import com.cipherdyne.knock.KnockTarget;
 import com.cipherdyne.model.FwknopClientModel;
 import com.cipherdyne.model.KeyModel;
 import com.cipherdyne.model.RcFileModel;
@@ -174,6 +175,12 @@ public class MainWindowController {
             this.view.getVarFwknopExtraArgs().getText());
         this.fwknopClientModel.setFwknopConfig(EnumFwknopConfigKey.FWKNOP_VERBOSE,
             this.view.getBtnFwknopVerbose().isSelected() ? "1" : "0");
+        this.fwknopClientModel.setFwknopConfig(EnumFwknopConfigKey.KNOCK_ENGINE,
+            this.view.getBtnFwknopBinary().isSelected() ? EnumKnockEngine.FWKNOP.getValue() : EnumKnockEngine.JAVA.getValue());
+        this.fwknopClientModel.setRcConfig(convertViewToConfig(this.view.getVariables()));
+
+        final String rcFilename = this.rcFileModel.getRcFilename();
+        this.fwknopClientModel.setKnockTarget(rcFilename.isEmpty() ? null : new KnockTarget(rcFilename, null));
     }
 
     /**
@@ -0,0 +1,148 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.jfwknop;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a process run by the {@link ProcessRunner}
+ */
+public class ProcessResult {
+
+    // Exit code reported when the process did not exit
+    public static final int NO_EXIT_CODE = -1;
+
+    // Time reported for events that did not happen
+    public static final long NO_TIME = -1;
+
+    // Exit code of the process
+    private final int exitCode;
+
+    // Wall-clock time of the run in milliseconds
+    private final long duration;
+
+    // True if the process has been destroyed because it ran for too long
+    private final boolean timedOut;
+
+    // True if the process has been destroyed on request
+    private final boolean cancelled;
+
+    // Last lines printed by the process on stdout and stderr
+    private final List<String> output;
+
+    // Number of lines dropped from the output because the buffer was full
+    private final long droppedLines;
+
+    // Time spent to spawn the process in microseconds
+    private final long spawnTime;
+
+    // Time from the start of the run to the first output line in microseconds
+    private final long firstOutputTime;
+
+    /**
+     * @param exitCode exit code of the process, NO_EXIT_CODE if it did not exit
+     * @param duration wall-clock time of the run in milliseconds
+     * @param timedOut true if the process has been destroyed because it ran for too long
+     * @param cancelled true if the process has been destroyed on request
+     * @param output last lines printed by the process
+     * @param droppedLines number of lines dropped from the output
+     * @param spawnTime time spent to spawn the process in microseconds, NO_TIME if not spawned
+     * @param firstOutputTime time to the first output line in microseconds, NO_TIME if none
+     */
+    public ProcessResult(final int exitCode, final long duration, final boolean timedOut, final boolean cancelled,
+        final List<String> output, final long droppedLines, final long spawnTime, final long firstOutputTime) {
+        this.exitCode = exitCode;
+        this.duration = duration;
+        this.timedOut = timedOut;
+        this.cancelled = cancelled;
+        this.output = Collections.unmodifiableList(output);
+        this.droppedLines = droppedLines;
+        this.spawnTime = spawnTime;
+        this.firstOutputTime = firstOutputTime;
+    }
+
+    public int getExitCode() {
+        return this.exitCode;
+    }
+
+    public long getDuration() {
+        return this.duration;
+    }
+
+    public boolean isTimedOut() {
+        return this.timedOut;
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    public List<String> getOutput() {
+        return this.output;
+    }
+
+    public long getDroppedLines() {
+        return this.droppedLines;
+    }
+
+    /**
+     * @return the time spent to spawn the process in microseconds, NO_TIME if not spawned
+     */
+    public long getSpawnTime() {
+        return this.spawnTime;
+    }
+
+    /**
+     * @return the time from the start of the run to the first output line in microseconds,
+     * NO_TIME if the process printed nothing
+     */
+    public long getFirstOutputTime() {
+        return this.firstOutputTime;
+    }
+
+    /**
+     * @return true if the process exited on its own with a 0 exit code
+     */
+    public boolean isSuccess() {
+        return this.exitCode == 0 && !this.timedOut && !this.cancelled;
+    }
+
+    /**
+     * @return the last non blank line printed by the process, or null if none
+     */
+    public String getLastLine() {
+        for (int ix = this.output.size() - 1; ix >= 0; ix--) {
+            if (!this.output.get(ix).trim().isEmpty()) {
+                return this.output.get(ix).trim();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        if (this.timedOut) {
+            return "timed out after " + this.duration + " ms";
+        } else if (this.cancelled) {
+            return "stopped after " + this.duration + " ms";
+        }
+        return "exited with code " + this.exitCode + " in " + this.duration + " ms";
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.jfwknop;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Run an external process and collect its outcome.
+ *
+ * The stdout and stderr of the process are pumped on dedicated threads into a bounded buffer and
+ * forwarded line by line to an optional listener. The process is destroyed along with its
+ * descendants when it runs for too long or when the run is cancelled. This is the single path used
+ * to run external commands.
+ */
+public class ProcessRunner {
+
+    static final Logger LOGGER = LogManager.getLogger(ProcessRunner.class.getName());
+
+    // Default maximum number of output lines kept
+    public static final int DEFAULT_MAX_LINES = 1000;
+
+    // Time given to a process to exit after a graceful destroy, in milliseconds
+    private static final long DESTROY_GRACE_PERIOD = 2000;
+
+    // Time given to the pumps to read the remaining output once the process exited, in milliseconds
+    private static final long PUMP_DRAIN_TIMEOUT = 1000;
+
+    // Threads pumping the process outputs
+    private static final AtomicInteger PUMP_COUNT = new AtomicInteger();
+    private static final ExecutorService PUMPS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "process-pump-" + PUMP_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Command line to execute
+    private final String[] args;
+
+    // Maximum run time in milliseconds - 0 for no limit
+    private final long timeout;
+
+    // Listener notified of each output line - can be null
+    private final Consumer<String> listener;
+
+    // Last output lines
+    private final Deque<String> lines = new ArrayDeque<>();
+
+    // Maximum number of output lines kept
+    private final int maxLines;
+
+    // Number of lines dropped because the buffer was full
+    private long droppedLines;
+
+    // Process currently run - null if not started
+    private Process process;
+
+    // Start of the run, as given by System.nanoTime()
+    private volatile long startNanos;
+
+    // Time spent to spawn the process in microseconds
+    private volatile long spawnTime;
+
+    // Time from the start of the run to the first output line in microseconds
+    private final AtomicLong firstOutputTime = new AtomicLong(ProcessResult.NO_TIME);
+
+    private volatile boolean cancelled;
+
+    /**
+     * @param args command line to execute
+     * @param timeout maximum run time in milliseconds - 0 for no limit
+     * @param listener listener notified of each output line - can be null
+     */
+    public ProcessRunner(final String[] args, final long timeout, final Consumer<String> listener) {
+        this(args, timeout, listener, DEFAULT_MAX_LINES);
+    }
+
+    /**
+     * @param args command line to execute
+     * @param timeout maximum run time in milliseconds - 0 for no limit
+     * @param listener listener notified of each output line - can be null
+     * @param maxLines maximum number of output lines kept in the result
+     */
+    public ProcessRunner(final String[] args, final long timeout, final Consumer<String> listener, final int maxLines) {
+        this.args = args.clone();
+        this.timeout = timeout;
+        this.listener = listener;
+        this.maxLines = maxLines;
+        this.droppedLines = 0;
+        this.spawnTime = ProcessResult.NO_TIME;
+        this.cancelled = false;
+    }
+
+    /**
+     * Run the process and wait for it to exit, time out or be cancelled
+     *
+     * @return the outcome of the run
+     * @throws IOException if the process cannot be started
+     * @throws InterruptedException if the calling thread is interrupted - the process is destroyed
+     */
+    public ProcessResult run() throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final Process p;
+        this.startNanos = start;
+
+        synchronized (this) {
+            if (this.cancelled) {
+                return createResult(ProcessResult.NO_EXIT_CODE, start, false);
+            }
+            p = new ProcessBuilder(this.args).start();
+            this.spawnTime = (System.nanoTime() - start) / 1000;
+            this.process = p;
+        }
+
+        // The processes run by jfwknop do not read any input
+        p.getOutputStream().close();
+
+        final Future<?> stdout = PUMPS.submit(() -> pump(p.getInputStream()));
+        final Future<?> stderr = PUMPS.submit(() -> pump(p.getErrorStream()));
+
+        boolean exited;
+        try {
+            if (this.timeout > 0) {
+                exited = p.waitFor(this.timeout, TimeUnit.MILLISECONDS);
+            } else {
+                p.waitFor();
+                exited = true;
+            }
+        } catch (InterruptedException e) {
+            destroyTree(p);
+            throw e;
+        }
+
+        if (!exited) {
+            LOGGER.info("Timeout reached for : " + Arrays.toString(this.args));
+            destroyTree(p);
+            p.waitFor(DESTROY_GRACE_PERIOD, TimeUnit.MILLISECONDS);
+        }
+
+        // Descendants may keep the pipes open, do not wait for them forever
+        drain(stdout);
+        drain(stderr);
+
+        return createResult(p.isAlive() ? ProcessResult.NO_EXIT_CODE : p.exitValue(), start, !exited && !this.cancelled);
+    }
+
+    /**
+     * Destroy the process and its descendants. The run returns as soon as the process exited.
+     */
+    public void cancel() {
+        final Process p;
+        synchronized (this) {
+            this.cancelled = true;
+            p = this.process;
+        }
+
+        if (p != null) {
+            destroyTree(p);
+        }
+    }
+
+    private ProcessResult createResult(final int exitCode, final long start, final boolean timedOut) {
+        final List<String> output;
+        final long dropped;
+        synchronized (this.lines) {
+            output = new ArrayList<>(this.lines);
+            dropped = this.droppedLines;
+        }
+
+        return new ProcessResult(exitCode, (System.nanoTime() - start) / 1000000, timedOut, this.cancelled,
+            output, dropped, this.spawnTime, this.firstOutputTime.get());
+    }
+
+    /**
+     * Read an output of the process line by line until it is closed
+     *
+     * @param in stdout or stderr of the process
+     */
+    private void pump(final InputStream in) {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(in))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (this.firstOutputTime.get() == ProcessResult.NO_TIME) {
+                    this.firstOutputTime.compareAndSet(ProcessResult.NO_TIME, (System.nanoTime() - this.startNanos) / 1000);
+                }
+                synchronized (this.lines) {
+                    if (this.lines.size() == this.maxLines) {
+                        this.lines.removeFirst();
+                        this.droppedLines++;
+                    }
+                    this.lines.addLast(line);
+                }
+                if (this.listener != null) {
+                    this.listener.accept(line);
+                }
+            }
+        } catch (IOException e) {
+            // The stream is closed when the process is destroyed
+            LOGGER.debug("Output of " + Arrays.toString(this.args) + " closed", e);
+        }
+    }
+
+    private void drain(final Future<?> pump) throws InterruptedException {
+        try {
+            pump.get(PUMP_DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.debug("Output of " + Arrays.toString(this.args) + " not fully read", e);
+        }
+    }
+
+    /**
+     * Destroy a process and its descendants. The process is asked to exit first and killed if it
+     * is still alive after a grace period.
+     *
+     * The descendants can only be listed with the ProcessHandle API of Java 9 and later, which is
+     * accessed by reflection. Only the process itself is destroyed on older runtimes.
+     *
+     * @param p process to destroy
+     */
+    private static void destroyTree(final Process p) {
+        final List<Object> descendants = listDescendants(p);
+
+        p.destroy();
+        invokeOnHandles(descendants, "destroy");
+
+        PUMPS.submit(() -> {
+            try {
+                if (!p.waitFor(DESTROY_GRACE_PERIOD, TimeUnit.MILLISECONDS)) {
+                    p.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                p.destroyForcibly();
+            }
+            invokeOnHandles(descendants, "destroyForcibly");
+        });
+    }
+
+    /**
+     * @param p process
+     * @return the handles of all the descendants of the process, empty on Java 8
+     */
+    private static List<Object> listDescendants(final Process p) {
+        try {
+            final Method descendants = Process.class.getMethod("descendants");
+            final Stream<?> handles = (Stream<?>) descendants.invoke(p);
+            return Arrays.asList(handles.toArray());
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Invoke a no-argument ProcessHandle method on each handle
+     *
+     * @param handles ProcessHandle instances
+     * @param methodName name of the method to invoke
+     */
+    private static void invokeOnHandles(final List<Object> handles, final String methodName) {
+        if (handles.isEmpty()) {
+            return;
+        }
+
+        try {
+            final Method method = Class.forName("java.lang.ProcessHandle").getMethod(methodName);
+            for (final Object handle : handles) {
+                method.invoke(handle);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.debug("Unable to " + methodName + " process descendants", e);
+        }
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.jfwknop;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Lossless document model of a fwknoprc file.
+ *
+ * The document is the file itself along with the sections of its {@link RcIndex}. Setting the
+ * configuration of a stanza only rewrites the lines of its sections: values are replaced in place,
+ * removed settings are dropped and new ones are added after the last setting of the stanza, while
+ * comments, blank lines and unsupported keys are kept as they are. A stanza the file does not define
+ * yet is appended at its end.
+ *
+ * The document is written to a temporary file, restricted to the owner, synced and then renamed
+ * over the target, so that a crash never leaves a truncated rc file. The bytes of the unchanged
+ * sections are copied by the channel without being decoded and the index of the new file is derived
+ * from the original one rather than scanned again.
+ */
+public final class RcDocument {
+
+    static final Logger LOGGER = LogManager.getLogger(RcDocument.class.getName());
+
+    // Number of bytes read at the start of the file to find out its line terminator
+    private static final int HEAD_SIZE = 4096;
+
+    // Path to the file the document is read from
+    private final String filepath;
+
+    // Index of the file - empty if the file does not exist
+    private final RcIndex index;
+
+    // Line terminator used by the file
+    private final String newline;
+
+    // Whether the last line of the file is terminated
+    private final boolean terminated;
+
+    // Charset the file is decoded with, the one of the tokenizer
+    private final Charset charset = Charset.defaultCharset();
+
+    // Lines, with their terminators, of the sections that have been rewritten
+    private final Map<RcIndex.Section, List<String>> edits = new HashMap<>();
+
+    // Lines of the stanzas to append to the file, indexed by name
+    private final Map<String, List<String>> appended = new LinkedHashMap<>();
+
+    private RcDocument(final String filepath, final RcIndex index, final String newline, final boolean terminated) {
+        this.filepath = filepath;
+        this.index = index;
+        this.newline = newline;
+        this.terminated = terminated;
+    }
+
+    /**
+     * Open the document of a rc file
+     *
+     * @param filepath path to the rc file, which may not exist yet
+     * @param index index of the file if already known - null or out of date to load it
+     * @return the document of the file, empty if it does not exist
+     * @throws IOException if the file cannot be read
+     */
+    public static RcDocument open(final String filepath, final RcIndex index) throws IOException {
+        final Path path = Paths.get(filepath);
+        if (!Files.exists(path)) {
+            return new RcDocument(filepath, new RcIndex(filepath, 0, 0, 0,
+                Collections.<String, List<RcIndex.Section>>emptyMap()), "\n", true);
+        }
+
+        RcIndex current = index;
+        if (current == null || !filepath.equals(current.getFilepath()) || Files.size(path) != current.getLength()
+            || Files.getLastModifiedTime(path).toMillis() != current.getLastModified()) {
+            current = RcIndex.load(filepath);
+        }
+
+        try (FileChannel channel = current.open()) {
+            final ByteBuffer head = RcIndex.read(channel, 0, Math.min(current.getLength(), HEAD_SIZE));
+            String newline = "\n";
+            for (int pos = 0; pos < head.limit(); pos++) {
+                final byte b = head.get(pos);
+                if (b == '\r') {
+                    newline = pos + 1 < head.limit() && head.get(pos + 1) == '\n' ? "\r\n" : "\r";
+                    break;
+                } else if (b == '\n') {
+                    break;
+                }
+            }
+
+            boolean terminated = true;
+            if (current.getLength() > 0) {
+                final ByteBuffer last = ByteBuffer.allocate(1);
+                channel.read(last, current.getLength() - 1);
+                terminated = isTerminator((char) last.get(0));
+            }
+
+            return new RcDocument(filepath, current, newline, terminated);
+        }
+    }
+
+    /**
+     * Rewrite a stanza so that its configuration, inherited from the default stanza, is the given
+     * one. Settings with an empty value are removed from the stanza.
+     *
+     * @param stanza name of the stanza - null for the default stanza
+     * @param config settings of the configuration
+     * @throws IOException if the file cannot be read or has changed since it was opened
+     */
+    public void setConfig(final String stanza, final Map<EnumFwknopRcKey, String> config) throws IOException {
+        final String name = stanza != null ? stanza : RcFile.DEFAULT_STANZA;
+        final List<Lines> sections = readLines(name);
+
+        // Settings of the stanza itself and the ones it inherits
+        final Map<EnumFwknopRcKey, String> own = new EnumMap<>(EnumFwknopRcKey.class);
+        for (final Lines lines : sections) {
+            own.putAll(lines.settings);
+        }
+        final Map<EnumFwknopRcKey, String> inherited = new EnumMap<>(EnumFwknopRcKey.class);
+        if (!RcFile.DEFAULT_STANZA.equals(name)) {
+            for (final Lines lines : readLines(RcFile.DEFAULT_STANZA)) {
+                inherited.putAll(lines.settings);
+            }
+        }
+
+        final List<String> added = new ArrayList<>();
+        for (final EnumFwknopRcKey key : EnumFwknopRcKey.values()) {
+            final String value = config.get(key);
+            if (value == null || value.isEmpty()) {
+                if (own.containsKey(key)) {
+                    for (final Lines lines : sections) {
+                        lines.remove(key);
+                    }
+                }
+            } else if (own.containsKey(key)) {
+                if (!value.equals(own.get(key))) {
+                    // The last occurrence of the key is the one fwknop uses
+                    for (int i = sections.size() - 1; !sections.get(i).replace(key, value); i--) {
+                        // Look for the key from the last section
+                    }
+                }
+            } else if (!value.equals(inherited.get(key))) {
+                added.add(formatSetting(key, value));
+            }
+        }
+
+        if (!added.isEmpty()) {
+            if (sections.isEmpty()) {
+                final List<String> lines = new ArrayList<>();
+                lines.add("[" + name + "]" + this.newline);
+                lines.addAll(added);
+                this.appended.put(name, lines);
+            } else {
+                sections.get(sections.size() - 1).add(added);
+            }
+        }
+
+        for (final Lines lines : sections) {
+            if (lines.changed) {
+                final List<String> text = new ArrayList<>(lines.text.size());
+                for (final String line : lines.text) {
+                    if (line != null) {
+                        text.add(line);
+                    }
+                }
+                this.edits.put(lines.section, text);
+            }
+        }
+    }
+
+    /**
+     * Write the document atomically
+     *
+     * @param target path to the file to write, which may be the file the document is read from
+     * @return the index of the written file
+     * @throws IOException if the file cannot be written or the original one has changed
+     */
+    public RcIndex write(final String target) throws IOException {
+        // Replace the file a symbolic link points to rather than the link
+        Path destination = Paths.get(target).toAbsolutePath();
+        if (Files.exists(destination)) {
+            destination = destination.toRealPath();
+        }
+
+        final File tmpFile = File.createTempFile("rcfile", ".tmp", destination.getParent().toFile());
+        try {
+            // Permissions are restricted before the file holds any setting
+            RcFile.fixPermissions(tmpFile);
+
+            final RcIndex written = write(tmpFile, target);
+            try {
+                Files.move(tmpFile.toPath(), destination, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), destination, StandardCopyOption.REPLACE_EXISTING);
+            }
+            RcIndexFile.delete(target);
+
+            return new RcIndex(written, Files.getLastModifiedTime(destination).toMillis());
+        } finally {
+            if (tmpFile.exists() && !tmpFile.delete()) {
+                LOGGER.warn("Unable to delete temporary rc file " + tmpFile);
+            }
+        }
+    }
+
+    /**
+     * Write the document to a file and index it along the way
+     *
+     * @param file file to write
+     * @param target path to the file the index refers to
+     * @return the index of the written file, whose modification time is not set
+     */
+    private RcIndex write(final File file, final String target) throws IOException {
+        final Map<String, List<RcIndex.Section>> sections = new LinkedHashMap<>();
+
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            FileChannel in = this.index.getLength() > 0 ? this.index.open() : null) {
+
+            // Offset of the original file up to which it has been copied
+            long copied = 0;
+            long offsetDelta = 0;
+            int lineDelta = 0;
+            boolean isTerminated = this.terminated;
+            RcIndex.Section last = null;
+
+            for (final RcIndex.Section section : this.index.getSections()) {
+                final RcIndex.Section shifted = new RcIndex.Section(section.name, section.startLine + lineDelta,
+                    section.startOffset + offsetDelta);
+                final List<String> lines = this.edits.get(section);
+                if (lines == null) {
+                    shifted.endLine = section.endLine + lineDelta;
+                    shifted.endOffset = section.endOffset + offsetDelta;
+                    isTerminated = section.endOffset < this.index.getLength() || this.terminated;
+                } else {
+                    copy(in, copied, section.startOffset - copied, out);
+                    final byte[] bytes = encode(lines);
+                    writeFully(out, bytes);
+                    copied = section.endOffset;
+
+                    shifted.endLine = shifted.startLine + lines.size();
+                    shifted.endOffset = shifted.startOffset + bytes.length;
+                    offsetDelta += bytes.length - (section.endOffset - section.startOffset);
+                    lineDelta += lines.size() - (section.endLine - section.startLine);
+                    isTerminated = section.endOffset < this.index.getLength()
+                        || isTerminator(lines.get(lines.size() - 1).charAt(lines.get(lines.size() - 1).length() - 1));
+                }
+                sections.computeIfAbsent(section.name, name -> new ArrayList<>(1)).add(shifted);
+                last = shifted;
+            }
+            copy(in, copied, this.index.getLength() - copied, out);
+
+            long length = this.index.getLength() + offsetDelta;
+            int lineCount = this.index.getLineCount() + lineDelta;
+            for (final Map.Entry<String, List<String>> stanza : this.appended.entrySet()) {
+                // Stanzas are separated by a blank line
+                if (length > 0) {
+                    final String separator = isTerminated ? this.newline : this.newline + this.newline;
+                    writeFully(out, separator.getBytes(this.charset));
+                    length += separator.length();
+                    lineCount++;
+                }
+
+                final RcIndex.Section section = new RcIndex.Section(stanza.getKey(), lineCount, length);
+                if (last != null) {
+                    last.endLine = section.startLine;
+                    last.endOffset = section.startOffset;
+                }
+                final byte[] bytes = encode(stanza.getValue());
+                writeFully(out, bytes);
+                length += bytes.length;
+                lineCount += stanza.getValue().size();
+                section.endLine = lineCount;
+                section.endOffset = length;
+                sections.computeIfAbsent(section.name, name -> new ArrayList<>(1)).add(section);
+                last = section;
+                isTerminated = true;
+            }
+
+            out.force(true);
+            return new RcIndex(target, length, 0, lineCount, sections);
+        }
+    }
+
+    /**
+     * Read the lines of the sections of a stanza, as rewritten if they have been
+     *
+     * @param name name of the stanza
+     * @return the lines of each section of the stanza, empty if the file does not define it
+     */
+    private List<Lines> readLines(final String name) throws IOException {
+        final List<Lines> sections = new ArrayList<>();
+        final RcIndex.Stanza stanza = this.index.getStanza(name);
+        if (stanza == null) {
+            return sections;
+        }
+
+        try (FileChannel channel = this.index.open()) {
+            for (final RcIndex.Section section : stanza.getSections()) {
+                final List<String> edited = this.edits.get(section);
+                final ByteBuffer bytes = edited != null ? ByteBuffer.wrap(encode(edited))
+                    : RcIndex.read(channel, section.startOffset, section.endOffset - section.startOffset);
+                final Lines lines = new Lines(section, split(this.charset.decode(bytes.duplicate()).toString()));
+                new RcTokenizer(lines).tokenize(bytes, 0, 0);
+
+                // The section has to start with its stanza line, see RcIndex
+                if (!lines.opened) {
+                    RcIndexFile.delete(this.filepath);
+                    throw new IOException("Rc file " + this.filepath + " does not match its index");
+                }
+                sections.add(lines);
+            }
+        }
+        return sections;
+    }
+
+    /**
+     * Split a text in lines the way the tokenizer does
+     *
+     * @param text text to split
+     * @return the lines of the text along with their terminators
+     */
+    private static List<String> split(final String text) {
+        final List<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int pos = 0; pos < text.length(); pos++) {
+            final char c = text.charAt(pos);
+            if (isTerminator(c)) {
+                if (c == '\r' && pos + 1 < text.length() && text.charAt(pos + 1) == '\n') {
+                    pos++;
+                }
+                lines.add(text.substring(start, pos + 1));
+                start = pos + 1;
+            }
+        }
+        if (start < text.length()) {
+            lines.add(text.substring(start));
+        }
+        return lines;
+    }
+
+    private byte[] encode(final List<String> lines) {
+        final StringBuilder sb = new StringBuilder();
+        for (final String line : lines) {
+            sb.append(line);
+        }
+        return sb.toString().getBytes(this.charset);
+    }
+
+    /**
+     * Copy a region of a file at the position of another one
+     */
+    private void copy(final FileChannel in, final long position, final long count, final FileChannel out)
+        throws IOException {
+        long done = 0;
+        while (done < count) {
+            final long transferred = in.transferTo(position + done, count - done, out);
+            if (transferred <= 0) {
+                throw new IOException("Rc file " + this.filepath + " has been truncated");
+            }
+            done += transferred;
+        }
+    }
+
+    private static void writeFully(final FileChannel out, final byte[] bytes) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == 0x0B || c == '\f';
+    }
+
+    private static boolean isTerminator(final char c) {
+        return c == '\n' || c == '\r';
+    }
+
+    /**
+     * Create a line for an fwknoprc conf file.
+     *
+     * @param key Key to set
+     * @param value Value to set for the key
+     * @return an access file line as a string ready to be stored
+     */
+    private String formatSetting(final EnumFwknopRcKey key, final String value) {
+        return String.format("%-32s    %s", key.toString(), value) + this.newline;
+    }
+
+    /**
+     * Lines of a section and the settings they define
+     */
+    private final class Lines implements RcTokenizer.Handler {
+
+        private final RcIndex.Section section;
+
+        // Lines of the section along with their terminators - null once removed
+        private final List<String> text;
+
+        // Key set by each line - null for the other lines
+        private final EnumFwknopRcKey[] keys;
+
+        // Settings of the section, the last occurrence of a key overriding the others
+        private final Map<EnumFwknopRcKey, String> settings = new EnumMap<>(EnumFwknopRcKey.class);
+
+        // Whether the section starts with the line of its stanza
+        private boolean opened;
+
+        // Whether the lines have been modified
+        private boolean changed;
+
+        private Lines(final RcIndex.Section section, final List<String> text) {
+            this.section = section;
+            this.text = text;
+            this.keys = new EnumFwknopRcKey[text.size()];
+        }
+
+        @Override
+        public boolean stanza(final String name, final int line, final long offset) {
+            this.opened = line == 0 && name.equals(this.section.name);
+            return this.opened;
+        }
+
+        @Override
+        public void setting(final EnumFwknopRcKey key, final String value, final int line) {
+            this.keys[line] = key;
+            this.settings.put(key, value);
+        }
+
+        /**
+         * Remove all the lines of a key
+         */
+        private void remove(final EnumFwknopRcKey key) {
+            for (int line = this.keys.length - 1; line >= 0; line--) {
+                if (this.keys[line] == key) {
+                    this.text.set(line, null);
+                    this.keys[line] = null;
+                    this.changed = true;
+                }
+            }
+        }
+
+        /**
+         * Replace the value of the last line of a key, keeping the layout of the line
+         *
+         * @return false if the section does not set the key
+         */
+        private boolean replace(final EnumFwknopRcKey key, final String value) {
+            for (int line = this.keys.length - 1; line >= 0; line--) {
+                if (this.keys[line] == key) {
+                    final String current = this.text.get(line);
+                    int to = current.length();
+                    while (to > 0 && current.charAt(to - 1) <= ' ') {
+                        to--;
+                    }
+                    int separator = to - 1;
+                    while (!isWhitespace(current.charAt(separator))) {
+                        separator--;
+                    }
+                    this.text.set(line, current.substring(0, separator + 1) + value + current.substring(to));
+                    this.changed = true;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Add lines after the last setting of the section. The added lines are not indexed, so
+         * this is the last modification of the section.
+         */
+        private void add(final List<String> lines) {
+            int line = this.keys.length - 1;
+            while (line > 0 && this.keys[line] == null) {
+                line--;
+            }
+
+            // The last line of the file may not be terminated
+            final String previous = this.text.get(line);
+            if (!isTerminator(previous.charAt(previous.length() - 1))) {
+                this.text.set(line, previous + RcDocument.this.newline);
+            }
+            this.text.addAll(line + 1, lines);
+            this.changed = true;
+        }
+    }
+}
@@ -18,34 +18,16 @@
  */
 package com.cipherdyne.jfwknop;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
 public class RcFile {
 
-    // Pattern that matches a stanza
-    final private static Pattern STANZA_PATTERN = Pattern.compile("^\\[(.*)\\]");
-
-    // Pattern that matches a key/value line
-    final private static Pattern KEY_PATTERN = Pattern.compile("^(?!#)(.*)\\s+(.*)");
-
     // Default stanza used by fwknop client in fwknoprc file to provide common settings for all stanzas
     final public static String DEFAULT_STANZA = "default";
 
@@ -58,6 +40,12 @@ public class RcFile {
     // List of key found in the rc file once parsed
     private Map<EnumFwknopRcKey, String> config;
 
+    // Stanza the settings are read from and saved to - null for the default stanza
+    private String stanza;
+
+    // Index of the stanzas of the rc file - null until the file is read
+    private RcIndex index;
+
     /**
      * Constructor
      *
@@ -79,46 +67,37 @@ public class RcFile {
             selectedStanza = DEFAULT_STANZA;
         }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(this.filepath))) {
-
-            String line;
-            EnumFwknopRcKey key;
-            String currentStanza = StringUtils.EMPTY;
-            this.config = new HashMap<>();
-
-            // Iterate over all lines in the rc file
-            while ((line = reader.readLine()) != null) {
-
-                // Detect stanza and set it as current to avoid parsing unwanted stanza
-                final Matcher stanzaMatcher = STANZA_PATTERN.matcher(line);
-                if (stanzaMatcher.find()) {
-                    currentStanza = stanzaMatcher.group(1).trim();
-                    continue;
-                }
-
-                // Parse only line for default and selected stanza
-                if (DEFAULT_STANZA.equals(currentStanza) || selectedStanza.equals(currentStanza)) {
-                    final Matcher keyMatcher = KEY_PATTERN.matcher(line.trim());
-                    if (keyMatcher.find()) {
-                        try {
-                            key = EnumFwknopRcKey.valueOf(keyMatcher.group(1).trim());
-                        } catch (final java.lang.IllegalArgumentException e) {
-                            LOGGER.warn("Unsupported variable: " + e.getMessage());
-                            continue;
-                        }
-                        this.config.put(key, keyMatcher.group(2).trim());
-                    }
-                }
-            }
-
-            reader.close();
+        this.stanza = selectedStanza;
 
+        // Read the bytes of the default and selected stanzas only when their location is known
+        try {
+            this.config = this.index != null ? this.index.getConfig(selectedStanza)
+                : RcIndex.loadConfig(this.filepath, selectedStanza);
         } catch (final IOException e) {
             LOGGER.error("Unable to open rc file : " + e.getMessage());
             throw (e);
         }
     }
 
+    /**
+     * Get the index of the stanzas of the rc file, reading the file the first time only
+     *
+     * @return the index of the rc file
+     * @throws IOException if the rc file cannot be read
+     */
+    public RcIndex getIndex() throws IOException {
+        if (this.index == null) {
+            try {
+                this.index = RcIndex.load(this.filepath);
+            } catch (final IOException e) {
+                LOGGER.error("Unable to open rc file *" + this.filepath + "* :" + e.getMessage());
+                throw (e);
+            }
+        }
+
+        return this.index;
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();
@@ -130,24 +109,12 @@ public class RcFile {
         return sb.toString();
     }
 
+    /**
+     * Save the settings to the stanza they have been read from. Only the lines of the stanza are
+     * rewritten, the other stanzas and the comments of the file are kept.
+     */
     public void save() {
-
-        final Path fileP = Paths.get(this.filepath);
-        final Charset charset = Charset.forName("utf-8");
-
-        try (BufferedWriter writer = Files.newBufferedWriter(fileP, charset)) {
-            writer.write("[" + DEFAULT_STANZA + "]\n");
-            for (final Entry<EnumFwknopRcKey, String> entry : this.config.entrySet()) {
-                if (!entry.getValue().isEmpty()) {
-                    writer.write(generateFwknoprcLine(entry.getKey(), entry.getValue()));
-                }
-            }
-        } catch (final IOException e) {
-            LOGGER.error("Unable to save rc file " + this.filepath, e);
-        }
-
-        fixPermissions();
-
+        saveAs(this.filepath);
     }
 
     /**
@@ -155,9 +122,10 @@ public class RcFile {
      *
      * Rc file contains passwords used to authenticate on fwknop server. We ensure the file
      * permissions as set accordingly
+     *
+     * @param file file to restrict to the local user
      */
-    private void fixPermissions() {
-        File file = new File(this.filepath);
+    static void fixPermissions(final File file) {
 
         // Clear all permissions for all users
         file.setReadable(false, false);
@@ -169,9 +137,23 @@ public class RcFile {
         file.setWritable(true, true);
     }
 
+    /**
+     * Save the rc file under another name. The new file is a copy of the current one where the
+     * stanza of the settings is rewritten.
+     *
+     * @param filename path to the new rc file
+     */
     public void saveAs(final String filename) {
+        try {
+            final RcDocument document = RcDocument.open(this.filepath, this.index);
+            document.setConfig(this.stanza, this.config);
+            this.index = document.write(filename);
+        } catch (final IOException e) {
+            LOGGER.error("Unable to save rc file " + filename, e);
+            this.index = null;
+        }
+
         this.filepath = filename;
-        save();
     }
 
     public void setConfig(final Map<EnumFwknopRcKey, String> context) {
@@ -196,40 +178,15 @@ public class RcFile {
      * @throws IOException
      */
     public List<String> lookUpStanza() throws IOException {
-        List<String> stanzaList = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(this.filepath))) {
-
-            String line;
-
-            while ((line = reader.readLine()) != null) {
-                final Matcher matcher = STANZA_PATTERN.matcher(line);
-
-                if (matcher.find()) {
-                    String stanza = matcher.group(1).trim();
-                    if (!DEFAULT_STANZA.equals(stanza)) {
-                        stanzaList.add(stanza);
-                    }
-                }
-            }
-
-            reader.close();
+        if (this.index != null) {
+            return new ArrayList<>(this.index.getStanzaNames());
+        }
 
+        try {
+            return new ArrayList<>(RcIndex.loadStanzaNames(this.filepath));
         } catch (final IOException e) {
             LOGGER.error("Unable to open rc file *" + this.filepath + "* :" + e.getMessage());
             throw (e);
         }
-
-        return stanzaList;
-    }
-
-    /**
-     * Create a line for an fwknoprc conf file.
-     *
-     * @param key Key to set
-     * @param value Value to set for the key
-     * @return an access file line as a string ready to be stored
-     */
-    private String generateFwknoprcLine(EnumFwknopRcKey key, String value) {
-        return String.format("%-32s    %s\n", key.toString(), value);
     }
 }
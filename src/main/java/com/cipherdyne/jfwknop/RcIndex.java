@@ -0,0 +1,556 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.jfwknop;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable index of all the stanzas of a fwknoprc file.
+ *
+ * The file is scanned once by a {@link RcTokenizer} and each stanza is stored with the line and byte
+ * ranges of its sections only, so that the index stays small whatever the size of the file. The
+ * settings of a configuration are then read from the ranges of the default and selected stanzas,
+ * without scanning the rest of the file. Sections that repeat the name of a stanza are merged into
+ * it, the later values overriding the earlier ones.
+ *
+ * Files larger than {@link #MAP_THRESHOLD} are memory-mapped rather than read onto the heap. Smaller
+ * files are read since a mapping is only released by the garbage collector, and prevents the file
+ * from being rewritten on some platforms until then.
+ *
+ * The index of files larger than {@link #SIDECAR_THRESHOLD} is persisted in a {@link RcIndexFile}
+ * along with the size and modification time of the file, so that it is loaded without scanning the
+ * file again as long as the file does not change.
+ */
+public final class RcIndex {
+
+    // Size from which files are memory-mapped
+    public static final long MAP_THRESHOLD = 1024 * 1024;
+
+    // Size from which the index of a file is persisted
+    public static final long SIDECAR_THRESHOLD = 64 * 1024;
+
+    // Path to the indexed rc file
+    private final String filepath;
+
+    // Size and modification time of the file when it was indexed
+    private final long length;
+    private final long lastModified;
+
+    // Number of lines of the file
+    private final int lineCount;
+
+    // Stanzas indexed by name, in the order of the file
+    private final Map<String, Stanza> stanzas;
+
+    // Names of the stanzas except the default one, in the order of the file
+    private final List<String> stanzaNames;
+
+    /**
+     * @param filepath path to the indexed rc file
+     * @param length size of the file when it was indexed
+     * @param lastModified modification time of the file when it was indexed
+     * @param lineCount number of lines of the file
+     * @param sections sections of the file indexed by stanza name, in the order of the file
+     */
+    RcIndex(final String filepath, final long length, final long lastModified, final int lineCount,
+        final Map<String, List<Section>> sections) {
+        this.filepath = filepath;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.lineCount = lineCount;
+
+        final Map<String, Stanza> stanzaMap = new LinkedHashMap<>();
+        final List<String> names = new ArrayList<>();
+        for (final Map.Entry<String, List<Section>> entry : sections.entrySet()) {
+            stanzaMap.put(entry.getKey(), new Stanza(entry.getKey(), entry.getValue()));
+            if (!RcFile.DEFAULT_STANZA.equals(entry.getKey())) {
+                names.add(entry.getKey());
+            }
+        }
+        this.stanzas = Collections.unmodifiableMap(stanzaMap);
+        this.stanzaNames = Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @param index index of a file
+     * @param lastModified new modification time of the file, whose content has not changed
+     */
+    RcIndex(final RcIndex index, final long lastModified) {
+        this.filepath = index.filepath;
+        this.length = index.length;
+        this.lastModified = lastModified;
+        this.lineCount = index.lineCount;
+        this.stanzas = index.stanzas;
+        this.stanzaNames = index.stanzaNames;
+    }
+
+    /**
+     * Index all the stanzas of a rc file, from its persisted index if it is up to date
+     *
+     * @param filepath path to the rc file
+     * @return the index of the file
+     * @throws IOException if the file cannot be read
+     */
+    public static RcIndex load(final String filepath) throws IOException {
+        final Path path = Paths.get(filepath);
+        final long length = Files.size(path);
+        if (length < SIDECAR_THRESHOLD) {
+            return scan(filepath);
+        }
+
+        final RcIndex persisted = RcIndexFile.read(filepath, length, Files.getLastModifiedTime(path).toMillis(), null);
+        if (persisted != null) {
+            return persisted;
+        }
+
+        final RcIndex index = scan(filepath);
+        RcIndexFile.write(index);
+        return index;
+    }
+
+    /**
+     * List the stanzas of a rc file. The names are read from the persisted index if it is up to
+     * date, without building the index itself.
+     *
+     * @param filepath path to the rc file
+     * @return the names of the stanzas except the default one, in the order of the file
+     * @throws IOException if the file cannot be read
+     */
+    public static List<String> loadStanzaNames(final String filepath) throws IOException {
+        final Path path = Paths.get(filepath);
+        final long length = Files.size(path);
+        if (length >= SIDECAR_THRESHOLD) {
+            final List<String> names = RcIndexFile.readStanzaNames(filepath, length,
+                Files.getLastModifiedTime(path).toMillis());
+            if (names != null) {
+                return names;
+            }
+        }
+
+        return load(filepath).getStanzaNames();
+    }
+
+    /**
+     * Scan a rc file and index all its stanzas
+     *
+     * @param filepath path to the rc file
+     * @return the index of the file
+     * @throws IOException if the file cannot be read
+     */
+    static RcIndex scan(final String filepath) throws IOException {
+        final Path path = Paths.get(filepath);
+        final IndexBuilder builder = new IndexBuilder();
+        final long length;
+        final long lastModified;
+        final int lineCount;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            lastModified = Files.getLastModifiedTime(path).toMillis();
+            length = channel.size();
+            lineCount = new RcTokenizer(builder).tokenize(read(channel, 0, length), 0, 0);
+            builder.end(lineCount, length);
+        }
+
+        return new RcIndex(filepath, length, lastModified, lineCount, builder.sections);
+    }
+
+    /**
+     * Read the settings of a single configuration of a rc file. Small files are scanned once without
+     * being indexed, the stanzas of larger ones are located with the persisted index.
+     *
+     * @param filepath path to the rc file
+     * @param selectedStanza stanza to load settings from - null for the default stanza only
+     * @return a new map of the settings of the default stanza overridden by the selected one
+     * @throws IOException if the file cannot be read
+     */
+    public static Map<EnumFwknopRcKey, String> loadConfig(final String filepath, final String selectedStanza)
+        throws IOException {
+        final Path path = Paths.get(filepath);
+        final long length = Files.size(path);
+        if (length >= SIDECAR_THRESHOLD) {
+            // Only keep the sections of the stanzas to read from the persisted index
+            final Set<String> names = new HashSet<>(Arrays.asList(RcFile.DEFAULT_STANZA, selectedStanza));
+            final RcIndex persisted = RcIndexFile.read(filepath, length, Files.getLastModifiedTime(path).toMillis(),
+                names);
+            return (persisted != null ? persisted : load(filepath)).getConfig(selectedStanza);
+        }
+
+        final Map<EnumFwknopRcKey, String> defaultSettings = new EnumMap<>(EnumFwknopRcKey.class);
+        final Map<EnumFwknopRcKey, String> stanzaSettings = new EnumMap<>(EnumFwknopRcKey.class);
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filepath), StandardOpenOption.READ)) {
+            new RcTokenizer(new RcTokenizer.Handler() {
+
+                private Map<EnumFwknopRcKey, String> current;
+
+                @Override
+                public boolean stanza(final String name, final int line, final long offset) {
+                    this.current = RcFile.DEFAULT_STANZA.equals(name) ? defaultSettings
+                        : name.equals(selectedStanza) ? stanzaSettings : null;
+                    return this.current != null;
+                }
+
+                @Override
+                public void setting(final EnumFwknopRcKey key, final String value, final int line) {
+                    this.current.put(key, value);
+                }
+            }).tokenize(read(channel, 0, channel.size()), 0, 0);
+        }
+
+        final Map<EnumFwknopRcKey, String> config = new HashMap<>(defaultSettings);
+        config.putAll(stanzaSettings);
+        return config;
+    }
+
+    /**
+     * Get a region of a file, memory-mapped if it is large enough
+     *
+     * @param channel channel of the file
+     * @param position offset of the region
+     * @param size size of the region
+     * @return the bytes of the region, from the position to the limit of the buffer
+     * @throws IOException if the region cannot be read or is larger than 2 GiB
+     */
+    static ByteBuffer read(final FileChannel channel, final long position, final long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Rc file too large: " + size + " bytes");
+        }
+        if (size >= MAP_THRESHOLD) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+            // Read until the region is complete or the end of the file is reached
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return the path to the indexed rc file
+     */
+    public String getFilepath() {
+        return this.filepath;
+    }
+
+    /**
+     * @return the size of the file when it was indexed
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return the modification time of the file when it was indexed
+     */
+    public long getLastModified() {
+        return this.lastModified;
+    }
+
+    /**
+     * @return the number of lines of the file
+     */
+    public int getLineCount() {
+        return this.lineCount;
+    }
+
+    /**
+     * @return the names of the stanzas except the default one, in the order of the file
+     */
+    public List<String> getStanzaNames() {
+        return this.stanzaNames;
+    }
+
+    /**
+     * @param name name of a stanza
+     * @return the stanza or null if the file does not define it
+     */
+    public Stanza getStanza(final String name) {
+        return this.stanzas.get(name);
+    }
+
+    /**
+     * Read the settings defined by a stanza itself
+     *
+     * @param name name of the stanza
+     * @return a new map of the settings, empty if the file does not define the stanza
+     * @throws IOException if the file cannot be read or has changed since it was indexed
+     */
+    public Map<EnumFwknopRcKey, String> getSettings(final String name) throws IOException {
+        final Map<EnumFwknopRcKey, String> settings = new EnumMap<>(EnumFwknopRcKey.class);
+        try (FileChannel channel = open()) {
+            readSettings(channel, name, settings);
+        }
+        return settings;
+    }
+
+    /**
+     * Build the settings of a configuration the way fwknop does: the settings of the default
+     * stanza overridden by the ones of the selected stanza
+     *
+     * @param selectedStanza stanza to load settings from - null for the default stanza only
+     * @return a new map of the settings that the caller can modify
+     * @throws IOException if the file cannot be read or has changed since it was indexed
+     */
+    public Map<EnumFwknopRcKey, String> getConfig(final String selectedStanza) throws IOException {
+        final Map<EnumFwknopRcKey, String> config = new HashMap<>();
+        try (FileChannel channel = open()) {
+            readSettings(channel, RcFile.DEFAULT_STANZA, config);
+            if (selectedStanza != null && !RcFile.DEFAULT_STANZA.equals(selectedStanza)) {
+                readSettings(channel, selectedStanza, config);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * @return a channel on the indexed file
+     * @throws IOException if the file cannot be opened or has changed since it was indexed
+     */
+    FileChannel open() throws IOException {
+        final Path path = Paths.get(this.filepath);
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        if (channel.size() != this.length || Files.getLastModifiedTime(path).toMillis() != this.lastModified) {
+            channel.close();
+            throw new IOException("Rc file " + this.filepath + " has changed since it was indexed");
+        }
+        return channel;
+    }
+
+    /**
+     * Read the sections of a stanza and put their settings in a map
+     */
+    private void readSettings(final FileChannel channel, final String name,
+        final Map<EnumFwknopRcKey, String> settings) throws IOException {
+        final Stanza stanza = this.stanzas.get(name);
+        if (stanza == null) {
+            return;
+        }
+
+        final SectionReader reader = new SectionReader(name, settings);
+        final RcTokenizer tokenizer = new RcTokenizer(reader);
+        final ByteBuffer next = ByteBuffer.allocate(1);
+        for (final Section section : stanza.sections) {
+            reader.start(section.startOffset);
+            tokenizer.tokenize(read(channel, section.startOffset, section.endOffset - section.startOffset),
+                section.startOffset, section.startLine);
+
+            // Guard against a file rewritten with the same size within the same modification time:
+            // the section has to start with its stanza line and be followed by another one
+            next.clear();
+            if (!reader.opened || (section.endOffset < this.length
+                && (channel.read(next, section.endOffset) != 1 || next.get(0) != '['))) {
+                RcIndexFile.delete(this.filepath);
+                throw new IOException("Rc file " + this.filepath + " does not match its index");
+            }
+        }
+    }
+
+    /**
+     * @return all the sections of the file, in the order of the file
+     */
+    List<Section> getSections() {
+        final List<Section> sections = new ArrayList<>();
+        for (final Stanza stanza : this.stanzas.values()) {
+            sections.addAll(stanza.sections);
+        }
+        sections.sort((first, second) -> Long.compare(first.startOffset, second.startOffset));
+        return sections;
+    }
+
+    /**
+     * Stanza of a rc file
+     */
+    public static final class Stanza {
+
+        private final String name;
+
+        // Sections defining the stanza, in the order of the file
+        private final List<Section> sections;
+
+        private Stanza(final String name, final List<Section> sections) {
+            this.name = name;
+            this.sections = Collections.unmodifiableList(sections);
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return the index, starting at 0, of the line that opens the stanza
+         */
+        public int getStartLine() {
+            return this.sections.get(0).startLine;
+        }
+
+        /**
+         * @return the index of the line following the last line of the stanza
+         */
+        public int getEndLine() {
+            return this.sections.get(this.sections.size() - 1).endLine;
+        }
+
+        /**
+         * @return the offset in the file of the line that opens the stanza
+         */
+        public long getStartOffset() {
+            return this.sections.get(0).startOffset;
+        }
+
+        /**
+         * @return the offset in the file following the last byte of the stanza
+         */
+        public long getEndOffset() {
+            return this.sections.get(this.sections.size() - 1).endOffset;
+        }
+
+        /**
+         * @return the sections defining the stanza, in the order of the file
+         */
+        List<Section> getSections() {
+            return this.sections;
+        }
+
+        /**
+         * @return true if the section is the first one of the stanza
+         */
+        boolean isFirstSection(final Section section) {
+            return this.sections.get(0) == section;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + this.name + "] lines " + (getStartLine() + 1) + "-" + getEndLine();
+        }
+    }
+
+    /**
+     * Lines of a rc file from a stanza line to the next one
+     */
+    static final class Section {
+
+        final String name;
+        final int startLine;
+        final long startOffset;
+        int endLine;
+        long endOffset;
+
+        Section(final String name, final int startLine, final long startOffset) {
+            this.name = name;
+            this.startLine = startLine;
+            this.startOffset = startOffset;
+        }
+    }
+
+    /**
+     * Collect the settings of the sections of a stanza
+     */
+    private static final class SectionReader implements RcTokenizer.Handler {
+
+        private final String name;
+        private final Map<EnumFwknopRcKey, String> settings;
+
+        // Offset of the section being read
+        private long startOffset;
+
+        // Whether the section being read starts with the line of the stanza
+        private boolean opened;
+
+        private SectionReader(final String name, final Map<EnumFwknopRcKey, String> settings) {
+            this.name = name;
+            this.settings = settings;
+        }
+
+        private void start(final long offset) {
+            this.startOffset = offset;
+            this.opened = false;
+        }
+
+        @Override
+        public boolean stanza(final String stanzaName, final int line, final long offset) {
+            if (offset == this.startOffset) {
+                this.opened = this.name.equals(stanzaName);
+            }
+            return this.opened;
+        }
+
+        @Override
+        public void setting(final EnumFwknopRcKey key, final String value, final int line) {
+            this.settings.put(key, value);
+        }
+    }
+
+    /**
+     * Collect the sections of the stanzas from the tokens of a rc file
+     */
+    private static final class IndexBuilder implements RcTokenizer.Handler {
+
+        // Sections indexed by stanza name, in the order of the file
+        private final Map<String, List<Section>> sections = new LinkedHashMap<>();
+
+        // Section being read - null above the first stanza
+        private Section current;
+
+        @Override
+        public boolean stanza(final String name, final int line, final long offset) {
+            end(line, offset);
+            this.current = new Section(name, line, offset);
+            this.sections.computeIfAbsent(name, stanza -> new ArrayList<>(1)).add(this.current);
+
+            // Settings are read from the sections when a configuration is requested
+            return false;
+        }
+
+        @Override
+        public void setting(final EnumFwknopRcKey key, final String value, final int line) {
+            // Not called since no settings are requested
+        }
+
+        /**
+         * End the current section
+         *
+         * @param line index of the line following the section
+         * @param offset offset in the file following the section
+         */
+        private void end(final int line, final long offset) {
+            if (this.current != null) {
+                this.current.endLine = line;
+                this.current.endOffset = offset;
+            }
+        }
+    }
+}
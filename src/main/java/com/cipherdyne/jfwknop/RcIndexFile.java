@@ -0,0 +1,361 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.jfwknop;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Persisted {@link RcIndex} of a rc file.
+ *
+ * The index is stored in the index directory of the JFwknop working directory, under a name derived
+ * from the absolute path of the rc file, rather than next to the rc file: rc files may live in
+ * directories the user cannot write to, and any name next to them could clash with the single
+ * stanza files created when a multi stanza file is loaded.
+ *
+ * It records the size and modification time of the rc file along with the name, line range, byte
+ * offset and length of each stanza section, as fixed size records holding the hash of the names so
+ * that the sections of a few stanzas are found without decoding all the names. It is ignored, and
+ * rebuilt by {@link RcIndex#load}, as soon as the rc file no longer has the recorded size and
+ * modification time.
+ */
+public final class RcIndexFile {
+
+    static final Logger LOGGER = LogManager.getLogger(RcIndexFile.class.getName());
+
+    // Directory of the index files in the JFwknop working directory
+    public static final String INDEX_DIRECTORY = "index";
+
+    private static final int MAGIC = 0x4a46494e;
+    private static final int VERSION = 1;
+
+    // Size of a section record: name hash, flags, name offset and length, start and end lines, byte
+    // offset and length
+    private static final int RECORD_SIZE = 6 * 4 + 2 * 8;
+
+    // Flag of the records of the first section of each stanza
+    private static final int FIRST_SECTION = 1;
+
+    // Files modified more recently than this, in milliseconds, are not persisted: they could be
+    // changed again without their modification time changing on file systems with a coarse clock
+    private static final long RACY_DELAY = 2000;
+
+    private RcIndexFile() {
+    }
+
+    /**
+     * @param filepath path to a rc file
+     * @return the index file of the rc file
+     */
+    public static File getFile(final String filepath) {
+        final String absolutePath = new File(filepath).getAbsolutePath();
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-256").digest(absolutePath.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder();
+            for (int ix = 0; ix < 16; ix++) {
+                name.append(String.format("%02x", hash[ix]));
+            }
+            return new File(JFwknopConfig.getJfwknopWorkingDirectory() + INDEX_DIRECTORY, name + ".idx");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Read the persisted index of a rc file
+     *
+     * @param filepath path to the rc file
+     * @param length current size of the rc file
+     * @param lastModified current modification time of the rc file
+     * @param names stanzas to keep - null to keep all of them
+     * @return the index, limited to the requested stanzas, or null if there is no persisted index or
+     * if it is out of date
+     */
+    static RcIndex read(final String filepath, final long length, final long lastModified, final Set<String> names) {
+        try (Records records = Records.open(filepath, length, lastModified)) {
+            if (records == null) {
+                return null;
+            }
+
+            // Only decode the names whose hash matches one of the requested stanzas
+            final Set<Integer> hashes = new HashSet<>();
+            if (names != null) {
+                for (final String name : names) {
+                    if (name != null) {
+                        hashes.add(name.hashCode());
+                    }
+                }
+            }
+
+            final Map<String, List<RcIndex.Section>> sections = new LinkedHashMap<>();
+            for (int ix = 0; ix < records.count; ix++) {
+                if (names != null && !hashes.contains(records.getNameHash(ix))) {
+                    continue;
+                }
+                final String name = records.getName(ix);
+                if (names != null && !names.contains(name)) {
+                    continue;
+                }
+                sections.computeIfAbsent(name, stanza -> new ArrayList<>(1)).add(records.getSection(ix, name));
+            }
+
+            return new RcIndex(filepath, length, lastModified, records.lineCount, sections);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Unable to read the index of rc file " + filepath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Read the names of the stanzas from the persisted index of a rc file, without building the
+     * index itself
+     *
+     * @param filepath path to the rc file
+     * @param length current size of the rc file
+     * @param lastModified current modification time of the rc file
+     * @return the names of the stanzas except the default one, in the order of the file, or null if
+     * there is no persisted index or if it is out of date
+     */
+    static List<String> readStanzaNames(final String filepath, final long length, final long lastModified) {
+        try (Records records = Records.open(filepath, length, lastModified)) {
+            if (records == null) {
+                return null;
+            }
+
+            final List<String> names = new ArrayList<>(records.count);
+            for (int ix = 0; ix < records.count; ix++) {
+                if (records.isFirstSection(ix)) {
+                    final String name = records.getName(ix);
+                    if (!RcFile.DEFAULT_STANZA.equals(name)) {
+                        names.add(name);
+                    }
+                }
+            }
+            return names;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Unable to read the index of rc file " + filepath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean regionMatches(final ByteBuffer data, final int position, final byte[] bytes) {
+        if (data.limit() - position < bytes.length) {
+            return false;
+        }
+        for (int ix = 0; ix < bytes.length; ix++) {
+            if (data.get(position + ix) != bytes[ix]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Persist the index of a rc file. The index file is replaced atomically and failures are only
+     * logged since the index can always be rebuilt.
+     *
+     * @param index index to persist
+     */
+    static void write(final RcIndex index) {
+        if (index.getLastModified() > System.currentTimeMillis() - RACY_DELAY) {
+            return;
+        }
+
+        final File file = getFile(index.getFilepath());
+        final File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.warn("Unable to create the rc index directory " + directory);
+            return;
+        }
+
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile("rcindex", ".tmp", directory);
+
+            // Stanza names are only readable by the owner, like the rc files
+            RcFile.fixPermissions(tmpFile);
+
+            final List<RcIndex.Section> sections = index.getSections();
+            final byte[] path = new File(index.getFilepath()).getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(path.length);
+                out.write(path);
+                out.writeLong(index.getLength());
+                out.writeLong(index.getLastModified());
+                out.writeInt(index.getLineCount());
+                out.writeInt(sections.size());
+
+                // Fixed size records followed by the names they refer to, encoded again rather than
+                // kept to write the index of large files with little memory
+                int nameOffset = 0;
+                for (final RcIndex.Section section : sections) {
+                    final byte[] name = section.name.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(section.name.hashCode());
+                    out.writeInt(index.getStanza(section.name).isFirstSection(section) ? FIRST_SECTION : 0);
+                    out.writeInt(nameOffset);
+                    out.writeInt(name.length);
+                    out.writeInt(section.startLine);
+                    out.writeInt(section.endLine);
+                    out.writeLong(section.startOffset);
+                    out.writeLong(section.endOffset - section.startOffset);
+                    nameOffset += name.length;
+                }
+                for (final RcIndex.Section section : sections) {
+                    out.write(section.name.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+            try {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmpFile = null;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to write the index of rc file " + index.getFilepath() + ": " + e.getMessage());
+        } finally {
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Delete the persisted index of a rc file
+     *
+     * @param filepath path to the rc file
+     */
+    static void delete(final String filepath) {
+        getFile(filepath).delete();
+    }
+
+    /**
+     * Section records of an up to date index file
+     */
+    private static final class Records implements AutoCloseable {
+
+        private final FileChannel channel;
+        private final ByteBuffer data;
+        private final int lineCount;
+        private final int count;
+        private final int recordsStart;
+        private final int namesStart;
+
+        // Buffer the names are copied to before being decoded
+        private byte[] scratch = new byte[256];
+
+        private Records(final FileChannel channel, final ByteBuffer data) {
+            this.channel = channel;
+            this.data = data;
+            this.lineCount = data.getInt();
+            this.count = data.getInt();
+            this.recordsStart = data.position();
+            this.namesStart = this.recordsStart + this.count * RECORD_SIZE;
+        }
+
+        /**
+         * @return the records of the index file of a rc file, or null if there is no index file or
+         * if it does not match the rc file
+         */
+        private static Records open(final String filepath, final long length, final long lastModified)
+            throws IOException {
+            final File file = getFile(filepath);
+            if (!file.isFile()) {
+                return null;
+            }
+
+            final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                final ByteBuffer data = RcIndex.read(channel, 0, channel.size());
+                final byte[] path = new File(filepath).getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+                if (data.getInt() == MAGIC && data.getInt() == VERSION && data.getInt() == path.length
+                    && regionMatches(data, data.position(), path)) {
+                    data.position(data.position() + path.length);
+                    if (data.getLong() == length && data.getLong() == lastModified) {
+                        return new Records(channel, data);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+
+            channel.close();
+            return null;
+        }
+
+        private int getNameHash(final int index) {
+            return this.data.getInt(this.recordsStart + index * RECORD_SIZE);
+        }
+
+        private boolean isFirstSection(final int index) {
+            return (this.data.getInt(this.recordsStart + index * RECORD_SIZE + 4) & FIRST_SECTION) != 0;
+        }
+
+        private String getName(final int index) {
+            final int record = this.recordsStart + index * RECORD_SIZE;
+            final int nameOffset = this.namesStart + this.data.getInt(record + 8);
+            final int nameLength = this.data.getInt(record + 12);
+            if (this.scratch.length < nameLength) {
+                this.scratch = new byte[nameLength];
+            }
+            for (int pos = 0; pos < nameLength; pos++) {
+                this.scratch[pos] = this.data.get(nameOffset + pos);
+            }
+            return new String(this.scratch, 0, nameLength, StandardCharsets.UTF_8);
+        }
+
+        private RcIndex.Section getSection(final int index, final String name) {
+            final int record = this.recordsStart + index * RECORD_SIZE;
+            final RcIndex.Section section = new RcIndex.Section(name, this.data.getInt(record + 16),
+                this.data.getLong(record + 24));
+            section.endLine = this.data.getInt(record + 20);
+            section.endOffset = section.startOffset + this.data.getLong(record + 32);
+            return section;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
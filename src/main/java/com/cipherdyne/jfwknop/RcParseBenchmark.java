@@ -0,0 +1,247 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.jfwknop;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmark of the rc file parsers.
+ *
+ * A synthetic fwknoprc file is generated and the settings of all its stanzas are read repeatedly
+ * with the {@link RcTokenizer} and with the regular expressions the rc files used to be parsed with.
+ * Both must find the same settings. The time needed to only index the stanzas is measured as well,
+ * by scanning the file every time rather than reading its persisted index.
+ * The average time and memory allocated per parse are printed for each of them:
+ *
+ * <pre>
+ * java -cp com.cipherdyne.jfwknop-x.y.z.jar com.cipherdyne.jfwknop.RcParseBenchmark [lines] [iterations]
+ * </pre>
+ */
+public class RcParseBenchmark {
+
+    // Former patterns of the rc file parser
+    private static final Pattern STANZA_PATTERN = Pattern.compile("^\\[(.*)\\]");
+    private static final Pattern KEY_PATTERN = Pattern.compile("^(?!#)(.*)\\s+(.*)");
+
+    private static final int DEFAULT_LINES = 100000;
+    private static final int DEFAULT_ITERATIONS = 20;
+
+    // Parses run before measuring to let the JIT compile both parsers
+    private static final int WARM_UP_ITERATIONS = 10;
+
+    public static void main(final String[] args) throws IOException {
+        final int lines = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_LINES;
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+
+        final File file = File.createTempFile("fwknoprc-bench", ".rc");
+        file.deleteOnExit();
+        final int stanzas = generate(file, lines);
+        System.out.println("Parsing " + file + ": " + file.length() / 1024 + " KiB, " + lines + " lines, " + stanzas
+            + " stanzas, " + iterations + " iterations");
+
+        checkSameSettings(file);
+
+        final String filepath = file.getPath();
+        run("regex    ", iterations, () -> parseWithRegex(filepath).size());
+        run("tokenizer", iterations, () -> parseWithTokenizer(filepath).size());
+        run("index    ", iterations, () -> RcIndex.scan(filepath).getStanzaNames().size());
+    }
+
+    /**
+     * Write a rc file made of stanzas of a few settings, comments and blank lines
+     *
+     * @param file file to write
+     * @param lines approximate number of lines to write
+     * @return the number of stanzas written
+     */
+    private static int generate(final File file, final int lines) throws IOException {
+        int written = 0;
+        int stanza = 0;
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), Charset.defaultCharset())) {
+            writer.write("[" + RcFile.DEFAULT_STANZA + "]\n");
+            writer.write("SPA_SERVER_PORT                     62201\n");
+            writer.write("USE_HMAC                            Y\n\n");
+            written += 4;
+
+            while (written < lines) {
+                writer.write("# Server " + stanza + "\n");
+                writer.write("[server-" + stanza + "]\n");
+                writer.write(String.format("%-32s    %s\n", EnumFwknopRcKey.SPA_SERVER, "10." + (stanza >> 16 & 0xff)
+                    + "." + (stanza >> 8 & 0xff) + "." + (stanza & 0xff)));
+                writer.write(String.format("%-32s    %s\n", EnumFwknopRcKey.ACCESS, "tcp/" + (1024 + stanza % 60000)));
+                writer.write("ALLOW_IP\tsource\n");
+                writer.write(String.format("%-32s    %s\n", EnumFwknopRcKey.KEY_BASE64, "a2V5LWZvci1zZXJ2ZXI" + stanza));
+                writer.write(String.format("%-32s    %s\n", EnumFwknopRcKey.HMAC_KEY_BASE64, "aG1hYy1rZXk" + stanza));
+                writer.write("  FW_TIMEOUT    " + (30 + stanza % 90) + "  \n");
+                writer.write(stanza % 100 == 0 ? "LEGACY_OPTION  Y\n" : "#USE_GPG Y\n");
+                writer.write("\n");
+                written += 10;
+                stanza++;
+            }
+        }
+
+        return stanza;
+    }
+
+    /**
+     * Index all stanzas of a rc file with the former regular expressions. Unsupported keys are
+     * skipped without being logged so that only the parsing is measured.
+     *
+     * @param filepath rc file to parse
+     * @return the settings of each stanza
+     */
+    static Map<String, Map<EnumFwknopRcKey, String>> parseWithRegex(final String filepath) throws IOException {
+        final Map<String, Map<EnumFwknopRcKey, String>> stanzas = new LinkedHashMap<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(filepath))) {
+            String line;
+            Map<EnumFwknopRcKey, String> current = null;
+
+            while ((line = reader.readLine()) != null) {
+                final Matcher stanzaMatcher = STANZA_PATTERN.matcher(line);
+                if (stanzaMatcher.find()) {
+                    current = stanzas.computeIfAbsent(stanzaMatcher.group(1).trim(),
+                        name -> new EnumMap<>(EnumFwknopRcKey.class));
+                    continue;
+                }
+
+                if (current != null) {
+                    final Matcher keyMatcher = KEY_PATTERN.matcher(line.trim());
+                    if (keyMatcher.find()) {
+                        try {
+                            current.put(EnumFwknopRcKey.valueOf(keyMatcher.group(1).trim()), keyMatcher.group(2).trim());
+                        } catch (final IllegalArgumentException e) {
+                            // Unsupported variable
+                        }
+                    }
+                }
+            }
+        }
+
+        return stanzas;
+    }
+
+    /**
+     * Read the settings of all stanzas of a rc file with the tokenizer
+     *
+     * @param filepath rc file to parse
+     * @return the settings of each stanza
+     */
+    static Map<String, Map<EnumFwknopRcKey, String>> parseWithTokenizer(final String filepath) throws IOException {
+        final Map<String, Map<EnumFwknopRcKey, String>> stanzas = new LinkedHashMap<>();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filepath), StandardOpenOption.READ)) {
+            new RcTokenizer(new RcTokenizer.Handler() {
+
+                private Map<EnumFwknopRcKey, String> current;
+
+                @Override
+                public boolean stanza(final String name, final int line, final long offset) {
+                    this.current = stanzas.computeIfAbsent(name, stanza -> new EnumMap<>(EnumFwknopRcKey.class));
+                    return true;
+                }
+
+                @Override
+                public void setting(final EnumFwknopRcKey key, final String value, final int line) {
+                    this.current.put(key, value);
+                }
+            }).tokenize(RcIndex.read(channel, 0, channel.size()), 0, 0);
+        }
+
+        return stanzas;
+    }
+
+    /**
+     * Check that both parsers find the same stanzas and settings, and that the settings read from
+     * the index of a few stanzas match them
+     */
+    private static void checkSameSettings(final File file) throws IOException {
+        final Map<String, Map<EnumFwknopRcKey, String>> expected = parseWithRegex(file.getPath());
+        if (!expected.equals(parseWithTokenizer(file.getPath()))) {
+            throw new IllegalStateException("Parsers disagree on the settings");
+        }
+
+        final RcIndex index = RcIndex.scan(file.getPath());
+        if (expected.size() != index.getStanzaNames().size() + 1) {
+            throw new IllegalStateException("Index has " + (index.getStanzaNames().size() + 1) + " stanzas instead of "
+                + expected.size());
+        }
+        for (final String name : new String[]{RcFile.DEFAULT_STANZA, index.getStanzaNames().get(0),
+            index.getStanzaNames().get(index.getStanzaNames().size() - 1)}) {
+            if (!expected.get(name).equals(index.getSettings(name))) {
+                throw new IllegalStateException("Index disagrees on stanza " + name);
+            }
+        }
+    }
+
+    private static void run(final String name, final int iterations, final Parse parse) throws IOException {
+        for (int ix = 0; ix < WARM_UP_ITERATIONS; ix++) {
+            parse.run();
+        }
+
+        final long allocatedBefore = getAllocatedBytes();
+        final long start = System.nanoTime();
+        for (int ix = 0; ix < iterations; ix++) {
+            parse.run();
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = getAllocatedBytes() - allocatedBefore;
+
+        System.out.println(String.format("%s: %8.2f ms/parse, allocated %s", name, elapsed / 1e6 / iterations,
+            allocatedBefore < 0 ? "n/a" : String.format("%.1f MiB/parse", allocated / 1048576.0 / iterations)));
+    }
+
+    /**
+     * @return the number of bytes allocated by the current thread, or -1 if the JVM does not tell
+     */
+    private static long getAllocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Parse of the benchmarked file
+     */
+    private interface Parse {
+
+        /**
+         * @return the number of stanzas found
+         */
+        int run() throws IOException;
+    }
+}
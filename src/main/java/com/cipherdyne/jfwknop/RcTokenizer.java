@@ -0,0 +1,294 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.jfwknop;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Tokenizer of fwknoprc files.
+ *
+ * The bytes of the file, usually memory-mapped, are scanned in place to recognize stanzas, comments
+ * and key/value pairs. Keys are looked up in a hash table of the rc keys without building a String
+ * and the settings of the sections the {@link Handler} is not interested in are skipped, so that
+ * only the stanza names and the values it asks for are decoded.
+ *
+ * Lines are split the way the former regular expressions did: a stanza line starts with '[' and its
+ * name ends at the last ']', a setting is a line not starting with '#' whose value is the text
+ * following its last whitespace. Names and values are decoded with the platform charset, which has
+ * to be ASCII compatible, as FileReader did.
+ */
+public final class RcTokenizer {
+
+    static final Logger LOGGER = LogManager.getLogger(RcTokenizer.class.getName());
+
+    // Open addressing table of the rc keys indexed by the hash of their name
+    private static final EnumFwknopRcKey[] KEYS = buildKeyTable();
+    private static final int KEY_MASK = KEYS.length - 1;
+
+    /**
+     * Receiver of the tokens of a rc file
+     */
+    public interface Handler {
+
+        /**
+         * @param name name of the stanza
+         * @param line index, starting at 0, of the line that opens the stanza
+         * @param offset offset in the file of the line that opens the stanza
+         * @return true to receive the settings of the stanza, false to skip them
+         */
+        boolean stanza(String name, int line, long offset);
+
+        /**
+         * @param key key of the setting
+         * @param value value of the setting
+         * @param line index, starting at 0, of the line of the setting
+         */
+        void setting(EnumFwknopRcKey key, String value, int line);
+    }
+
+    private final Handler handler;
+
+    private final Charset charset = Charset.defaultCharset();
+
+    // Bytes being scanned
+    private ByteBuffer data;
+
+    // Buffer the names and values are copied to before being decoded
+    private byte[] scratch = new byte[256];
+
+    // Index of the line being scanned
+    private int line;
+
+    // Whether the handler wants the settings of the current section
+    private boolean wanted;
+
+    // Unsupported keys already reported - null until one is found
+    private Set<String> unknownKeys;
+
+    /**
+     * @param handler receiver of the tokens
+     */
+    public RcTokenizer(final Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Hand the tokens of a region of a rc file to the handler. Lines above the first stanza of the
+     * region are skipped.
+     *
+     * @param region bytes of the region from its position to its limit, which must start a line
+     * @param offset offset in the file of the position of the region
+     * @param firstLine index of the first line of the region in the file
+     * @return the index of the line following the region
+     */
+    public int tokenize(final ByteBuffer region, final long offset, final int firstLine) {
+        this.data = region;
+        this.line = firstLine;
+        this.wanted = false;
+
+        final int limit = region.limit();
+        final long base = offset - region.position();
+        int lineStart = region.position();
+
+        for (int pos = lineStart; pos < limit; pos++) {
+            final byte b = region.get(pos);
+            if (b == '\n' || b == '\r') {
+                tokenizeLine(lineStart, pos, base);
+                this.line++;
+
+                // A '\n' following a '\r' does not end another line
+                if (b == '\r' && pos + 1 < limit && region.get(pos + 1) == '\n') {
+                    pos++;
+                }
+                lineStart = pos + 1;
+            }
+        }
+
+        if (lineStart < limit) {
+            tokenizeLine(lineStart, limit, base);
+            this.line++;
+        }
+
+        this.data = null;
+        return this.line;
+    }
+
+    /**
+     * Recognize a line of the data
+     *
+     * @param start index of the first byte of the line
+     * @param end index following the last byte of the line
+     * @param base offset in the file of the index 0 of the data
+     */
+    private void tokenizeLine(final int start, final int end, final long base) {
+        final ByteBuffer bytes = this.data;
+
+        // Stanza: '[' at the very start of the line and a ']' further on
+        if (end > start && bytes.get(start) == '[') {
+            int close = end - 1;
+            while (close > start && bytes.get(close) != ']') {
+                close--;
+            }
+            if (close > start) {
+                this.wanted = this.handler.stanza(decodeTrimmed(start + 1, close), this.line, base + start);
+                return;
+            }
+        }
+
+        if (!this.wanted) {
+            return;
+        }
+
+        // Skip blank lines and comments
+        int from = start;
+        int to = end;
+        while (from < to && isBlank(bytes.get(from))) {
+            from++;
+        }
+        while (to > from && isBlank(bytes.get(to - 1))) {
+            to--;
+        }
+        if (from == to || bytes.get(from) == '#') {
+            return;
+        }
+
+        // The value follows the last whitespace of the line
+        int separator = to - 1;
+        while (separator > from && !isWhitespace(bytes.get(separator))) {
+            separator--;
+        }
+        if (!isWhitespace(bytes.get(separator))) {
+            return;
+        }
+
+        int keyEnd = separator;
+        while (keyEnd > from && isBlank(bytes.get(keyEnd - 1))) {
+            keyEnd--;
+        }
+        final EnumFwknopRcKey key = lookUpKey(from, keyEnd);
+        if (key == null) {
+            reportUnknownKey(from, keyEnd);
+            return;
+        }
+
+        this.handler.setting(key, decodeTrimmed(separator + 1, to), this.line);
+    }
+
+    /**
+     * @return the rc key whose name is the range of the data, or null if there is none
+     */
+    private EnumFwknopRcKey lookUpKey(final int start, final int end) {
+        int hash = 0;
+        for (int ix = start; ix < end; ix++) {
+            hash = 31 * hash + (this.data.get(ix) & 0xff);
+        }
+
+        for (int slot = spread(hash) & KEY_MASK; KEYS[slot] != null; slot = (slot + 1) & KEY_MASK) {
+            final String name = KEYS[slot].name();
+            if (name.length() == end - start && regionMatches(name, start)) {
+                return KEYS[slot];
+            }
+        }
+
+        return null;
+    }
+
+    private boolean regionMatches(final String name, final int start) {
+        for (int ix = 0; ix < name.length(); ix++) {
+            if (name.charAt(ix) != (this.data.get(start + ix) & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Warn about an unsupported key once per file
+     */
+    private void reportUnknownKey(final int start, final int end) {
+        if (this.unknownKeys == null) {
+            this.unknownKeys = new HashSet<>();
+        }
+        final String name = decode(start, end);
+        if (this.unknownKeys.add(name)) {
+            LOGGER.warn("Unsupported variable: " + name);
+        }
+    }
+
+    private String decodeTrimmed(int start, int end) {
+        while (start < end && isBlank(this.data.get(start))) {
+            start++;
+        }
+        while (end > start && isBlank(this.data.get(end - 1))) {
+            end--;
+        }
+        return decode(start, end);
+    }
+
+    private String decode(final int start, final int end) {
+        final int length = end - start;
+        if (this.data.hasArray()) {
+            return new String(this.data.array(), this.data.arrayOffset() + start, length, this.charset);
+        }
+
+        if (this.scratch.length < length) {
+            this.scratch = new byte[Math.max(length, this.scratch.length * 2)];
+        }
+        for (int ix = 0; ix < length; ix++) {
+            this.scratch[ix] = this.data.get(start + ix);
+        }
+        return new String(this.scratch, 0, length, this.charset);
+    }
+
+    /**
+     * @return true for the bytes removed by String.trim()
+     */
+    private static boolean isBlank(final byte b) {
+        return (b & 0xff) <= ' ';
+    }
+
+    /**
+     * @return true for the whitespaces matched by \s in a line
+     */
+    private static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\t' || b == 0x0B || b == '\f';
+    }
+
+    private static int spread(final int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static EnumFwknopRcKey[] buildKeyTable() {
+        final EnumFwknopRcKey[] values = EnumFwknopRcKey.values();
+        final EnumFwknopRcKey[] table = new EnumFwknopRcKey[Integer.highestOneBit(values.length * 4)];
+        for (final EnumFwknopRcKey key : values) {
+            int slot = spread(key.name().hashCode()) & (table.length - 1);
+            while (table[slot] != null) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+            table[slot] = key;
+        }
+        return table;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.jfwknop;
+
+import com.cipherdyne.gui.IConsole;
+import com.cipherdyne.knock.EnumKnockError;
+import com.cipherdyne.knock.EnumKnockOutcome;
+import com.cipherdyne.knock.EnumKnockPhase;
+import com.cipherdyne.knock.KnockGrantCache;
+import com.cipherdyne.knock.KnockRateLimiter;
+import com.cipherdyne.knock.KnockResult;
+import com.cipherdyne.knock.KnockResultEvent;
+import com.cipherdyne.knock.KnockTarget;
+import com.cipherdyne.knock.KnockTimings;
+import com.cipherdyne.knock.PortProbe;
+import com.cipherdyne.knock.PortProbeResult;
+import com.cipherdyne.knock.RateLimitExceededException;
+import com.cipherdyne.spa.SpaEncoder;
+import com.cipherdyne.spa.SpaException;
+import com.cipherdyne.spa.SpaPacket;
+import com.cipherdyne.spa.SpaSender;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * This class knocks once with the in-process SPA engine. It is the counterpart of
+ * {@link ExternalCommand} that does not need to run the fwknop binary.
+ */
+public class SpaCommand implements IKnockCommand {
+
+    // Logger
+    static final Logger LOGGER = LogManager.getLogger(SpaCommand.class.getName());
+
+    // Maximum age of a prepared packet in milliseconds. This is well within the default 120
+    // seconds timestamp window of fwknopd (MAX_SPA_PACKET_AGE), even with a small clock skew.
+    private static final long MAX_PREPARED_PACKET_AGE = 30000;
+
+    // Encoder used to build SPA packets from the rc settings
+    private final SpaEncoder encoder;
+
+    // rc settings of the knock, used to rate limit and verify it
+    private final Map<EnumFwknopRcKey, String> config;
+
+    // Sender used to put SPA packets on the wire
+    private final SpaSender sender;
+
+    // Set to true to display the SPA packets
+    private final boolean verbose;
+
+    // Set to true to build the SPA packets without sending them
+    private final boolean test;
+
+    // Packet prepared ahead of the next knock - null if none
+    private final AtomicReference<SpaPacket> preparedPacket = new AtomicReference<>();
+
+    // Set to false when the command has to be stoppped
+    private volatile boolean isRunning;
+
+    // IConsole interface used to log the SPA packets - the results are published on the knock event bus
+    private final IConsole console;
+
+    // Configuration knocked, used to report the latencies - null if unknown
+    private final KnockTarget target;
+
+    // Timings of the command setup, reported along with the first knock - null once reported
+    private final AtomicReference<KnockTimings> setupTimings;
+
+    // Set to true to knock even if the access is still open from a previous knock
+    private final boolean renew;
+
+    /**
+     * SPA command constructor
+     *
+     * @param config fwknoprc settings of the stanza to knock
+     * @param verbose true to display the SPA packets
+     * @param test true to build the SPA packets without sending them
+     * @param console IConsole appender to log the SPA packets
+     */
+    public SpaCommand(final Map<EnumFwknopRcKey, String> config, boolean verbose, boolean test, IConsole console) {
+        this(config, verbose, test, console, null, null, false);
+    }
+
+    /**
+     * SPA command constructor with latency reporting
+     *
+     * @param config fwknoprc settings of the stanza to knock
+     * @param verbose true to display the SPA packets
+     * @param test true to build the SPA packets without sending them
+     * @param console IConsole appender to log the SPA packets
+     * @param target configuration knocked, used to report the latencies - null if unknown
+     * @param setupTimings timings of the command setup - null if not measured
+     * @param renew true to knock even if the access is still open, as periodic knocks do
+     */
+    public SpaCommand(final Map<EnumFwknopRcKey, String> config, boolean verbose, boolean test, IConsole console,
+        final KnockTarget target, final KnockTimings setupTimings, final boolean renew) {
+        this.target = target;
+        this.renew = renew;
+        this.setupTimings = new AtomicReference<>(setupTimings);
+        this.encoder = new SpaEncoder(config);
+        this.config = new HashMap<>(config);
+        this.sender = new SpaSender();
+        this.verbose = verbose;
+        this.test = test;
+        this.console = console;
+        this.isRunning = true;
+    }
+
+    /**
+     * Append a message to the specified console to trace changes if configured
+     *
+     * @param msg Message to log to the console
+     */
+    private void appendToConsole(final String msg) {
+        if (this.console != null) {
+            this.console.appendToConsole(msg);
+        }
+    }
+
+    /**
+     * Build and encrypt the next SPA packet and resolve its destination
+     */
+    @Override
+    public void prepare() {
+        if (!this.isRunning) {
+            return;
+        }
+
+        try {
+            this.preparedPacket.set(this.encoder.prepare());
+        } catch (SpaException e) {
+            // The packet will be built again when knocking and the error reported then
+            LOGGER.debug("Unable to prepare SPA packet", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        if (this.isRunning) {
+            knock();
+        }
+    }
+
+    /**
+     * Take the prepared packet if it is still fresh, or build a new one
+     *
+     * @return the SPA packet to send
+     * @throws SpaException if the packet cannot be built
+     */
+    private SpaPacket takePacket() throws SpaException {
+        final SpaPacket packet = this.preparedPacket.getAndSet(null);
+        if (packet != null && packet.isFresh(MAX_PREPARED_PACKET_AGE)) {
+            return packet;
+        }
+
+        return this.encoder.encode();
+    }
+
+    /**
+     * Knock unless the access is still open or the same knock is already in flight. Test knocks
+     * bypass the cache, so that they are always built and never shared with a real knock.
+     */
+    private void knock() {
+        KnockGrantCache.getInstance().knock(this.test ? null : this.target, this.config, this.renew, this::sendPacket);
+    }
+
+    /**
+     * Build a SPA packet and send it unless the test mode is enabled. The result is published by
+     * the {@link KnockGrantCache}.
+     *
+     * @return the result event of the knock
+     */
+    private KnockResultEvent sendPacket() {
+        final long start = System.nanoTime();
+        final KnockTimings timings = KnockTimings.resume(this.setupTimings.getAndSet(null));
+        EnumKnockError failure = EnumKnockError.ENCODING;
+        SpaPacket packet = null;
+        KnockResultEvent event;
+
+        try {
+            // Test knocks do not reach the server and do not use its tokens
+            if (!this.test) {
+                KnockRateLimiter.getInstance().acquire(this.config.get(EnumFwknopRcKey.SPA_SERVER));
+            }
+            timings.mark(EnumKnockPhase.QUEUE);
+            packet = takePacket();
+            timings.mark(EnumKnockPhase.START);
+
+            if (this.test) {
+                event = createEvent(true, "Test mode - SPA packet not sent to " + packet, start, timings,
+                    EnumKnockOutcome.TEST, EnumKnockError.NONE, packet);
+            } else {
+                failure = EnumKnockError.NETWORK;
+                this.sender.send(packet);
+                timings.mark(EnumKnockPhase.COMPLETE);
+                final String message = "SPA packet sent to " + packet + " in " + KnockTimings.format(timings.getTotal());
+
+                final List<PortProbeResult> probes = PortProbe.verifyIfEnabled(this.config, timings);
+                final String closedPorts = PortProbe.describeClosedPorts(probes);
+                event = closedPorts == null
+                    ? createEvent(true, message, start, timings, EnumKnockOutcome.SENT, EnumKnockError.NONE, packet, probes)
+                    : createEvent(false, message + " but " + closedPorts, start, timings, EnumKnockOutcome.FAILED,
+                        EnumKnockError.PORT_CLOSED, packet, probes);
+            }
+        } catch (SpaException e) {
+            LOGGER.error("[*] Unable to knock", e);
+            event = createEvent(false, "Unable to knock : " + e.getMessage(), start, timings, EnumKnockOutcome.FAILED,
+                failure, packet);
+        } catch (RateLimitExceededException e) {
+            event = createEvent(false, e.getMessage(), start, timings, EnumKnockOutcome.DROPPED,
+                EnumKnockError.RATE_LIMITED, null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            event = createEvent(false, "Interrupted", start, timings, EnumKnockOutcome.STOPPED,
+                EnumKnockError.INTERRUPTED, null);
+        }
+
+        // Displayed after sending to keep the console off the critical path
+        if (this.verbose && packet != null) {
+            appendToConsole("[*] SPA packet data: " + packet.getData());
+        }
+
+        return event;
+    }
+
+    private KnockResultEvent createEvent(final boolean success, final String message, final long start,
+        final KnockTimings timings, final EnumKnockOutcome outcome, final EnumKnockError error, final SpaPacket packet) {
+        return createEvent(success, message, start, timings, outcome, error, packet, Collections.emptyList());
+    }
+
+    private KnockResultEvent createEvent(final boolean success, final String message, final long start,
+        final KnockTimings timings, final EnumKnockOutcome outcome, final EnumKnockError error, final SpaPacket packet,
+        final List<PortProbeResult> probes) {
+        return new KnockResultEvent(
+            new KnockResult(this.target, success, message, (System.nanoTime() - start) / 1000000, timings),
+            EnumKnockEngine.JAVA, outcome, error, packet != null ? packet.getData().length() : KnockResultEvent.UNKNOWN_SIZE,
+            probes);
+    }
+
+    /**
+     * Stop the current command. Periodic knocks are scheduled by the knock scheduler, this only
+     * prevents further knocks from being sent
+     */
+    @Override
+    public void stop() {
+        this.isRunning = false;
+        this.preparedPacket.set(null);
+    }
+}
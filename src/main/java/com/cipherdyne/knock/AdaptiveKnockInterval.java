@@ -0,0 +1,163 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.jfwknop.EnumFwknopRcKey;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Period of an adaptive periodic knock.
+ *
+ * The access opened by a knock lasts FW_TIMEOUT seconds. The next knock is run early enough for its
+ * ports to be open again before the previous access expires: the period is the timeout minus the
+ * observed knock-to-open latency (99th percentile) minus a safety margin. A failed or dropped knock
+ * is retried shortly instead of waiting for a full period.
+ *
+ * The knock results of the configuration are received from the {@link KnockEventBus}.
+ */
+public class AdaptiveKnockInterval implements Consumer<KnockResultEvent> {
+
+    static final Logger LOGGER = LogManager.getLogger(AdaptiveKnockInterval.class.getName());
+
+    // Access timeout applied by fwknopd when the stanza does not set FW_TIMEOUT, in seconds
+    public static final int DEFAULT_FW_TIMEOUT = 30;
+
+    // Minimum safety margin kept before the access expires, in milliseconds
+    private static final long MIN_MARGIN_MS = 2000;
+
+    // Safety margin as a share of the access timeout
+    private static final double MARGIN_RATIO = 0.1;
+
+    // Shortest period between two knocks, in milliseconds
+    private static final long MIN_PERIOD_MS = 1000;
+
+    // Delay before retrying a failed knock, in milliseconds
+    private static final long RETRY_DELAY_MS = 5000;
+
+    // Configuration knocked - null if unknown
+    private final KnockTarget target;
+
+    // Access timeout of the stanza in milliseconds
+    private final long fwTimeout;
+
+    // Latencies from the start of a knock to the opening of the access, in microseconds
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    // Set to true if the last knock did not open the access
+    private volatile boolean lastFailed;
+
+    /**
+     * @param target configuration knocked - null if unknown
+     * @param rcConfig settings of the stanza knocked
+     */
+    public AdaptiveKnockInterval(final KnockTarget target, final Map<EnumFwknopRcKey, String> rcConfig) {
+        this.target = target;
+        this.fwTimeout = TimeUnit.SECONDS.toMillis(parseTimeout(rcConfig.get(EnumFwknopRcKey.FW_TIMEOUT)));
+        this.lastFailed = false;
+    }
+
+    /**
+     * @param value FW_TIMEOUT setting of the stanza
+     * @return the access timeout in seconds, DEFAULT_FW_TIMEOUT if not set or invalid
+     */
+    static int parseTimeout(final String value) {
+        if (value != null && !value.trim().isEmpty()) {
+            try {
+                final int timeout = Integer.parseInt(value.trim());
+                if (timeout > 0) {
+                    return timeout;
+                }
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid FW_TIMEOUT " + value + ", using " + DEFAULT_FW_TIMEOUT + " s");
+            }
+        }
+        return DEFAULT_FW_TIMEOUT;
+    }
+
+    /**
+     * Record the result of a knock of the configuration. The results of other configurations are
+     * ignored.
+     *
+     * @param event knock result
+     */
+    @Override
+    public void accept(final KnockResultEvent event) {
+        if (!Objects.equals(event.getTarget(), this.target)) {
+            return;
+        }
+
+        switch (event.getOutcome()) {
+            case SENT:
+            case TEST:
+                if (event.getTimings() != null) {
+                    this.latencies.record(event.getTimings().getTotal());
+                }
+                this.lastFailed = false;
+                break;
+            case FAILED:
+            case DROPPED:
+                this.lastFailed = true;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return the time to wait between the start of the last knock and the start of the next one,
+     * in milliseconds
+     */
+    public long getPeriod() {
+        final long period = Math.max(MIN_PERIOD_MS, this.fwTimeout - getLatency() - getMargin());
+        return this.lastFailed ? Math.min(RETRY_DELAY_MS, period) : period;
+    }
+
+    /**
+     * @return the 99th percentile of the knock-to-open latency in milliseconds, 0 if no knock has
+     * succeeded yet
+     */
+    public long getLatency() {
+        return TimeUnit.MICROSECONDS.toMillis(this.latencies.getPercentile(99));
+    }
+
+    /**
+     * @return the safety margin kept before the access expires, in milliseconds
+     */
+    public long getMargin() {
+        return Math.max(MIN_MARGIN_MS, (long) (this.fwTimeout * MARGIN_RATIO));
+    }
+
+    /**
+     * @return the access timeout of the stanza in milliseconds
+     */
+    public long getFwTimeout() {
+        return this.fwTimeout;
+    }
+
+    @Override
+    public String toString() {
+        return "period " + getPeriod() + " ms (timeout " + this.fwTimeout + " ms, latency " + getLatency()
+            + " ms, margin " + getMargin() + " ms" + (this.lastFailed ? ", retrying" : "") + ")";
+    }
+}
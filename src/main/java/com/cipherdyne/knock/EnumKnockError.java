@@ -0,0 +1,44 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+/**
+ * Class of error that made a knock fail
+ */
+public enum EnumKnockError {
+
+    // No error
+    NONE,
+    // The rc settings cannot be read or are invalid
+    CONFIG,
+    // The SPA packet cannot be built or encrypted
+    ENCODING,
+    // The SPA packet cannot be sent
+    NETWORK,
+    // The fwknop binary cannot be run or failed
+    PROCESS,
+    // The fwknop binary ran for too long
+    TIMEOUT,
+    // The knock has been interrupted
+    INTERRUPTED,
+    // The SPA server has been knocked too often
+    RATE_LIMITED,
+    // The knock has been sent but the requested ports did not open
+    PORT_CLOSED
+}
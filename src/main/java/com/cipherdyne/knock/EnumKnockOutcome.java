@@ -0,0 +1,38 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+/**
+ * Outcome of a knock
+ */
+public enum EnumKnockOutcome {
+
+    // The SPA packet has been sent
+    SENT,
+    // The SPA packet has been built but not sent on purpose
+    TEST,
+    // The knock failed
+    FAILED,
+    // The knock has been dropped by the rate limiter
+    DROPPED,
+    // The knock has been stopped before completing
+    STOPPED,
+    // The access is still open from a previous knock, no SPA packet has been sent
+    SKIPPED
+}
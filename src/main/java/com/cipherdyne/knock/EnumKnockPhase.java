@@ -0,0 +1,50 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+/**
+ * Phases of a knock, in the order they happen
+ */
+public enum EnumKnockPhase {
+
+    // Snapshot of the rc and JFwknop settings
+    CONFIG("config"),
+    // Wait for the rate limiter of the SPA server
+    QUEUE("queue"),
+    // Build of the fwknop arguments or of the SPA encoder
+    BUILD("build"),
+    // Spawn of the fwknop process or in-process encoding of the SPA packet
+    START("start"),
+    // Time between the spawn of the fwknop process and its first output line
+    FIRST_OUTPUT("first output"),
+    // Exit of the fwknop process or end of the send of the SPA packet
+    COMPLETE("complete"),
+    // Time until all the ports opened by the knock accept connections, if verified
+    OPEN("open");
+
+    private final String label;
+
+    EnumKnockPhase(final String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return this.label;
+    }
+}
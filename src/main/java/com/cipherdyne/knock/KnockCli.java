@@ -0,0 +1,426 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.jfwknop.AccessFile;
+import com.cipherdyne.jfwknop.EnumFwknopConfigKey;
+import com.cipherdyne.jfwknop.EnumFwknopRcKey;
+import com.cipherdyne.jfwknop.EnumKnockEngine;
+import com.cipherdyne.jfwknop.JFwknopConfig;
+import com.cipherdyne.jfwknop.EnumFwknopdRcKey;
+import com.cipherdyne.jfwknop.RcFile;
+import com.cipherdyne.spa.AccessStanza;
+import com.cipherdyne.spa.SpaEncoder;
+import com.cipherdyne.spa.SpaException;
+import com.cipherdyne.spa.SpaReceiver;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+
+/**
+ * Headless knock entry point.
+ *
+ * Knock a single stanza of a fwknoprc file from the command line without initializing Swing:
+ *
+ * <pre>
+ * jfwknop --knock &lt;rcfile&gt; [--stanza &lt;name&gt;] [--engine java|fwknop] [--verbose]
+ * jfwknop --daemon [--port &lt;port&gt;] [--verbose]
+ * jfwknop --load &lt;rcfile&gt; [--stanza &lt;name&gt;] [--rate &lt;pps&gt;] [--concurrency &lt;n&gt;]
+ *     [--duration &lt;s&gt;] [--proto udp|tcp] [--access &lt;access.conf&gt;] [--verbose]
+ * jfwknop --receive &lt;access.conf&gt; [--port &lt;port&gt;] [--proto udp|tcp] [--concurrency &lt;n&gt;] [--verbose]
+ * </pre>
+ *
+ * The knock engine and the path to the fwknop binary default to the JFwknop settings.
+ */
+public class KnockCli {
+
+    // Option that selects the headless mode
+    public static final String OPTION_KNOCK = "--knock";
+
+    // Option that starts the knock daemon
+    public static final String OPTION_DAEMON = "--daemon";
+
+    // Option that runs the load generator against a local sink
+    public static final String OPTION_LOAD = "--load";
+
+    // Option that starts a SPA receiver checking packets against an access file
+    public static final String OPTION_RECEIVE = "--receive";
+
+    private static final String OPTION_STANZA = "--stanza";
+    private static final String OPTION_ENGINE = "--engine";
+    private static final String OPTION_VERBOSE = "--verbose";
+    private static final String OPTION_PORT = "--port";
+    private static final String OPTION_RATE = "--rate";
+    private static final String OPTION_CONCURRENCY = "--concurrency";
+    private static final String OPTION_DURATION = "--duration";
+    private static final String OPTION_PROTO = "--proto";
+    private static final String OPTION_ACCESS = "--access";
+
+    // Default duration of a load run in seconds
+    private static final int DEFAULT_LOAD_DURATION = 10;
+
+    // Exit codes
+    public static final int EXIT_SUCCESS = 0;
+    public static final int EXIT_FAILURE = 1;
+    public static final int EXIT_USAGE = 2;
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    /**
+     * @param out stream the knock result is printed to
+     * @param err stream the errors are printed to
+     */
+    public KnockCli(final PrintStream out, final PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * @param args command line arguments
+     * @return true if the arguments request the headless mode
+     */
+    public static boolean isHeadless(final String[] args) {
+        for (final String arg : args) {
+            if (OPTION_KNOCK.equals(arg) || OPTION_DAEMON.equals(arg) || OPTION_LOAD.equals(arg)
+                || OPTION_RECEIVE.equals(arg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse the arguments and knock
+     *
+     * @param args command line arguments
+     * @return the exit code of the process
+     */
+    public int run(final String[] args) {
+        String rcFilename = null;
+        String stanza = null;
+        String engine = null;
+        boolean verbose = false;
+        boolean daemon = false;
+        Integer port = null;
+        String loadFilename = null;
+        int rate = 0;
+        int concurrency = Runtime.getRuntime().availableProcessors();
+        int duration = DEFAULT_LOAD_DURATION;
+        String protocol = null;
+        String accessFilename = null;
+        String receiveFilename = null;
+
+        for (int ix = 0; ix < args.length; ix++) {
+            switch (args[ix]) {
+                case OPTION_KNOCK:
+                    if (++ix >= args.length) {
+                        return usage("Missing rc file after " + OPTION_KNOCK);
+                    }
+                    rcFilename = args[ix];
+                    break;
+                case OPTION_STANZA:
+                    if (++ix >= args.length) {
+                        return usage("Missing stanza after " + OPTION_STANZA);
+                    }
+                    stanza = args[ix];
+                    break;
+                case OPTION_ENGINE:
+                    if (++ix >= args.length) {
+                        return usage("Missing engine after " + OPTION_ENGINE);
+                    }
+                    engine = args[ix];
+                    if (!EnumKnockEngine.fromValue(engine).getValue().equals(engine)) {
+                        return usage("Invalid engine: " + engine);
+                    }
+                    break;
+                case OPTION_VERBOSE:
+                    verbose = true;
+                    break;
+                case OPTION_DAEMON:
+                    daemon = true;
+                    break;
+                case OPTION_PORT:
+                    if (++ix >= args.length) {
+                        return usage("Missing port after " + OPTION_PORT);
+                    }
+                    try {
+                        port = Integer.parseInt(args[ix]);
+                    } catch (NumberFormatException e) {
+                        return usage("Invalid port: " + args[ix]);
+                    }
+                    break;
+                case OPTION_LOAD:
+                    if (++ix >= args.length) {
+                        return usage("Missing rc file after " + OPTION_LOAD);
+                    }
+                    loadFilename = args[ix];
+                    break;
+                case OPTION_ACCESS:
+                    if (++ix >= args.length) {
+                        return usage("Missing access file after " + OPTION_ACCESS);
+                    }
+                    accessFilename = args[ix];
+                    break;
+                case OPTION_RECEIVE:
+                    if (++ix >= args.length) {
+                        return usage("Missing access file after " + OPTION_RECEIVE);
+                    }
+                    receiveFilename = args[ix];
+                    break;
+                case OPTION_RATE:
+                case OPTION_CONCURRENCY:
+                case OPTION_DURATION:
+                    final String option = args[ix];
+                    if (++ix >= args.length) {
+                        return usage("Missing value after " + option);
+                    }
+                    final int value;
+                    try {
+                        value = Integer.parseInt(args[ix]);
+                    } catch (NumberFormatException e) {
+                        return usage("Invalid value for " + option + ": " + args[ix]);
+                    }
+                    if (value < 0 || (value == 0 && !OPTION_RATE.equals(option))) {
+                        return usage("Invalid value for " + option + ": " + args[ix]);
+                    }
+                    if (OPTION_RATE.equals(option)) {
+                        rate = value;
+                    } else if (OPTION_CONCURRENCY.equals(option)) {
+                        concurrency = value;
+                    } else {
+                        duration = value;
+                    }
+                    break;
+                case OPTION_PROTO:
+                    if (++ix >= args.length) {
+                        return usage("Missing protocol after " + OPTION_PROTO);
+                    }
+                    protocol = args[ix];
+                    if (!"udp".equals(protocol) && !"tcp".equals(protocol)) {
+                        return usage("Invalid protocol: " + protocol);
+                    }
+                    break;
+                default:
+                    return usage("Unknown option: " + args[ix]);
+            }
+        }
+
+        final int modes = (rcFilename != null ? 1 : 0) + (daemon ? 1 : 0) + (loadFilename != null ? 1 : 0)
+            + (receiveFilename != null ? 1 : 0);
+        if (modes != 1) {
+            return usage(modes > 1 ? "Options " + OPTION_KNOCK + ", " + OPTION_DAEMON + ", " + OPTION_LOAD + " and "
+                + OPTION_RECEIVE + " are exclusive" : "Missing rc file");
+        }
+
+        // Keep the output of cron jobs and scripts clean and skip the full logging configuration
+        if (!verbose) {
+            configureQuietLogging();
+        }
+
+        if (daemon) {
+            return runDaemon(port != null ? port : KnockDaemon.DEFAULT_PORT);
+        }
+
+        if (loadFilename != null) {
+            return runLoad(loadFilename, stanza, rate, concurrency, duration, protocol, accessFilename);
+        }
+
+        if (receiveFilename != null) {
+            return runReceiver(receiveFilename, port != null ? port : SpaEncoder.DEFAULT_SPA_SERVER_PORT,
+                protocol != null ? protocol : SpaEncoder.DEFAULT_SPA_SERVER_PROTO, concurrency);
+        }
+
+        final JFwknopConfig config = JFwknopConfig.getInstance();
+        final EnumKnockEngine knockEngine = EnumKnockEngine.fromValue(
+            engine != null ? engine : config.getConfigKey().get(EnumFwknopConfigKey.KNOCK_ENGINE));
+
+        final KnockResult result = new KnockTask(new KnockTarget(rcFilename, stanza), knockEngine,
+            config.getConfigKey().get(EnumFwknopConfigKey.FWKNOP_FILEPATH)).call();
+        (result.isSuccess() ? this.out : this.err).println(result);
+        if (verbose) {
+            this.err.println("Timings: " + result.getTimings());
+        }
+
+        return result.isSuccess() ? EXIT_SUCCESS : EXIT_FAILURE;
+    }
+
+    /**
+     * Serve knock requests until the process is stopped
+     *
+     * @param port port to listen to on the loopback interface
+     * @return the exit code of the process
+     */
+    private int runDaemon(final int port) {
+        final KnockDaemon knockDaemon = new KnockDaemon(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(knockDaemon::stop, "knock-daemon-shutdown"));
+
+        try {
+            this.out.println("Knock daemon started - connection settings in " + KnockDaemon.getDaemonFile());
+            knockDaemon.run();
+            return EXIT_SUCCESS;
+        } catch (IOException e) {
+            this.err.println("Unable to start the knock daemon: " + e.getMessage());
+            return EXIT_FAILURE;
+        }
+    }
+
+    /**
+     * Send SPA packets built from a stanza to a local sink and print the throughput and latencies
+     *
+     * @param rcFilename rc file holding the stanza
+     * @param stanza stanza to build the packets from - null for the default one
+     * @param rate packets per second - 0 to send as fast as possible
+     * @param concurrency number of workers building and sending packets
+     * @param duration duration of the run in seconds
+     * @param protocol protocol of the sink - null to use the one of the stanza, or udp for http
+     * @param accessFilename access file checking the packets - null to only count them
+     * @return the exit code of the process
+     */
+    private int runLoad(final String rcFilename, final String stanza, final int rate, final int concurrency,
+        final int duration, final String protocol, final String accessFilename) {
+        try {
+            final List<AccessStanza> stanzas = accessFilename != null ? loadStanzas(accessFilename) : null;
+            if (stanzas != null && stanzas.isEmpty()) {
+                this.err.println("No valid stanza in " + accessFilename);
+                return EXIT_FAILURE;
+            }
+
+            final RcFile rcFile = new RcFile(rcFilename);
+            rcFile.parse(stanza);
+            final String stanzaProtocol = rcFile.getConfig().get(EnumFwknopRcKey.SPA_SERVER_PROTO);
+            final String sinkProtocol = protocol != null ? protocol
+                : "tcp".equals(stanzaProtocol) ? "tcp" : SpaEncoder.DEFAULT_SPA_SERVER_PROTO;
+
+            this.out.println("Sending " + (rate > 0 ? rate + " packets/s" : "as many packets as possible") + " over "
+                + sinkProtocol + " with " + concurrency + " workers for " + duration + " s");
+            final KnockLoadReport report = new KnockLoadGenerator(rcFile.getConfig(), rate, concurrency, duration,
+                sinkProtocol, stanzas).run();
+            this.out.println(report);
+
+            return report.getSent() > 0 ? EXIT_SUCCESS : EXIT_FAILURE;
+        } catch (IOException | SpaException e) {
+            this.err.println("Unable to run the load generator: " + e.getMessage());
+            return EXIT_FAILURE;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return EXIT_FAILURE;
+        }
+    }
+
+    /**
+     * Check SPA packets against the stanzas of an access file and print the outcome of each of them
+     * until the process is stopped
+     *
+     * @param accessFilename access file holding the stanzas
+     * @param port port to listen to on the loopback interface
+     * @param protocol udp or tcp
+     * @param threads number of workers checking the packets
+     * @return the exit code of the process
+     */
+    private int runReceiver(final String accessFilename, final int port, final String protocol, final int threads) {
+        final SpaReceiver receiver;
+        try {
+            final List<AccessStanza> stanzas = loadStanzas(accessFilename);
+            if (stanzas.isEmpty()) {
+                this.err.println("No valid stanza in " + accessFilename);
+                return EXIT_FAILURE;
+            }
+            receiver = new SpaReceiver(stanzas, protocol, InetAddress.getLoopbackAddress(), port, threads,
+                this.out::println);
+        } catch (IOException e) {
+            this.err.println("Unable to start the SPA receiver: " + e.getMessage());
+            return EXIT_FAILURE;
+        }
+
+        final CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                receiver.close();
+            } catch (IOException e) {
+                this.err.println("Unable to close the SPA receiver: " + e.getMessage());
+            }
+            this.out.println(receiver);
+            stopped.countDown();
+        }, "spa-receiver-shutdown"));
+
+        this.out.println("SPA receiver listening on " + protocol + "/" + receiver.getPort());
+        try {
+            stopped.await();
+            return EXIT_SUCCESS;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return EXIT_FAILURE;
+        }
+    }
+
+    /**
+     * Load the stanzas of an access file. Stanzas that cannot be checked are reported and skipped.
+     *
+     * @param accessFilename access file to load
+     * @return the valid stanzas
+     * @throws IOException if the file cannot be read
+     */
+    private List<AccessStanza> loadStanzas(final String accessFilename) throws IOException {
+        final List<AccessStanza> stanzas = new ArrayList<>();
+        final List<Map<EnumFwknopdRcKey, String>> settings = new AccessFile(accessFilename).load();
+        for (int ix = 0; ix < settings.size(); ix++) {
+            try {
+                stanzas.add(new AccessStanza(ix + 1, settings.get(ix)));
+            } catch (SpaException e) {
+                this.err.println("Skipping stanza #" + (ix + 1) + " of " + accessFilename + ": " + e.getMessage());
+            }
+        }
+        return stanzas;
+    }
+
+    /**
+     * Log warnings and errors to stderr only. This has to be done before any logger is used since
+     * it prevents log4j from loading its default configuration.
+     */
+    private void configureQuietLogging() {
+        System.setProperty("log4j.defaultInitOverride", "true");
+        final Logger root = LogManager.getRootLogger();
+        root.removeAllAppenders();
+        root.addAppender(new ConsoleAppender(new PatternLayout("%-5p - %m%n"), ConsoleAppender.SYSTEM_ERR));
+        root.setLevel(Level.WARN);
+    }
+
+    private int usage(final String error) {
+        this.err.println(error);
+        this.err.println("Usage: jfwknop " + OPTION_KNOCK + " <rcfile> [" + OPTION_STANZA + " <name>] ["
+            + OPTION_ENGINE + " java|fwknop] [" + OPTION_VERBOSE + "]");
+        this.err.println("       jfwknop " + OPTION_DAEMON + " [" + OPTION_PORT + " <port>] [" + OPTION_VERBOSE + "]");
+        this.err.println("       jfwknop " + OPTION_LOAD + " <rcfile> [" + OPTION_STANZA + " <name>] [" + OPTION_RATE
+            + " <pps>] [" + OPTION_CONCURRENCY + " <n>] [" + OPTION_DURATION + " <s>] [" + OPTION_PROTO + " udp|tcp] ["
+            + OPTION_ACCESS + " <access.conf>] [" + OPTION_VERBOSE + "]");
+        this.err.println("       jfwknop " + OPTION_RECEIVE + " <access.conf> [" + OPTION_PORT + " <port>] [" + OPTION_PROTO
+            + " udp|tcp] [" + OPTION_CONCURRENCY + " <n>] [" + OPTION_VERBOSE + "]");
+        return EXIT_USAGE;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.gui.IConsole;
+import java.util.function.Consumer;
+
+/**
+ * Log the knock result events to a console along with their timings and the latencies of their
+ * configuration
+ */
+public class KnockConsoleListener implements Consumer<KnockResultEvent> {
+
+    // IConsole interface used to log the knock results
+    private final IConsole console;
+
+    /**
+     * @param console IConsole appender to log the knock results
+     */
+    public KnockConsoleListener(final IConsole console) {
+        this.console = console;
+    }
+
+    @Override
+    public void accept(final KnockResultEvent event) {
+        this.console.appendToConsole("[*] " + event);
+
+        if (event.getOutcome() == EnumKnockOutcome.SENT && event.getTimings() != null) {
+            this.console.appendToConsole("[*] Timings : " + event.getTimings());
+            if (event.getTarget() != null) {
+                this.console.appendToConsole("[*] Latency : " + KnockMetrics.getInstance().summarize(event.getTarget()));
+            }
+        }
+    }
+}
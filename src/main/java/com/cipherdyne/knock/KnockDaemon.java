@@ -0,0 +1,333 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.jfwknop.EnumFwknopConfigKey;
+import com.cipherdyne.jfwknop.EnumKnockEngine;
+import com.cipherdyne.jfwknop.JFwknopConfig;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Long-running knock daemon controlled through a local line protocol.
+ *
+ * The daemon keeps the JFwknop settings, the parsed rc files, the GPG keys and the SPA transports
+ * warm, so that scripts get the latency of a warm knock. Java 8 has no Unix domain sockets, so the
+ * daemon listens on the loopback interface only. The port and a random token are written to a
+ * file readable by the owner only, and each client has to send the token before knocking.
+ *
+ * Protocol - one request per line, one response line per request:
+ *
+ * <pre>
+ * AUTH &lt;token&gt;               OK | ERROR ...
+ * KNOCK &lt;rcfile&gt; [&lt;stanza&gt;]   OK ... | FAILED ...
+ * STATS &lt;rcfile&gt; [&lt;stanza&gt;]   OK p50/p99 latencies of the knocks
+ * STATS                      OK hit and miss counters of the caches
+ * PING                       PONG
+ * QUIT                       closes the connection
+ * </pre>
+ *
+ * Each connection is served by its own thread, so many clients can knock at the same time.
+ */
+public class KnockDaemon {
+
+    static final Logger LOGGER = LogManager.getLogger(KnockDaemon.class.getName());
+
+    // Default port the daemon listens to
+    public static final int DEFAULT_PORT = 62202;
+
+    // Name of the file, in the JFwknop working directory, holding the port and token
+    public static final String DAEMON_FILE = "daemon";
+
+    // Maximum number of clients served at the same time
+    private static final int MAX_CLIENTS = 64;
+
+    // Time after which an idle client is disconnected, in milliseconds
+    private static final int CLIENT_IDLE_TIMEOUT = 300000;
+
+    // Number of random bytes of the token
+    private static final int TOKEN_LENGTH = 32;
+
+    // Port to listen to - 0 for any free port
+    private final int port;
+
+    // Token expected from the clients
+    private final String token;
+
+    // Parsed rc settings kept warm across knocks
+    private final RcConfigCache configCache = new RcConfigCache();
+
+    // Threads serving the clients
+    private final ThreadPoolExecutor executor;
+
+    private volatile ServerSocket serverSocket;
+
+    /**
+     * @param port port to listen to on the loopback interface - 0 for any free port
+     */
+    public KnockDaemon(final int port) {
+        this.port = port;
+        this.token = createToken();
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(0, MAX_CLIENTS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "knock-daemon-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Serve the clients until the daemon is stopped
+     *
+     * @throws IOException if the daemon cannot listen or publish its port
+     */
+    public void run() throws IOException {
+        // Load the settings once for all
+        JFwknopConfig.getInstance();
+
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), this.port));
+        final File daemonFile;
+        try {
+            daemonFile = publish(this.serverSocket.getLocalPort());
+        } catch (IOException e) {
+            this.serverSocket.close();
+            throw e;
+        }
+        LOGGER.info("Knock daemon listening on " + this.serverSocket.getLocalSocketAddress());
+
+        try {
+            while (!this.serverSocket.isClosed()) {
+                final Socket client;
+                try {
+                    client = this.serverSocket.accept();
+                } catch (IOException e) {
+                    if (this.serverSocket.isClosed()) {
+                        break;
+                    }
+                    throw e;
+                }
+
+                try {
+                    this.executor.execute(() -> serve(client));
+                } catch (RejectedExecutionException e) {
+                    reject(client);
+                }
+            }
+        } finally {
+            daemonFile.delete();
+            this.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Stop listening. The clients being served are disconnected.
+     */
+    public void stop() {
+        final ServerSocket socket = this.serverSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.debug("Unable to close daemon socket", e);
+            }
+        }
+    }
+
+    /**
+     * Serve a client until it disconnects
+     *
+     * @param client client socket
+     */
+    private void serve(final Socket client) {
+        try (Socket socket = client;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+
+            socket.setSoTimeout(CLIENT_IDLE_TIMEOUT);
+            boolean authenticated = false;
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                final String[] request = line.trim().split("\\s+", 3);
+                final String command = request[0].toUpperCase();
+                final String response;
+
+                if ("QUIT".equals(command)) {
+                    break;
+                } else if ("PING".equals(command)) {
+                    response = "PONG";
+                } else if ("AUTH".equals(command)) {
+                    authenticated = request.length == 2 && checkToken(request[1]);
+                    if (!authenticated) {
+                        respond(writer, "ERROR invalid token");
+                        break;
+                    }
+                    response = "OK authenticated";
+                } else if (!authenticated) {
+                    respond(writer, "ERROR authentication required");
+                    break;
+                } else if ("KNOCK".equals(command) && request.length >= 2) {
+                    response = knock(new KnockTarget(request[1], request.length == 3 ? request[2] : null));
+                } else if ("STATS".equals(command) && request.length == 1) {
+                    response = "OK " + KnockMetrics.getInstance().summarizeCaches();
+                } else if ("STATS".equals(command)) {
+                    response = "OK " + KnockMetrics.getInstance().summarize(
+                        new KnockTarget(request[1], request.length == 3 ? request[2] : null));
+                } else {
+                    response = "ERROR unknown request: " + line.trim();
+                }
+
+                respond(writer, response);
+            }
+        } catch (SocketTimeoutException e) {
+            LOGGER.debug("Idle client disconnected");
+        } catch (IOException e) {
+            LOGGER.debug("Client connection closed", e);
+        }
+    }
+
+    /**
+     * Knock a configuration with the settings of the JFwknop configuration file
+     *
+     * @param target configuration to knock
+     * @return the response line
+     */
+    private String knock(final KnockTarget target) {
+        final JFwknopConfig config = JFwknopConfig.getInstance();
+        final KnockResult result = new KnockTask(target,
+            EnumKnockEngine.fromValue(config.getConfigKey().get(EnumFwknopConfigKey.KNOCK_ENGINE)),
+            config.getConfigKey().get(EnumFwknopConfigKey.FWKNOP_FILEPATH), this.configCache).call();
+
+        return (result.isSuccess() ? "OK " : "FAILED ") + result.getTarget() + " (" + result.getDuration() + " ms) : "
+            + result.getMessage().replaceAll("[\r\n]+", " ");
+    }
+
+    private static void respond(final Writer writer, final String response) throws IOException {
+        writer.write(response);
+        writer.write('\n');
+        writer.flush();
+    }
+
+    private static void reject(final Socket client) {
+        try (Socket socket = client) {
+            respond(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), "ERROR too many clients");
+        } catch (IOException e) {
+            LOGGER.debug("Unable to reject client", e);
+        }
+    }
+
+    /**
+     * @param candidate token sent by a client
+     * @return true if the token matches, compared in constant time
+     */
+    private boolean checkToken(final String candidate) {
+        return MessageDigest.isEqual(this.token.getBytes(StandardCharsets.US_ASCII),
+            candidate.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Write the port and token to the daemon file, readable by the owner only. The file is written
+     * to a temporary file created with owner only permissions and then moved into place, so that
+     * the token is never readable by other users.
+     *
+     * @param localPort port the daemon listens to
+     * @return the daemon file
+     * @throws IOException if the file cannot be written or restricted to the owner
+     */
+    private File publish(final int localPort) throws IOException {
+        final File file = getDaemonFile();
+        final Path directory = file.getAbsoluteFile().getParentFile().toPath();
+
+        final Path tmpFile;
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            tmpFile = Files.createTempFile(directory, "daemon", ".tmp",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            tmpFile = Files.createTempFile(directory, "daemon", ".tmp");
+            final File tmp = tmpFile.toFile();
+
+            // Clear all permissions for all users and set owner permissions before writing the token
+            if (!tmp.setReadable(false, false) || !tmp.setWritable(false, false) || !tmp.setExecutable(false, false)
+                || !tmp.setReadable(true, true) || !tmp.setWritable(true, true)) {
+                Files.delete(tmpFile);
+                throw new IOException("Unable to restrict the permissions of " + tmpFile);
+            }
+        }
+
+        try {
+            Files.write(tmpFile, ("port=" + localPort + "\ntoken=" + this.token + "\n").getBytes(StandardCharsets.US_ASCII));
+            try {
+                Files.move(tmpFile, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+        file.deleteOnExit();
+
+        return file;
+    }
+
+    /**
+     * @return the file holding the port and token of the running daemon
+     */
+    public static File getDaemonFile() {
+        return new File(JFwknopConfig.getJfwknopWorkingDirectory() + DAEMON_FILE);
+    }
+
+    private static String createToken() {
+        final byte[] bytes = new byte[TOKEN_LENGTH];
+        new SecureRandom().nextBytes(bytes);
+
+        final StringBuilder sb = new StringBuilder(TOKEN_LENGTH * 2);
+        for (final byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * In-process bus the knock result events are published on.
+ *
+ * Events are delivered synchronously on the thread of the knock, in subscription order, so
+ * subscribers must return quickly and hand any slow work, such as updating Swing components, to
+ * another thread. A failing subscriber does not prevent the others from being notified.
+ */
+public class KnockEventBus {
+
+    static final Logger LOGGER = LogManager.getLogger(KnockEventBus.class.getName());
+
+    // Singleton
+    private static KnockEventBus instance;
+
+    // Subscribers notified of each event
+    private final List<Consumer<KnockResultEvent>> subscribers = new CopyOnWriteArrayList<>();
+
+    private KnockEventBus() {
+    }
+
+    public static synchronized KnockEventBus getInstance() {
+        if (instance == null) {
+            instance = new KnockEventBus();
+
+            // Metrics and history are always subscribed, first, so that no knock is missed and the
+            // other subscribers see them up to date
+            instance.subscribe(KnockMetrics.getInstance()::record);
+            instance.subscribe(KnockHistory.getInstance()::record);
+        }
+        return instance;
+    }
+
+    /**
+     * @param subscriber subscriber notified of each knock result event
+     */
+    public void subscribe(final Consumer<KnockResultEvent> subscriber) {
+        this.subscribers.add(subscriber);
+    }
+
+    /**
+     * @param subscriber subscriber that no longer has to be notified
+     */
+    public void unsubscribe(final Consumer<KnockResultEvent> subscriber) {
+        this.subscribers.remove(subscriber);
+    }
+
+    /**
+     * Notify all the subscribers of a knock result
+     *
+     * @param event knock result event
+     */
+    public void publish(final KnockResultEvent event) {
+        for (final Consumer<KnockResultEvent> subscriber : this.subscribers) {
+            try {
+                subscriber.accept(event);
+            } catch (RuntimeException e) {
+                LOGGER.error("Knock event subscriber failed", e);
+            }
+        }
+    }
+}
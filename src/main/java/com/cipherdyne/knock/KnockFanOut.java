@@ -0,0 +1,145 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.gui.IConsole;
+import com.cipherdyne.jfwknop.EnumKnockEngine;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Knock several configurations concurrently on a bounded pool of threads.
+ *
+ * Each knock publishes its own result on the {@link KnockEventBus} as soon as it completes and an
+ * aggregated summary is logged once all knocks are done. The overall time is close to the slowest
+ * knock rather than the sum of all of them.
+ */
+public class KnockFanOut {
+
+    // Default maximum number of knocks run at the same time
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    // Time after which idle knock threads are released
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    // Bounded pool of knock threads
+    private final ThreadPoolExecutor executor;
+
+    // IConsole interface used to log the summary of the knocks
+    private final IConsole console;
+
+    /**
+     * @param parallelism maximum number of knocks run at the same time
+     * @param console IConsole appender to log the summary of the knocks
+     */
+    public KnockFanOut(final int parallelism, final IConsole console) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "knock-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.console = console;
+    }
+
+    /**
+     * Append a message to the specified console to trace changes if configured
+     *
+     * @param msg Message to log to the console
+     */
+    private void appendToConsole(final String msg) {
+        if (this.console != null) {
+            this.console.appendToConsole(msg);
+        }
+    }
+
+    /**
+     * Knock all the configurations concurrently
+     *
+     * @param targets configurations to knock
+     * @param engine engine selected by the user
+     * @param fwknopFilePath path to the fwknop binary used as a fallback
+     * @return a future completed with the results once all knocks are done
+     */
+    public CompletableFuture<List<KnockResult>> knock(final List<KnockTarget> targets, final EnumKnockEngine engine,
+        final String fwknopFilePath) {
+
+        final long start = System.nanoTime();
+        appendToConsole("[*] Knocking " + targets.size() + " configurations");
+
+        final List<CompletableFuture<KnockResult>> futures = new ArrayList<>();
+        for (final KnockTarget target : targets) {
+            futures.add(CompletableFuture.supplyAsync(() -> new KnockTask(target, engine, fwknopFilePath).call(),
+                this.executor));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            final List<KnockResult> results = new ArrayList<>();
+            for (final CompletableFuture<KnockResult> future : futures) {
+                results.add(future.join());
+            }
+            appendToConsole("[*] " + summarize(results, (System.nanoTime() - start) / 1000000));
+            return results;
+        });
+    }
+
+    /**
+     * Build the aggregated summary of a set of knocks
+     *
+     * @param results results of the knocks
+     * @param elapsed wall-clock time spent to knock all configurations in milliseconds
+     * @return the summary as a single line
+     */
+    static String summarize(final List<KnockResult> results, final long elapsed) {
+        int succeeded = 0;
+        KnockResult slowest = null;
+
+        for (final KnockResult result : results) {
+            if (result.isSuccess()) {
+                succeeded++;
+            }
+            if (slowest == null || result.getDuration() > slowest.getDuration()) {
+                slowest = result;
+            }
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append(succeeded).append('/').append(results.size()).append(" knocks succeeded, ")
+            .append(results.size() - succeeded).append(" failed in ").append(elapsed).append(" ms");
+        if (slowest != null) {
+            sb.append(" - slowest: ").append(slowest.getTarget()).append(" (").append(slowest.getDuration()).append(" ms)");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Stop the knock threads once the pending knocks are done
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.jfwknop.EnumFwknopRcKey;
+import com.cipherdyne.spa.ExternalIpResolver;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Accesses still open from previous knocks, and knocks in flight.
+ *
+ * A configuration knocked successfully less than FW_TIMEOUT ago with the same settings and from the
+ * same source address does not need another SPA packet: the request is answered from the grant of
+ * the previous knock. Concurrent requests for the same configuration are coalesced into a single
+ * knock whose result is shared by all the callers.
+ *
+ * Knocks run through the cache must not publish their result event, the cache publishes it once on
+ * the {@link KnockEventBus}.
+ */
+public class KnockGrantCache {
+
+    static final Logger LOGGER = LogManager.getLogger(KnockGrantCache.class.getName());
+
+    // Time before the expiry of an access at which it is no longer considered open, in milliseconds
+    private static final long EXPIRY_MARGIN_MS = 2000;
+
+    // Singleton
+    private static KnockGrantCache instance;
+
+    // Accesses opened by the latest successful knock of each configuration
+    private final ConcurrentMap<KnockTarget, Grant> grants = new ConcurrentHashMap<>();
+
+    // Knocks in progress
+    private final ConcurrentMap<KnockTarget, InFlight> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private KnockGrantCache() {
+    }
+
+    public static synchronized KnockGrantCache getInstance() {
+        if (instance == null) {
+            instance = new KnockGrantCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Knock a configuration unless its access is still open or the same knock is already in flight
+     *
+     * @param target configuration knocked - null to always knock
+     * @param config settings of the stanza knocked, a grant is only reused for the same settings
+     * @param renew true to knock even if the access is still open, as periodic knocks renewing it do
+     * @param knock knock to run, returning its result event without publishing it
+     * @return the result event of the knock, of the knock in flight or of the still valid grant
+     */
+    public KnockResultEvent knock(final KnockTarget target, final Map<EnumFwknopRcKey, String> config,
+        final boolean renew, final Supplier<KnockResultEvent> knock) {
+
+        if (target == null) {
+            return publish(knock.get());
+        }
+
+        if (!renew) {
+            final KnockResultEvent granted = checkGrant(target, config);
+            if (granted != null) {
+                return publish(granted);
+            }
+        }
+
+        // Join the knock in flight if it is for the same settings
+        final InFlight current = new InFlight(config);
+        final InFlight existing = this.inFlight.putIfAbsent(target, current);
+        if (existing != null && existing.config.equals(config)) {
+            this.coalesced.incrementAndGet();
+            LOGGER.info("Waiting for the knock of " + target + " already in flight");
+            return existing.future.join();
+        }
+
+        final long start = System.nanoTime();
+        try {
+            final KnockResultEvent event = knock.get();
+            update(target, config, start, event);
+            publish(event);
+            current.future.complete(event);
+            return event;
+        } catch (RuntimeException e) {
+            current.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.inFlight.remove(target, current);
+        }
+    }
+
+    /**
+     * @param target configuration knocked
+     * @param config settings of the stanza knocked
+     * @return the event reporting the access still open, or null if it has to be knocked
+     */
+    private KnockResultEvent checkGrant(final KnockTarget target, final Map<EnumFwknopRcKey, String> config) {
+        final Grant grant = this.grants.get(target);
+        if (grant == null || !grant.config.equals(config)) {
+            return null;
+        }
+
+        // The access has been opened for another address
+        final String source = getSourceAddress(config);
+        if (source == null || !source.equals(grant.source)) {
+            this.grants.remove(target, grant);
+            return null;
+        }
+
+        final long remaining = TimeUnit.NANOSECONDS.toSeconds(grant.validUntilNanos - System.nanoTime());
+        if (remaining <= 0) {
+            this.grants.remove(target, grant);
+            return null;
+        }
+
+        this.skipped.incrementAndGet();
+        final long age = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - grant.event.getTimestamp());
+        return new KnockResultEvent(new KnockResult(target, true, "Access still open from the knock sent " + age
+            + " s ago, valid for " + remaining + " s - no SPA packet sent", 0, null), grant.event.getEngine(),
+            EnumKnockOutcome.SKIPPED, EnumKnockError.NONE, KnockResultEvent.UNKNOWN_SIZE);
+    }
+
+    /**
+     * Record the access opened by a knock, or forget it if its ports were found closed
+     *
+     * @param target configuration knocked
+     * @param config settings of the stanza knocked
+     * @param start time at which the knock started as given by System.nanoTime()
+     * @param event result of the knock
+     */
+    private void update(final KnockTarget target, final Map<EnumFwknopRcKey, String> config, final long start,
+        final KnockResultEvent event) {
+        if (event.getOutcome() == EnumKnockOutcome.SENT) {
+            final long fwTimeout = TimeUnit.SECONDS.toNanos(
+                AdaptiveKnockInterval.parseTimeout(config.get(EnumFwknopRcKey.FW_TIMEOUT)));
+            this.grants.put(target, new Grant(config, getSourceAddress(config), event,
+                start + fwTimeout - TimeUnit.MILLISECONDS.toNanos(EXPIRY_MARGIN_MS)));
+        } else if (event.getError() == EnumKnockError.PORT_CLOSED) {
+            this.grants.remove(target);
+        }
+    }
+
+    /**
+     * Get the address the access of a configuration is opened for, as far as it is known without
+     * querying any service: the external IP cached for ALLOW_IP=resolve, the addresses of the local
+     * interfaces when the server allows the source address of the packet, ALLOW_IP itself otherwise.
+     *
+     * @param config settings of the stanza knocked
+     * @return the address, or null if it is not known
+     */
+    private static String getSourceAddress(final Map<EnumFwknopRcKey, String> config) {
+        final String allowIp = config.get(EnumFwknopRcKey.ALLOW_IP);
+        if (allowIp != null && "resolve".equalsIgnoreCase(allowIp.trim())) {
+            return ExternalIpResolver.getInstance().getCached(ExternalIpResolver.getResolveUrls(config));
+        }
+        if (allowIp == null || "source".equalsIgnoreCase(allowIp.trim())) {
+            return ExternalIpResolver.listInterfaceAddresses();
+        }
+        return allowIp.trim();
+    }
+
+    private static KnockResultEvent publish(final KnockResultEvent event) {
+        KnockEventBus.getInstance().publish(event);
+        return event;
+    }
+
+    /**
+     * Forget all the accesses, so that the next knocks are sent whatever their age
+     */
+    public void clear() {
+        this.grants.clear();
+    }
+
+    /**
+     * @return the number of knocks answered from a grant still valid
+     */
+    public long getSkipped() {
+        return this.skipped.get();
+    }
+
+    /**
+     * @return the number of knocks that waited for the same knock in flight
+     */
+    public long getCoalesced() {
+        return this.coalesced.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Grant cache: " + this.grants.size() + " grants, " + getSkipped() + " skipped, " + getCoalesced()
+            + " coalesced";
+    }
+
+    /**
+     * Access opened by a successful knock
+     */
+    private static class Grant {
+
+        private final Map<EnumFwknopRcKey, String> config;
+
+        // Address the access has been opened for - null if unknown
+        private final String source;
+
+        private final KnockResultEvent event;
+        private final long validUntilNanos;
+
+        private Grant(final Map<EnumFwknopRcKey, String> config, final String source, final KnockResultEvent event,
+            final long validUntilNanos) {
+            this.config = new HashMap<>(config);
+            this.source = source;
+            this.event = event;
+            this.validUntilNanos = validUntilNanos;
+        }
+    }
+
+    /**
+     * Knock in progress
+     */
+    private static class InFlight {
+
+        private final Map<EnumFwknopRcKey, String> config;
+        private final CompletableFuture<KnockResultEvent> future = new CompletableFuture<>();
+
+        private InFlight(final Map<EnumFwknopRcKey, String> config) {
+            this.config = new HashMap<>(config);
+        }
+    }
+}
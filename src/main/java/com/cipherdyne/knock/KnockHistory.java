@@ -0,0 +1,84 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * History of the latest knock results
+ */
+public class KnockHistory {
+
+    // Maximum number of events kept
+    private static final int MAX_EVENTS = 1000;
+
+    // Singleton
+    private static KnockHistory instance;
+
+    // Latest events, oldest first
+    private final Deque<KnockResultEvent> events = new ArrayDeque<>();
+
+    private KnockHistory() {
+    }
+
+    public static synchronized KnockHistory getInstance() {
+        if (instance == null) {
+            instance = new KnockHistory();
+        }
+        return instance;
+    }
+
+    /**
+     * @param event knock result to keep - the oldest one is dropped if the history is full
+     */
+    public synchronized void record(final KnockResultEvent event) {
+        if (this.events.size() == MAX_EVENTS) {
+            this.events.removeFirst();
+        }
+        this.events.addLast(event);
+    }
+
+    /**
+     * @return the latest knock results, oldest first
+     */
+    public synchronized List<KnockResultEvent> getEvents() {
+        return new ArrayList<>(this.events);
+    }
+
+    /**
+     * @param target configuration knocked
+     * @return the latest knock results of the configuration, oldest first
+     */
+    public synchronized List<KnockResultEvent> getEvents(final KnockTarget target) {
+        final List<KnockResultEvent> targetEvents = new ArrayList<>();
+        for (final KnockResultEvent event : this.events) {
+            if (target.equals(event.getTarget())) {
+                targetEvents.add(event);
+            }
+        }
+        return targetEvents;
+    }
+
+    public synchronized void clear() {
+        this.events.clear();
+    }
+}
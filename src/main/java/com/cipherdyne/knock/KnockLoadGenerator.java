@@ -0,0 +1,238 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.jfwknop.EnumFwknopRcKey;
+import com.cipherdyne.spa.AccessStanza;
+import com.cipherdyne.spa.SpaEncoder;
+import com.cipherdyne.spa.SpaException;
+import com.cipherdyne.spa.SpaPacket;
+import com.cipherdyne.spa.SpaReceiver;
+import com.cipherdyne.spa.SpaSender;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Load generator measuring how many knocks per second the in-process SPA engine sustains.
+ *
+ * SPA packets are built from the settings of a stanza and sent to a local {@link LoadSink} by a
+ * number of concurrent workers, at a fixed rate or as fast as possible. The rate limiter, the grant
+ * cache and the event bus are bypassed so that only the building and the sending of the packets
+ * are measured.
+ *
+ * When the stanzas of an access file are given, packets are sent to a local {@link SpaReceiver}
+ * instead, so that they are also authenticated and decrypted the way fwknopd would.
+ *
+ * At a fixed rate, the latency of a packet is measured from its scheduled send time rather than
+ * from the time a worker picked it up, so that a generator falling behind shows up in the latency
+ * percentiles instead of silently lowering the rate.
+ */
+public class KnockLoadGenerator {
+
+    static final Logger LOGGER = LogManager.getLogger(KnockLoadGenerator.class.getName());
+
+    // Time given to the sink to receive the packets still in flight, in milliseconds
+    private static final long DRAIN_MS = 200;
+
+    // Settings of the stanza the packets are built from
+    private final Map<EnumFwknopRcKey, String> config;
+
+    // Packets per second - 0 to send as fast as possible
+    private final int rate;
+
+    // Number of workers building and sending packets
+    private final int concurrency;
+
+    // Duration of the run in nanoseconds
+    private final long durationNanos;
+
+    // Protocol of the sink, udp or tcp
+    private final String protocol;
+
+    // Stanzas checking the packets - null to count them without checking them
+    private final List<AccessStanza> stanzas;
+
+    /**
+     * @param config settings of the stanza the packets are built from
+     * @param rate packets per second - 0 to send as fast as possible
+     * @param concurrency number of workers building and sending packets
+     * @param duration duration of the run in seconds
+     * @param protocol protocol of the sink, udp or tcp
+     */
+    public KnockLoadGenerator(final Map<EnumFwknopRcKey, String> config, final int rate, final int concurrency,
+        final int duration, final String protocol) {
+        this(config, rate, concurrency, duration, protocol, null);
+    }
+
+    /**
+     * @param config settings of the stanza the packets are built from
+     * @param rate packets per second - 0 to send as fast as possible
+     * @param concurrency number of workers building and sending packets
+     * @param duration duration of the run in seconds
+     * @param protocol protocol of the sink, udp or tcp
+     * @param stanzas stanzas of an access file checking the packets - null to only count them
+     */
+    public KnockLoadGenerator(final Map<EnumFwknopRcKey, String> config, final int rate, final int concurrency,
+        final int duration, final String protocol, final List<AccessStanza> stanzas) {
+        this.config = new HashMap<>(config);
+        this.rate = rate;
+        this.concurrency = concurrency;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(duration);
+        this.protocol = protocol;
+        this.stanzas = stanzas;
+    }
+
+    /**
+     * Send packets to a local sink or receiver for the configured duration
+     *
+     * @return the throughput and latencies achieved
+     * @throws IOException if the sink cannot be started
+     * @throws SpaException if the stanza cannot be knocked with the in-process SPA engine
+     * @throws InterruptedException
+     */
+    public KnockLoadReport run() throws IOException, SpaException, InterruptedException {
+        SpaEncoder.checkSupported(this.config);
+
+        try (LoadSink sink = this.stanzas == null ? new LoadSink(this.protocol) : null;
+            SpaReceiver receiver = this.stanzas != null ? new SpaReceiver(this.stanzas, this.protocol,
+                InetAddress.getLoopbackAddress(), 0, Runtime.getRuntime().availableProcessors(), null) : null) {
+            final int port = sink != null ? sink.getPort() : receiver.getPort();
+            final Map<EnumFwknopRcKey, String> sinkConfig = new HashMap<>(this.config);
+            sinkConfig.put(EnumFwknopRcKey.SPA_SERVER, "127.0.0.1");
+            sinkConfig.put(EnumFwknopRcKey.SPA_SERVER_PORT, Integer.toString(port));
+            sinkConfig.put(EnumFwknopRcKey.SPA_SERVER_PROTO, this.protocol);
+
+            final LatencyHistogram encodeTimes = new LatencyHistogram();
+            final LatencyHistogram latencies = new LatencyHistogram();
+            final AtomicLong tickets = new AtomicLong();
+            final AtomicLong sent = new AtomicLong();
+            final AtomicLong failed = new AtomicLong();
+            final AtomicLong lastSend = new AtomicLong();
+            final AtomicReference<String> firstError = new AtomicReference<>();
+            final long interval = this.rate > 0 ? TimeUnit.SECONDS.toNanos(1) / this.rate : 0;
+
+            // Workers wait for the start time once their encoder is warmed up
+            final CountDownLatch ready = new CountDownLatch(this.concurrency);
+            final AtomicLong start = new AtomicLong();
+            final CountDownLatch started = new CountDownLatch(1);
+
+            final List<Thread> workers = new ArrayList<>();
+            for (int ix = 0; ix < this.concurrency; ix++) {
+                final Thread worker = new Thread(() -> {
+                    final SpaEncoder encoder = new SpaEncoder(sinkConfig);
+                    final SpaSender sender = new SpaSender();
+                    warmUp(encoder);
+                    ready.countDown();
+                    try {
+                        started.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    final long end = start.get() + this.durationNanos;
+                    while (true) {
+                        final long ticket = tickets.getAndIncrement();
+                        final long due = interval > 0 ? start.get() + ticket * interval : System.nanoTime();
+                        if (due - end >= 0) {
+                            break;
+                        }
+                        waitUntil(due);
+
+                        try {
+                            final long encodeStart = System.nanoTime();
+                            final SpaPacket packet = encoder.encode();
+                            final long encodeEnd = System.nanoTime();
+                            sender.send(packet);
+                            final long sendEnd = System.nanoTime();
+
+                            encodeTimes.record((encodeEnd - encodeStart) / 1000);
+                            latencies.record((sendEnd - (interval > 0 ? due : encodeStart)) / 1000);
+                            sent.incrementAndGet();
+                            lastSend.accumulateAndGet(sendEnd, Math::max);
+                        } catch (SpaException e) {
+                            failed.incrementAndGet();
+                            firstError.compareAndSet(null, e.getMessage());
+                        }
+                    }
+                }, "load-" + ix);
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+
+            ready.await();
+            start.set(System.nanoTime());
+            started.countDown();
+            for (final Thread worker : workers) {
+                worker.join();
+            }
+
+            // Wait for the packets in flight, and for the receiver as long as it is catching up
+            Thread.sleep(DRAIN_MS);
+            if (receiver != null) {
+                long checked = -1;
+                while (receiver.getReceived() < sent.get() && receiver.getReceived() != checked) {
+                    checked = receiver.getReceived();
+                    Thread.sleep(DRAIN_MS);
+                }
+            }
+
+            final long elapsed = Math.max(0, lastSend.get() - start.get());
+            final KnockLoadReport report = new KnockLoadReport(sent.get(), failed.get(),
+                sink != null ? sink.getPackets() : receiver.getReceived(), elapsed, encodeTimes, latencies,
+                firstError.get(), receiver != null ? receiver.toString() : null);
+            LOGGER.info("Load run against " + this.protocol + "/" + port + ":\n" + report);
+
+            return report;
+        }
+    }
+
+    /**
+     * Build a packet ahead of the run so that the keys are loaded and the ciphers initialized
+     */
+    private static void warmUp(final SpaEncoder encoder) {
+        try {
+            encoder.encode();
+        } catch (SpaException e) {
+            // Reported by the run itself
+            LOGGER.debug("Unable to build the warm up packet", e);
+        }
+    }
+
+    /**
+     * @param deadline time as given by System.nanoTime()
+     */
+    private static void waitUntil(final long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
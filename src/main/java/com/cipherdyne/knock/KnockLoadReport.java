@@ -0,0 +1,127 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of a run of the {@link KnockLoadGenerator}
+ */
+public class KnockLoadReport {
+
+    // Number of packets sent
+    private final long sent;
+
+    // Number of packets that could not be built or sent
+    private final long failed;
+
+    // Number of packets received by the sink
+    private final long received;
+
+    // Time from the first packet to the last one, in nanoseconds
+    private final long elapsedNanos;
+
+    // Time spent to build and encrypt each packet, in microseconds
+    private final LatencyHistogram encodeTimes;
+
+    // Time from the scheduled send time of each packet to the end of its send, in microseconds
+    private final LatencyHistogram latencies;
+
+    // First error raised - null if none
+    private final String firstError;
+
+    // Packets accepted and rejected by the SPA receiver - null if the packets were not checked
+    private final String receiverSummary;
+
+    KnockLoadReport(final long sent, final long failed, final long received, final long elapsedNanos,
+        final LatencyHistogram encodeTimes, final LatencyHistogram latencies, final String firstError,
+        final String receiverSummary) {
+        this.sent = sent;
+        this.failed = failed;
+        this.received = received;
+        this.elapsedNanos = elapsedNanos;
+        this.encodeTimes = encodeTimes;
+        this.latencies = latencies;
+        this.firstError = firstError;
+        this.receiverSummary = receiverSummary;
+    }
+
+    public long getSent() {
+        return this.sent;
+    }
+
+    public long getFailed() {
+        return this.failed;
+    }
+
+    public long getReceived() {
+        return this.received;
+    }
+
+    public long getElapsed() {
+        return TimeUnit.NANOSECONDS.toMillis(this.elapsedNanos);
+    }
+
+    /**
+     * @return the number of packets sent per second
+     */
+    public double getPacketsPerSecond() {
+        return this.elapsedNanos > 0 ? this.sent * 1e9 / this.elapsedNanos : 0;
+    }
+
+    public LatencyHistogram getEncodeTimes() {
+        return this.encodeTimes;
+    }
+
+    public LatencyHistogram getLatencies() {
+        return this.latencies;
+    }
+
+    public String getFirstError() {
+        return this.firstError;
+    }
+
+    public String getReceiverSummary() {
+        return this.receiverSummary;
+    }
+
+    private static String formatPercentiles(final LatencyHistogram histogram) {
+        return "p50 " + KnockTimings.format(histogram.getPercentile(50)) + ", p90 "
+            + KnockTimings.format(histogram.getPercentile(90)) + ", p99 " + KnockTimings.format(histogram.getPercentile(99))
+            + ", p99.9 " + KnockTimings.format(histogram.getPercentile(99.9)) + ", max "
+            + KnockTimings.format(histogram.getMax());
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("Packets  : ").append(this.sent).append(" sent, ").append(this.failed).append(" failed, ")
+            .append(this.received).append(" received in ").append(getElapsed()).append(" ms\n");
+        sb.append("Rate     : ").append(String.format("%.1f", getPacketsPerSecond())).append(" packets/s\n");
+        sb.append("Encode   : ").append(formatPercentiles(this.encodeTimes)).append('\n');
+        sb.append("Latency  : ").append(formatPercentiles(this.latencies));
+        if (this.receiverSummary != null) {
+            sb.append("\nChecked  : ").append(this.receiverSummary);
+        }
+        if (this.firstError != null) {
+            sb.append("\nError    : ").append(this.firstError);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.spa.DnsCache;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency histograms of the knocks, per configuration and per phase.
+ *
+ * Every knock result published on the {@link KnockEventBus} is recorded here, so the p50 and p99
+ * latencies of each gateway can be compared across runs to spot regressions.
+ */
+public class KnockMetrics {
+
+    // Singleton
+    private static KnockMetrics instance;
+
+    // Histograms of each configuration knocked so far
+    private final Map<KnockTarget, TargetMetrics> metrics = new ConcurrentHashMap<>();
+
+    private KnockMetrics() {
+    }
+
+    public static synchronized KnockMetrics getInstance() {
+        if (instance == null) {
+            instance = new KnockMetrics();
+        }
+        return instance;
+    }
+
+    /**
+     * Record the timings of a knock result event. Only the knocks actually sent are recorded since
+     * failed knocks often stop early and would hide the latency of the actual ones.
+     *
+     * @param event knock result event
+     */
+    public void record(final KnockResultEvent event) {
+        if (event.getOutcome() == EnumKnockOutcome.SENT && event.getTarget() != null && event.getTimings() != null) {
+            record(event.getTarget(), event.getTimings());
+        }
+    }
+
+    /**
+     * Record the timings of a knock
+     *
+     * @param target configuration that has been knocked
+     * @param timings time spent in each phase of the knock
+     */
+    public void record(final KnockTarget target, final KnockTimings timings) {
+        final TargetMetrics targetMetrics = this.metrics.computeIfAbsent(target, t -> new TargetMetrics());
+        for (final EnumKnockPhase phase : EnumKnockPhase.values()) {
+            targetMetrics.phases.get(phase).record(timings.getDuration(phase));
+        }
+        targetMetrics.total.record(timings.getTotal());
+    }
+
+    /**
+     * @return the configurations knocked so far
+     */
+    public List<KnockTarget> getTargets() {
+        return new ArrayList<>(this.metrics.keySet());
+    }
+
+    /**
+     * @param target configuration knocked
+     * @param phase phase of the knocks
+     * @return the histogram of the phase, or null if the configuration has not been knocked
+     */
+    public LatencyHistogram getHistogram(final KnockTarget target, final EnumKnockPhase phase) {
+        final TargetMetrics targetMetrics = this.metrics.get(target);
+        return targetMetrics == null ? null : targetMetrics.phases.get(phase);
+    }
+
+    /**
+     * @param target configuration knocked
+     * @return the histogram of the whole knocks, or null if the configuration has not been knocked
+     */
+    public LatencyHistogram getTotalHistogram(final KnockTarget target) {
+        final TargetMetrics targetMetrics = this.metrics.get(target);
+        return targetMetrics == null ? null : targetMetrics.total;
+    }
+
+    /**
+     * Build the latency summary of a configuration
+     *
+     * @param target configuration knocked
+     * @return the p50/p99 latencies of the knocks and of each phase as a single line
+     */
+    public String summarize(final KnockTarget target) {
+        final TargetMetrics targetMetrics = this.metrics.get(target);
+        if (targetMetrics == null) {
+            return target + " - no knock";
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append(target).append(" - ").append(targetMetrics.total.getCount()).append(" knocks, p50/p99 ")
+            .append(formatPercentiles(targetMetrics.total));
+        for (final EnumKnockPhase phase : EnumKnockPhase.values()) {
+            final LatencyHistogram histogram = targetMetrics.phases.get(phase);
+            if (histogram.getCount() > 0) {
+                sb.append(", ").append(phase.getLabel()).append(' ').append(formatPercentiles(histogram));
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @return the hit and miss counters of the caches used by the knocks as a single line
+     */
+    public String summarizeCaches() {
+        return DnsCache.getInstance() + " - " + KnockGrantCache.getInstance();
+    }
+
+    /**
+     * Drop all the histograms
+     */
+    public void clear() {
+        this.metrics.clear();
+    }
+
+    private static String formatPercentiles(final LatencyHistogram histogram) {
+        return KnockTimings.format(histogram.getPercentile(50)) + "/" + KnockTimings.format(histogram.getPercentile(99));
+    }
+
+    /**
+     * Histograms of a single configuration
+     */
+    private static class TargetMetrics {
+
+        private final Map<EnumKnockPhase, LatencyHistogram> phases = new EnumMap<>(EnumKnockPhase.class);
+        private final LatencyHistogram total = new LatencyHistogram();
+
+        private TargetMetrics() {
+            for (final EnumKnockPhase phase : EnumKnockPhase.values()) {
+                this.phases.put(phase, new LatencyHistogram());
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.jfwknop.EnumFwknopConfigKey;
+import com.cipherdyne.jfwknop.JFwknopConfig;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter shared by all the knocks, with one bucket per SPA server.
+ *
+ * Periodic knocks, manual knocks and scripts can overlap. A bucket refills at the configured rate
+ * and holds up to a burst of knocks. A knock that finds the bucket empty waits for its turn if it
+ * comes within the maximum queue delay, and is dropped otherwise. The limits are read from the
+ * JFwknop settings on each knock, so changes apply at once.
+ */
+public class KnockRateLimiter {
+
+    // Singleton
+    private static KnockRateLimiter instance;
+
+    // Buckets indexed by SPA server
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private KnockRateLimiter() {
+    }
+
+    public static synchronized KnockRateLimiter getInstance() {
+        if (instance == null) {
+            instance = new KnockRateLimiter();
+        }
+        return instance;
+    }
+
+    /**
+     * Take a token from the bucket of a SPA server, waiting for it if needed
+     *
+     * @param server SPA_SERVER of the knock - null or empty for no limit
+     * @throws RateLimitExceededException if the knock has to be dropped
+     * @throws InterruptedException if the thread is interrupted while waiting for its turn
+     */
+    public void acquire(final String server) throws RateLimitExceededException, InterruptedException {
+        final Map<EnumFwknopConfigKey, String> config = JFwknopConfig.getInstance().getConfigKey();
+        acquire(server, parse(config.get(EnumFwknopConfigKey.KNOCK_RATE_LIMIT), 0),
+            parse(config.get(EnumFwknopConfigKey.KNOCK_BURST), 1),
+            TimeUnit.SECONDS.toMillis(parse(config.get(EnumFwknopConfigKey.KNOCK_MAX_QUEUE_DELAY), 0)));
+    }
+
+    /**
+     * Take a token from the bucket of a SPA server, waiting for it if needed
+     *
+     * @param server SPA_SERVER of the knock - null or empty for no limit
+     * @param ratePerMinute maximum number of knocks per minute - 0 for no limit
+     * @param burst number of knocks that can be sent at once
+     * @param maxDelay time the knock can wait for its turn in milliseconds - 0 to drop it at once
+     * @throws RateLimitExceededException if the knock has to be dropped
+     * @throws InterruptedException if the thread is interrupted while waiting for its turn
+     */
+    public void acquire(final String server, final long ratePerMinute, final long burst, final long maxDelay)
+        throws RateLimitExceededException, InterruptedException {
+
+        if (server == null || server.trim().isEmpty() || ratePerMinute <= 0) {
+            return;
+        }
+
+        final String key = server.trim().toLowerCase(Locale.ROOT);
+        final long capacity = Math.max(1, burst);
+        final TokenBucket bucket = this.buckets.compute(key, (k, current) ->
+            current != null && current.ratePerMinute == ratePerMinute && current.capacity == capacity
+            ? current : new TokenBucket(ratePerMinute, capacity));
+
+        final long waitNanos = bucket.reserve(TimeUnit.MILLISECONDS.toNanos(maxDelay));
+        if (waitNanos < 0) {
+            throw new RateLimitExceededException("Knock dropped: more than " + ratePerMinute + " knocks per minute to "
+                + key + " (burst of " + capacity + ")");
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Drop all the buckets
+     */
+    public void clear() {
+        this.buckets.clear();
+    }
+
+    private static long parse(final String value, final long defaultValue) {
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NullPointerException | NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Bucket of a single SPA server. Waiting knocks reserve their token in advance, so they are
+     * served in order and a knock never waits longer than announced.
+     */
+    private static class TokenBucket {
+
+        private final long ratePerMinute;
+        private final long capacity;
+
+        // Time needed to get a new token in nanoseconds
+        private final double nanosPerToken;
+
+        // Available tokens - negative when tokens are reserved by waiting knocks
+        private double tokens;
+
+        // Last time the bucket has been refilled, as given by System.nanoTime()
+        private long lastRefill;
+
+        private TokenBucket(final long ratePerMinute, final long capacity) {
+            this.ratePerMinute = ratePerMinute;
+            this.capacity = capacity;
+            this.nanosPerToken = (double) TimeUnit.MINUTES.toNanos(1) / ratePerMinute;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        /**
+         * @param maxWaitNanos longest acceptable wait in nanoseconds
+         * @return the time to wait before knocking in nanoseconds, or -1 if the wait would be longer
+         * than acceptable
+         */
+        private synchronized long reserve(final long maxWaitNanos) {
+            final long now = System.nanoTime();
+            this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) / this.nanosPerToken);
+            this.lastRefill = now;
+
+            final long waitNanos = this.tokens >= 1 ? 0 : (long) Math.ceil((1 - this.tokens) * this.nanosPerToken);
+            if (waitNanos > maxWaitNanos) {
+                return -1;
+            }
+
+            this.tokens -= 1;
+            return waitNanos;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+/**
+ * Outcome of a single knock
+ */
+public class KnockResult {
+
+    // Configuration that has been knocked - null if unknown
+    private final KnockTarget target;
+
+    // True if the knock has been sent successfully
+    private final boolean success;
+
+    // Status message
+    private final String message;
+
+    // Time spent to knock in milliseconds
+    private final long duration;
+
+    // Time spent in each phase of the knock
+    private final KnockTimings timings;
+
+    /**
+     * @param target configuration that has been knocked
+     * @param success true if the knock has been sent successfully
+     * @param message status message
+     * @param duration time spent to knock in milliseconds
+     * @param timings time spent in each phase of the knock
+     */
+    public KnockResult(final KnockTarget target, final boolean success, final String message, final long duration,
+        final KnockTimings timings) {
+        this.target = target;
+        this.success = success;
+        this.message = message;
+        this.duration = duration;
+        this.timings = timings;
+    }
+
+    public KnockTarget getTarget() {
+        return this.target;
+    }
+
+    public boolean isSuccess() {
+        return this.success;
+    }
+
+    public String getMessage() {
+        return this.message;
+    }
+
+    public long getDuration() {
+        return this.duration;
+    }
+
+    public KnockTimings getTimings() {
+        return this.timings;
+    }
+
+    @Override
+    public String toString() {
+        return (this.success ? "OK    " : "FAILED") + (this.target != null ? " " + this.target : "")
+            + " (" + this.duration + " ms) : " + this.message;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.jfwknop.EnumKnockEngine;
+import com.cipherdyne.jfwknop.ProcessResult;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Typed result of a knock, published on the {@link KnockEventBus} by every knock path.
+ *
+ * The outcome of knocks run with the fwknop binary is derived once from the process result and its
+ * output, so that subscribers never have to parse console lines.
+ */
+public class KnockResultEvent {
+
+    // Packet size reported when it is not known
+    public static final int UNKNOWN_SIZE = -1;
+
+    // Line printed by fwknop in verbose mode before the SPA data
+    private static final String FWKNOP_DATA_HEADER = "Final Packed/Encrypted/Encoded Data:";
+
+    // Result of the knock
+    private final KnockResult result;
+
+    // Engine that has run the knock
+    private final EnumKnockEngine engine;
+
+    // Outcome of the knock
+    private final EnumKnockOutcome outcome;
+
+    // Class of error that made the knock fail - NONE if successful
+    private final EnumKnockError error;
+
+    // Size of the SPA data in bytes - UNKNOWN_SIZE if not known
+    private final int packetSize;
+
+    // Outcome of the probes of the ports opened by the knock - empty if not verified
+    private final List<PortProbeResult> probes;
+
+    // Time at which the knock completed in milliseconds since the epoch
+    private final long timestamp;
+
+    /**
+     * @param result result of the knock
+     * @param engine engine that has run the knock
+     * @param outcome outcome of the knock
+     * @param error class of error that made the knock fail - NONE if successful
+     * @param packetSize size of the SPA data in bytes - UNKNOWN_SIZE if not known
+     */
+    public KnockResultEvent(final KnockResult result, final EnumKnockEngine engine, final EnumKnockOutcome outcome,
+        final EnumKnockError error, final int packetSize) {
+        this(result, engine, outcome, error, packetSize, Collections.emptyList());
+    }
+
+    /**
+     * @param result result of the knock
+     * @param engine engine that has run the knock
+     * @param outcome outcome of the knock
+     * @param error class of error that made the knock fail - NONE if successful
+     * @param packetSize size of the SPA data in bytes - UNKNOWN_SIZE if not known
+     * @param probes outcome of the probes of the ports opened by the knock - empty if not verified
+     */
+    public KnockResultEvent(final KnockResult result, final EnumKnockEngine engine, final EnumKnockOutcome outcome,
+        final EnumKnockError error, final int packetSize, final List<PortProbeResult> probes) {
+        this.result = result;
+        this.probes = Collections.unmodifiableList(probes);
+        this.engine = engine;
+        this.outcome = outcome;
+        this.error = error;
+        this.packetSize = packetSize;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Build the event of a knock run with the fwknop binary
+     *
+     * @param target configuration knocked - null if unknown
+     * @param processResult outcome of the fwknop process
+     * @param timings timings of the knock
+     * @param probes outcome of the probes of the ports opened by the knock - empty if not verified
+     * @return the result event of the knock
+     */
+    public static KnockResultEvent fromProcess(final KnockTarget target, final ProcessResult processResult,
+        final KnockTimings timings, final List<PortProbeResult> probes) {
+
+        final String closedPorts = PortProbe.describeClosedPorts(probes);
+        final EnumKnockOutcome outcome;
+        final EnumKnockError error;
+        if (processResult.isSuccess() && closedPorts != null) {
+            return new KnockResultEvent(
+                new KnockResult(target, false, "fwknop completed but " + closedPorts, processResult.getDuration(), timings),
+                EnumKnockEngine.FWKNOP, EnumKnockOutcome.FAILED, EnumKnockError.PORT_CLOSED,
+                parsePacketSize(processResult.getOutput()), probes);
+        } else if (processResult.isSuccess()) {
+            outcome = EnumKnockOutcome.SENT;
+            error = EnumKnockError.NONE;
+        } else if (processResult.isCancelled()) {
+            outcome = EnumKnockOutcome.STOPPED;
+            error = EnumKnockError.INTERRUPTED;
+        } else {
+            outcome = EnumKnockOutcome.FAILED;
+            error = processResult.isTimedOut() ? EnumKnockError.TIMEOUT : EnumKnockError.PROCESS;
+        }
+
+        final String lastLine = processResult.getLastLine();
+        final String message = outcome == EnumKnockOutcome.SENT
+            ? (lastLine != null ? lastLine : "fwknop completed")
+            : "fwknop " + processResult + (lastLine != null ? ": " + lastLine : "");
+
+        return new KnockResultEvent(
+            new KnockResult(target, outcome == EnumKnockOutcome.SENT, message, processResult.getDuration(), timings),
+            EnumKnockEngine.FWKNOP, outcome, error, parsePacketSize(processResult.getOutput()), probes);
+    }
+
+    /**
+     * Look for the SPA data in the output of fwknop. It is only printed in verbose mode.
+     *
+     * @param output lines printed by fwknop
+     * @return the size of the SPA data in bytes, or UNKNOWN_SIZE if not printed
+     */
+    static int parsePacketSize(final List<String> output) {
+        boolean afterHeader = false;
+        for (final String line : output) {
+            if (line.trim().startsWith(FWKNOP_DATA_HEADER)) {
+                afterHeader = true;
+            } else if (afterHeader && !line.trim().isEmpty()) {
+                return line.trim().length();
+            }
+        }
+        return UNKNOWN_SIZE;
+    }
+
+    public KnockResult getResult() {
+        return this.result;
+    }
+
+    /**
+     * @return the configuration knocked - null if unknown
+     */
+    public KnockTarget getTarget() {
+        return this.result.getTarget();
+    }
+
+    /**
+     * @return the stanza knocked - null if the configuration is unknown
+     */
+    public String getStanza() {
+        return this.result.getTarget() == null ? null : this.result.getTarget().getStanzaOrDefault();
+    }
+
+    public EnumKnockEngine getEngine() {
+        return this.engine;
+    }
+
+    public EnumKnockOutcome getOutcome() {
+        return this.outcome;
+    }
+
+    public EnumKnockError getError() {
+        return this.error;
+    }
+
+    public int getPacketSize() {
+        return this.packetSize;
+    }
+
+    /**
+     * @return the timings of the knock - null if not measured
+     */
+    public KnockTimings getTimings() {
+        return this.result.getTimings();
+    }
+
+    /**
+     * @return the outcome of the probes of the ports opened by the knock - empty if not verified
+     */
+    public List<PortProbeResult> getProbes() {
+        return this.probes;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return this.result + (this.error != EnumKnockError.NONE ? " [" + this.error + "]" : "")
+            + (this.probes.isEmpty() ? "" : " - " + this.probes);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.jfwknop.IKnockCommand;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Central scheduler of the periodic knocks.
+ *
+ * All deadlines are kept in a single timer wheel thread, the knocks themselves are run on a bounded
+ * pool of threads. Periodic knocks are scheduled at absolute deadlines computed from the first run,
+ * so the time spent to knock does not shift the following runs.
+ */
+public class KnockScheduler {
+
+    // Resolution of the timer wheel in milliseconds
+    private static final long TICK_MS = 10;
+
+    // Maximum number of knocks run at the same time
+    private static final int MAX_THREADS = 16;
+
+    // Time after which idle knock threads are released
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    // Singleton
+    private static KnockScheduler instance;
+
+    // Wheel holding the deadlines of all scheduled knocks
+    private final TimerWheel wheel;
+
+    // Bounded pool of threads running the knocks
+    private final ThreadPoolExecutor executor;
+
+    private KnockScheduler() {
+        this.wheel = new TimerWheel(TICK_MS, TimeUnit.MILLISECONDS, "knock-scheduler");
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "knock-scheduled-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized KnockScheduler getInstance() {
+        if (instance == null) {
+            instance = new KnockScheduler();
+        }
+        return instance;
+    }
+
+    /**
+     * Run a command once, as soon as possible
+     *
+     * @param command knock command to run
+     * @return the handle used to cancel the command
+     */
+    public ScheduledKnock schedule(final IKnockCommand command) {
+        return schedule(command, 0, 0);
+    }
+
+    /**
+     * Run a command now and then periodically
+     *
+     * @param command knock command to run
+     * @param period period between two runs in milliseconds - 0 to run the command only once
+     * @param jitter maximum random shift, before or after, applied to each run in milliseconds
+     * @return the handle used to cancel the command
+     */
+    public ScheduledKnock schedule(final IKnockCommand command, final long period, final long jitter) {
+        final ScheduledKnock knock = new ScheduledKnock(command, this.wheel, this.executor,
+            TimeUnit.MILLISECONDS.toNanos(period), TimeUnit.MILLISECONDS.toNanos(jitter));
+        knock.start(System.nanoTime());
+
+        return knock;
+    }
+
+    /**
+     * Run a command now and then again each time the access it opened is about to expire
+     *
+     * @param command knock command to run
+     * @param interval period of the knock, updated after each run
+     * @param jitter maximum random shift, only before, applied to each run in milliseconds
+     * @return the handle used to cancel the command
+     */
+    public ScheduledKnock schedule(final IKnockCommand command, final AdaptiveKnockInterval interval,
+        final long jitter) {
+        final ScheduledKnock knock = new ScheduledKnock(command, this.wheel, this.executor, interval,
+            TimeUnit.MILLISECONDS.toNanos(jitter));
+        knock.start(System.nanoTime());
+
+        return knock;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.jfwknop.RcFile;
+
+/**
+ * Configuration to knock: a rc file and optionally one of its stanzas
+ */
+public class KnockTarget {
+
+    // Path to the rc file
+    private final String rcFilename;
+
+    // Stanza to knock - null to use the default stanza
+    private final String stanza;
+
+    /**
+     * @param rcFilename path to the rc file
+     * @param stanza stanza to knock, or null to use the default stanza
+     */
+    public KnockTarget(final String rcFilename, final String stanza) {
+        this.rcFilename = rcFilename;
+        this.stanza = stanza;
+    }
+
+    public String getRcFilename() {
+        return this.rcFilename;
+    }
+
+    public String getStanza() {
+        return this.stanza;
+    }
+
+    /**
+     * @return the stanza to knock, or the default stanza if none is set
+     */
+    public String getStanzaOrDefault() {
+        return this.stanza == null ? RcFile.DEFAULT_STANZA : this.stanza;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof KnockTarget)) {
+            return false;
+        }
+        final KnockTarget other = (KnockTarget) obj;
+        return this.rcFilename.equals(other.rcFilename) && getStanzaOrDefault().equals(other.getStanzaOrDefault());
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.rcFilename.hashCode() + getStanzaOrDefault().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.stanza == null ? this.rcFilename : this.rcFilename + " [" + this.stanza + "]";
+    }
+}
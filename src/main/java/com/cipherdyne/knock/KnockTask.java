@@ -0,0 +1,251 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.jfwknop.EnumFwknopRcKey;
+import com.cipherdyne.jfwknop.EnumKnockEngine;
+import com.cipherdyne.jfwknop.ExternalCommand;
+import com.cipherdyne.jfwknop.ProcessResult;
+import com.cipherdyne.jfwknop.ProcessRunner;
+import com.cipherdyne.jfwknop.RcFile;
+import com.cipherdyne.spa.SpaEncoder;
+import com.cipherdyne.spa.SpaException;
+import com.cipherdyne.spa.SpaPacket;
+import com.cipherdyne.spa.SpaSender;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Knock a single configuration and report the outcome.
+ *
+ * The in-process SPA engine is used when selected and able to handle the configuration, the fwknop
+ * binary otherwise.
+ */
+public class KnockTask implements Callable<KnockResult> {
+
+    static final Logger LOGGER = LogManager.getLogger(KnockTask.class.getName());
+
+    // Configuration to knock
+    private final KnockTarget target;
+
+    // Engine selected by the user
+    private final EnumKnockEngine engine;
+
+    // Path to the fwknop binary used as a fallback
+    private final String fwknopFilePath;
+
+    // Cache of the rc settings - null to parse the rc file on each knock
+    private final RcConfigCache configCache;
+
+    /**
+     * @param target configuration to knock
+     * @param engine engine selected by the user
+     * @param fwknopFilePath path to the fwknop binary
+     */
+    public KnockTask(final KnockTarget target, final EnumKnockEngine engine, final String fwknopFilePath) {
+        this(target, engine, fwknopFilePath, null);
+    }
+
+    /**
+     * @param target configuration to knock
+     * @param engine engine selected by the user
+     * @param fwknopFilePath path to the fwknop binary
+     * @param configCache cache of the rc settings - null to parse the rc file
+     */
+    public KnockTask(final KnockTarget target, final EnumKnockEngine engine, final String fwknopFilePath,
+        final RcConfigCache configCache) {
+        this.target = target;
+        this.engine = engine;
+        this.fwknopFilePath = fwknopFilePath;
+        this.configCache = configCache;
+    }
+
+    @Override
+    public KnockResult call() {
+        final long start = System.nanoTime();
+        final KnockTimings timings = new KnockTimings();
+
+        final Map<EnumFwknopRcKey, String> config;
+        try {
+            config = loadConfig();
+            timings.mark(EnumKnockPhase.CONFIG);
+        } catch (IOException e) {
+            return failConfig(e.getMessage(), start, timings);
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to load the settings of " + this.target, e);
+            return failConfig(e.toString(), start, timings);
+        }
+
+        return KnockGrantCache.getInstance().knock(this.target, config, false,
+            () -> knock(config, start, timings)).getResult();
+    }
+
+    /**
+     * Knock the configuration. The result is published by the {@link KnockGrantCache}.
+     *
+     * @param config settings of the stanza to knock
+     * @param start time at which the task started as given by System.nanoTime()
+     * @param timings timings of the knock
+     * @return the result event of the knock
+     */
+    private KnockResultEvent knock(final Map<EnumFwknopRcKey, String> config, final long start,
+        final KnockTimings timings) {
+        KnockResultEvent event;
+
+        // Class of error reported if the current step fails
+        EnumKnockError failure = EnumKnockError.NETWORK;
+        EnumKnockEngine usedEngine = this.engine;
+        int packetSize = KnockResultEvent.UNKNOWN_SIZE;
+
+        try {
+            KnockRateLimiter.getInstance().acquire(config.get(EnumFwknopRcKey.SPA_SERVER));
+            timings.mark(EnumKnockPhase.QUEUE);
+
+            if (useSpaEngine(config)) {
+                failure = EnumKnockError.ENCODING;
+                final SpaEncoder encoder = new SpaEncoder(config);
+                timings.mark(EnumKnockPhase.BUILD);
+                final SpaPacket packet = encoder.encode();
+                timings.mark(EnumKnockPhase.START);
+                packetSize = packet.getData().length();
+
+                failure = EnumKnockError.NETWORK;
+                new SpaSender().send(packet);
+                timings.mark(EnumKnockPhase.COMPLETE);
+
+                final List<PortProbeResult> probes = PortProbe.verifyIfEnabled(config, timings);
+                final String closedPorts = PortProbe.describeClosedPorts(probes);
+                event = closedPorts == null
+                    ? new KnockResultEvent(createResult(true, "SPA packet sent to " + packet, start, timings),
+                        EnumKnockEngine.JAVA, EnumKnockOutcome.SENT, EnumKnockError.NONE, packetSize, probes)
+                    : new KnockResultEvent(createResult(false, "SPA packet sent to " + packet + " but " + closedPorts, start,
+                        timings), EnumKnockEngine.JAVA, EnumKnockOutcome.FAILED, EnumKnockError.PORT_CLOSED, packetSize, probes);
+            } else {
+                usedEngine = EnumKnockEngine.FWKNOP;
+                failure = EnumKnockError.PROCESS;
+                final ProcessResult processResult = runFwknop(timings);
+                event = KnockResultEvent.fromProcess(this.target, processResult, timings, processResult.isSuccess()
+                    ? PortProbe.verifyIfEnabled(config, timings) : Collections.<PortProbeResult>emptyList());
+            }
+        } catch (IOException | SpaException e) {
+            event = new KnockResultEvent(createResult(false, e.getMessage(), start, timings), usedEngine,
+                EnumKnockOutcome.FAILED, failure, packetSize);
+        } catch (RateLimitExceededException e) {
+            event = new KnockResultEvent(createResult(false, e.getMessage(), start, timings), usedEngine,
+                EnumKnockOutcome.DROPPED, EnumKnockError.RATE_LIMITED, packetSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            event = new KnockResultEvent(createResult(false, "Interrupted", start, timings), usedEngine,
+                EnumKnockOutcome.STOPPED, EnumKnockError.INTERRUPTED, packetSize);
+        } catch (RuntimeException e) {
+            // Report a failure rather than failing the whole fan-out
+            LOGGER.error("Unexpected error while knocking " + this.target, e);
+            event = new KnockResultEvent(createResult(false, e.toString(), start, timings), usedEngine,
+                EnumKnockOutcome.FAILED, failure, packetSize);
+        }
+
+        LOGGER.info(event + " - " + timings);
+
+        return event;
+    }
+
+    /**
+     * Publish the failure of a knock whose settings cannot be loaded
+     *
+     * @param message reason of the failure
+     * @param start time at which the task started as given by System.nanoTime()
+     * @param timings timings of the knock
+     * @return the failed result
+     */
+    private KnockResult failConfig(final String message, final long start, final KnockTimings timings) {
+        final KnockResultEvent event = new KnockResultEvent(createResult(false, message, start, timings),
+            this.engine, EnumKnockOutcome.FAILED, EnumKnockError.CONFIG, KnockResultEvent.UNKNOWN_SIZE);
+        LOGGER.info(event + " - " + timings);
+        KnockEventBus.getInstance().publish(event);
+        return event.getResult();
+    }
+
+    private KnockResult createResult(final boolean success, final String message, final long start,
+        final KnockTimings timings) {
+        return new KnockResult(this.target, success, message, (System.nanoTime() - start) / 1000000, timings);
+    }
+
+    /**
+     * @return the settings of the stanza to knock
+     * @throws IOException if the rc file cannot be read
+     */
+    private Map<EnumFwknopRcKey, String> loadConfig() throws IOException {
+        if (this.configCache != null) {
+            return this.configCache.getConfig(this.target);
+        }
+
+        final RcFile rcFile = new RcFile(this.target.getRcFilename());
+        rcFile.parse(this.target.getStanza());
+        return rcFile.getConfig();
+    }
+
+    /**
+     * @param config settings of the stanza to knock
+     * @return true if the knock can be sent with the in-process SPA engine
+     */
+    private boolean useSpaEngine(final Map<EnumFwknopRcKey, String> config) {
+        if (this.engine != EnumKnockEngine.JAVA) {
+            return false;
+        }
+        try {
+            SpaEncoder.checkSupported(config);
+            return true;
+        } catch (SpaException e) {
+            LOGGER.info("Falling back to the fwknop binary for " + this.target + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Knock with the fwknop binary and wait for it to complete
+     *
+     * @param timings timings of the knock to complete
+     * @return the outcome of the fwknop process
+     * @throws IOException if the binary cannot be run
+     * @throws InterruptedException
+     */
+    private ProcessResult runFwknop(final KnockTimings timings) throws IOException, InterruptedException {
+        final List<String> args = new ArrayList<>();
+        args.add(this.fwknopFilePath);
+        args.add("--rc-file");
+        args.add(this.target.getRcFilename());
+        if (this.target.getStanza() != null) {
+            args.add("-n");
+            args.add(this.target.getStanza());
+        }
+        timings.mark(EnumKnockPhase.BUILD);
+
+        final ProcessResult result = new ProcessRunner(args.toArray(new String[args.size()]),
+            ExternalCommand.KNOCK_TIMEOUT, null).run();
+        timings.recordProcess(result);
+
+        return result;
+    }
+}
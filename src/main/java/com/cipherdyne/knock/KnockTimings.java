@@ -0,0 +1,145 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.jfwknop.ProcessResult;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Time spent in each phase of a single knock.
+ *
+ * Phases are closed in order with {@link #mark(EnumKnockPhase)}, which records the time elapsed
+ * since the previous mark. Phases that do not apply to a knock, such as the first output of the
+ * in-process SPA engine, are simply not recorded.
+ */
+public class KnockTimings {
+
+    // Duration reported for phases that have not been recorded
+    public static final long NOT_RECORDED = -1;
+
+    // Duration of each phase in microseconds
+    private final long[] durations = new long[EnumKnockPhase.values().length];
+
+    // Time of the last mark, as given by System.nanoTime()
+    private long lastMark;
+
+    public KnockTimings() {
+        Arrays.fill(this.durations, NOT_RECORDED);
+        this.lastMark = System.nanoTime();
+    }
+
+    /**
+     * @param setupTimings timings of the setup of a knock command, or null if already reported
+     * @return the setup timings restarted for their first knock, or new timings for the following
+     * knocks
+     */
+    public static KnockTimings resume(final KnockTimings setupTimings) {
+        if (setupTimings == null) {
+            return new KnockTimings();
+        }
+        setupTimings.restart();
+        return setupTimings;
+    }
+
+    /**
+     * Restart the clock without clearing the phases already recorded. This is used when a knock
+     * prepared beforehand is actually run, so that the wait in between is not accounted.
+     */
+    public void restart() {
+        this.lastMark = System.nanoTime();
+    }
+
+    /**
+     * Close a phase
+     *
+     * @param phase phase that ends now
+     */
+    public void mark(final EnumKnockPhase phase) {
+        final long now = System.nanoTime();
+        this.durations[phase.ordinal()] = (now - this.lastMark) / 1000;
+        this.lastMark = now;
+    }
+
+    /**
+     * Record a phase measured elsewhere and move the clock forward by its duration
+     *
+     * @param phase phase to record
+     * @param duration duration of the phase in microseconds
+     */
+    public void record(final EnumKnockPhase phase, final long duration) {
+        this.durations[phase.ordinal()] = duration;
+        this.lastMark += duration * 1000;
+    }
+
+    /**
+     * Record the start, first output and completion phases of a knock run with the fwknop binary
+     *
+     * @param result outcome of the fwknop process
+     */
+    public void recordProcess(final ProcessResult result) {
+        if (result.getSpawnTime() != ProcessResult.NO_TIME) {
+            record(EnumKnockPhase.START, result.getSpawnTime());
+            if (result.getFirstOutputTime() != ProcessResult.NO_TIME) {
+                record(EnumKnockPhase.FIRST_OUTPUT, Math.max(0, result.getFirstOutputTime() - result.getSpawnTime()));
+            }
+        }
+        mark(EnumKnockPhase.COMPLETE);
+    }
+
+    /**
+     * @param phase phase of the knock
+     * @return the duration of the phase in microseconds, or NOT_RECORDED
+     */
+    public long getDuration(final EnumKnockPhase phase) {
+        return this.durations[phase.ordinal()];
+    }
+
+    /**
+     * @return the sum of the recorded phases in microseconds
+     */
+    public long getTotal() {
+        long total = 0;
+        for (final long duration : this.durations) {
+            if (duration != NOT_RECORDED) {
+                total += duration;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @param micros duration in microseconds
+     * @return the duration in microseconds or milliseconds, whichever is more readable
+     */
+    public static String format(final long micros) {
+        return micros < 1000 ? micros + " us" : String.format(Locale.ROOT, "%.1f ms", micros / 1000.0);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (final EnumKnockPhase phase : EnumKnockPhase.values()) {
+            if (getDuration(phase) != NOT_RECORDED) {
+                sb.append(phase.getLabel()).append(' ').append(format(getDuration(phase))).append(", ");
+            }
+        }
+        return sb.append("total ").append(format(getTotal())).toString();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Local sink counting the SPA packets sent by the {@link KnockLoadGenerator}.
+ *
+ * The sink listens on the loopback interface, over udp or over tcp with one connection per packet
+ * as expected by fwknopd. All channels are served by a single selector thread so that the sink
+ * takes as little CPU as possible from the generator.
+ */
+public class LoadSink implements Closeable {
+
+    static final Logger LOGGER = LogManager.getLogger(LoadSink.class.getName());
+
+    // Size of the socket receive buffer, large enough to absorb bursts of udp packets
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    // Largest SPA packet accepted
+    private static final int MAX_PACKET_SIZE = 65536;
+
+    private final Selector selector;
+
+    // Channel packets or connections are received on
+    private final SelectableChannel channel;
+
+    // Port the sink listens to
+    private final int port;
+
+    private final Thread worker;
+
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private volatile boolean isRunning;
+
+    /**
+     * Create and start a sink on a free port of the loopback interface
+     *
+     * @param protocol udp or tcp
+     * @throws IOException if the sink cannot listen
+     */
+    public LoadSink(final String protocol) throws IOException {
+        this.selector = Selector.open();
+        final InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+        if ("tcp".equals(protocol)) {
+            final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(address, 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+            this.port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+            this.channel = serverChannel;
+        } else if ("udp".equals(protocol)) {
+            final DatagramChannel datagramChannel = DatagramChannel.open();
+            datagramChannel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            datagramChannel.bind(address);
+            datagramChannel.configureBlocking(false);
+            datagramChannel.register(this.selector, SelectionKey.OP_READ);
+            this.port = ((InetSocketAddress) datagramChannel.getLocalAddress()).getPort();
+            this.channel = datagramChannel;
+        } else {
+            this.selector.close();
+            throw new IOException("Unsupported sink protocol: " + protocol);
+        }
+
+        this.isRunning = true;
+        this.worker = new Thread(this::run, "load-sink");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Main loop of the sink thread
+     */
+    private void run() {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+
+        while (this.isRunning) {
+            try {
+                this.selector.select();
+                final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                    } else if (key.channel() instanceof DatagramChannel) {
+                        receive((DatagramChannel) key.channel(), buffer);
+                    } else {
+                        read(key, buffer);
+                    }
+                }
+            } catch (IOException e) {
+                if (this.isRunning) {
+                    LOGGER.error("Load sink failed", e);
+                }
+            }
+        }
+    }
+
+    private void accept(final ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel client;
+        while ((client = serverChannel.accept()) != null) {
+            client.configureBlocking(false);
+            client.register(this.selector, SelectionKey.OP_READ);
+        }
+    }
+
+    private void receive(final DatagramChannel datagramChannel, final ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (datagramChannel.receive(buffer) != null) {
+            this.packets.incrementAndGet();
+            this.bytes.addAndGet(buffer.position());
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Read a tcp connection, a packet is counted once the client has closed it
+     */
+    private void read(final SelectionKey key, final ByteBuffer buffer) {
+        final SocketChannel client = (SocketChannel) key.channel();
+        try {
+            int read;
+            buffer.clear();
+            while ((read = client.read(buffer)) > 0) {
+                this.bytes.addAndGet(read);
+                buffer.clear();
+            }
+            if (read < 0) {
+                this.packets.incrementAndGet();
+                key.cancel();
+                client.close();
+            }
+        } catch (IOException e) {
+            key.cancel();
+            try {
+                client.close();
+            } catch (IOException ex) {
+                LOGGER.debug("Unable to close sink connection", ex);
+            }
+        }
+    }
+
+    /**
+     * @return the port the sink listens to on the loopback interface
+     */
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * @return the number of packets received
+     */
+    public long getPackets() {
+        return this.packets.get();
+    }
+
+    /**
+     * @return the number of bytes received
+     */
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+    /**
+     * Stop the sink and release its port
+     */
+    @Override
+    public void close() throws IOException {
+        this.isRunning = false;
+        this.selector.wakeup();
+        try {
+            this.worker.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (final SelectionKey key : this.selector.keys()) {
+            key.channel().close();
+        }
+        this.channel.close();
+        this.selector.close();
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.jfwknop.EnumFwknopConfigKey;
+import com.cipherdyne.jfwknop.EnumFwknopRcKey;
+import com.cipherdyne.jfwknop.JFwknopConfig;
+import com.cipherdyne.spa.DnsCache;
+import com.cipherdyne.spa.SpaException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Check that the ports requested by a knock actually open.
+ *
+ * Each tcp port of ACCESS, or the external port of NAT_ACCESS, is probed with asynchronous connect
+ * attempts on a short exponential backoff until it accepts a connection or the probe times out.
+ * All the ports of a knock are probed at the same time. udp ports cannot be checked with a
+ * connection and are not probed.
+ */
+public class PortProbe {
+
+    static final Logger LOGGER = LogManager.getLogger(PortProbe.class.getName());
+
+    // Time given to a port to open after the knock, in milliseconds
+    public static final long PROBE_TIMEOUT = 5000;
+
+    // Delay before the first retry, doubled after each attempt, in milliseconds
+    private static final long INITIAL_BACKOFF = 25;
+
+    // Longest delay between two attempts, in milliseconds
+    private static final long MAX_BACKOFF = 500;
+
+    // Longest time given to a single connection attempt, in milliseconds
+    private static final long ATTEMPT_TIMEOUT = 1000;
+
+    // Thread scheduling the retries and the attempt timeouts
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "port-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Address probed
+    private final InetSocketAddress address;
+
+    // Probed port as proto/port
+    private final String access;
+
+    // Time at which the probe started, as given by System.nanoTime()
+    private final long start;
+
+    // Result of the probe
+    private final CompletableFuture<PortProbeResult> result = new CompletableFuture<>();
+
+    private int attempts;
+
+    private PortProbe(final InetSocketAddress address, final String access) {
+        this.address = address;
+        this.access = access;
+        this.start = System.nanoTime();
+        this.attempts = 0;
+    }
+
+    /**
+     * @return true if the knocks have to be verified according to the JFwknop settings
+     */
+    public static boolean isEnabled() {
+        return "1".equals(JFwknopConfig.getInstance().getConfigKey().get(EnumFwknopConfigKey.KNOCK_VERIFY));
+    }
+
+    /**
+     * Probe the ports of a knock if the verification is enabled, and wait for all of them
+     *
+     * @param config rc settings of the knock
+     * @param timings timings of the knock, the time until all the ports opened is recorded
+     * @return the outcome of each probe - empty if the verification is disabled
+     * @throws InterruptedException if the thread is interrupted while waiting for the probes
+     */
+    public static List<PortProbeResult> verifyIfEnabled(final Map<EnumFwknopRcKey, String> config,
+        final KnockTimings timings) throws InterruptedException {
+
+        if (!isEnabled()) {
+            return Collections.emptyList();
+        }
+
+        final List<PortProbeResult> results = verify(config);
+        timings.mark(EnumKnockPhase.OPEN);
+
+        return results;
+    }
+
+    /**
+     * Probe the ports of a knock and wait for all of them
+     *
+     * @param config rc settings of the knock
+     * @return the outcome of each probe
+     * @throws InterruptedException if the thread is interrupted while waiting for the probes
+     */
+    public static List<PortProbeResult> verify(final Map<EnumFwknopRcKey, String> config) throws InterruptedException {
+        final InetAddress server;
+        try {
+            server = DnsCache.getInstance().lookup(config.get(EnumFwknopRcKey.SPA_SERVER).trim());
+        } catch (SpaException | NullPointerException e) {
+            LOGGER.info("Unable to verify the knock : " + e.getMessage());
+            return Collections.emptyList();
+        }
+
+        final List<CompletableFuture<PortProbeResult>> futures = new ArrayList<>();
+        for (final String access : listProbedPorts(config)) {
+            final int port = Integer.parseInt(access.substring(access.indexOf('/') + 1));
+            futures.add(probe(new InetSocketAddress(server, port), access));
+        }
+
+        final List<PortProbeResult> results = new ArrayList<>();
+        for (final CompletableFuture<PortProbeResult> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                LOGGER.error("Port probe failed", e);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * @param results outcome of the probes of a knock
+     * @return the description of the ports that did not open, or null if all of them opened
+     */
+    public static String describeClosedPorts(final List<PortProbeResult> results) {
+        final List<String> closed = new ArrayList<>();
+        for (final PortProbeResult result : results) {
+            if (!result.isOpen()) {
+                closed.add(result.getAccess());
+            }
+        }
+        return closed.isEmpty() ? null : String.join(", ", closed) + " did not open within " + PROBE_TIMEOUT + " ms";
+    }
+
+    /**
+     * List the tcp ports opened by a knock on the SPA server
+     *
+     * @param config rc settings of the knock
+     * @return the ports as tcp/port
+     */
+    static List<String> listProbedPorts(final Map<EnumFwknopRcKey, String> config) {
+        final List<String> ports = new ArrayList<>();
+        final String access = config.get(EnumFwknopRcKey.ACCESS);
+        if (access == null) {
+            return ports;
+        }
+
+        final List<String> tcpPorts = new ArrayList<>();
+        for (final String entry : access.replaceAll("\\s", "").toLowerCase(Locale.ROOT).split(",")) {
+            if (entry.matches("tcp/\\d+")) {
+                tcpPorts.add(entry);
+            }
+        }
+
+        // With NAT, the server forwards its external port to the internal host
+        final String natAccess = config.get(EnumFwknopRcKey.NAT_ACCESS);
+        final String natPort = config.get(EnumFwknopRcKey.NAT_PORT);
+        if ("Y".equalsIgnoreCase(config.get(EnumFwknopRcKey.NAT_LOCAL))) {
+            if (!tcpPorts.isEmpty() && natPort != null && natPort.trim().matches("\\d+")) {
+                ports.add("tcp/" + natPort.trim());
+            }
+        } else if (natAccess != null && !natAccess.trim().isEmpty()) {
+            final String[] fields = natAccess.trim().split("[,:/]");
+            if (!tcpPorts.isEmpty() && fields.length == 2 && fields[1].trim().matches("\\d+")) {
+                ports.add("tcp/" + fields[1].trim());
+            }
+        } else {
+            ports.addAll(tcpPorts);
+        }
+
+        return ports;
+    }
+
+    /**
+     * Probe a port until it accepts a connection or the probe times out
+     *
+     * @param address address to connect to
+     * @param access probed port as proto/port
+     * @return a future completed with the outcome of the probe
+     */
+    public static CompletableFuture<PortProbeResult> probe(final InetSocketAddress address, final String access) {
+        final PortProbe portProbe = new PortProbe(address, access);
+        portProbe.attempt(INITIAL_BACKOFF);
+        return portProbe.result;
+    }
+
+    /**
+     * Try to connect once
+     *
+     * @param backoff delay before the next attempt if this one fails
+     */
+    private void attempt(final long backoff) {
+        this.attempts++;
+
+        final AsynchronousSocketChannel channel;
+        try {
+            channel = AsynchronousSocketChannel.open();
+        } catch (IOException e) {
+            this.result.completeExceptionally(e);
+            return;
+        }
+
+        // Asynchronous connections have no timeout of their own, a filtered port would hang
+        final ScheduledFuture<?> timeout = SCHEDULER.schedule(() -> close(channel),
+            Math.min(ATTEMPT_TIMEOUT, remaining()), TimeUnit.MILLISECONDS);
+
+        channel.connect(this.address, null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(final Void v, final Void attachment) {
+                timeout.cancel(false);
+                close(channel);
+                PortProbe.this.result.complete(new PortProbeResult(PortProbe.this.access, true, elapsed(),
+                    PortProbe.this.attempts));
+            }
+
+            @Override
+            public void failed(final Throwable e, final Void attachment) {
+                timeout.cancel(false);
+                close(channel);
+                retry(backoff);
+            }
+        });
+    }
+
+    /**
+     * Schedule the next attempt, or give up if the probe timed out
+     *
+     * @param backoff delay before the next attempt
+     */
+    private void retry(final long backoff) {
+        if (remaining() <= backoff) {
+            this.result.complete(new PortProbeResult(this.access, false, PortProbeResult.NOT_OPEN, this.attempts));
+        } else {
+            SCHEDULER.schedule(() -> attempt(Math.min(backoff * 2, MAX_BACKOFF)), backoff, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private long elapsed() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.start);
+    }
+
+    private long remaining() {
+        return Math.max(0, PROBE_TIMEOUT - elapsed());
+    }
+
+    private static void close(final AsynchronousSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to close probe channel", e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+/**
+ * Outcome of the probe of a port opened by a knock
+ */
+public class PortProbeResult {
+
+    // Time reported when the port did not open
+    public static final long NOT_OPEN = -1;
+
+    // Probed port as proto/port
+    private final String access;
+
+    // True if the port accepted a connection
+    private final boolean open;
+
+    // Time between the end of the knock and the first accepted connection in milliseconds
+    private final long timeToOpen;
+
+    // Number of connection attempts
+    private final int attempts;
+
+    /**
+     * @param access probed port as proto/port
+     * @param open true if the port accepted a connection
+     * @param timeToOpen time until the port opened in milliseconds, or NOT_OPEN
+     * @param attempts number of connection attempts
+     */
+    public PortProbeResult(final String access, final boolean open, final long timeToOpen, final int attempts) {
+        this.access = access;
+        this.open = open;
+        this.timeToOpen = timeToOpen;
+        this.attempts = attempts;
+    }
+
+    public String getAccess() {
+        return this.access;
+    }
+
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    public long getTimeToOpen() {
+        return this.timeToOpen;
+    }
+
+    public int getAttempts() {
+        return this.attempts;
+    }
+
+    @Override
+    public String toString() {
+        return this.open ? this.access + " open in " + this.timeToOpen + " ms"
+            : this.access + " closed after " + this.attempts + " attempts";
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.jfwknop.EnumFwknopRcKey;
+import com.cipherdyne.jfwknop.RcIndex;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the rc settings of the configurations to knock.
+ *
+ * An rc file is indexed again only when its size or modification time changes, so that repeated
+ * knocks of the same configuration do not read the file every time, and the stanzas of a multi
+ * stanza file share a single read of the file.
+ */
+public class RcConfigCache {
+
+    // Indexed rc files along with the settings built from them, indexed by rc filename
+    private final Map<String, CachedIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Get the settings of a configuration, indexing its rc file if needed
+     *
+     * @param target configuration to knock
+     * @return the settings of the default and selected stanzas - must not be modified
+     * @throws IOException if the rc file cannot be read
+     */
+    public Map<EnumFwknopRcKey, String> getConfig(final KnockTarget target) throws IOException {
+        final File file = new File(target.getRcFilename());
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+
+        CachedIndex cached = this.indexes.get(target.getRcFilename());
+        if (cached == null || cached.lastModified != lastModified || cached.length != length) {
+            cached = new CachedIndex(RcIndex.load(target.getRcFilename()), lastModified, length);
+            this.indexes.put(target.getRcFilename(), cached);
+        }
+
+        Map<EnumFwknopRcKey, String> config = cached.configs.get(target.getStanzaOrDefault());
+        if (config == null) {
+            config = Collections.unmodifiableMap(cached.index.getConfig(target.getStanzaOrDefault()));
+            cached.configs.put(target.getStanzaOrDefault(), config);
+        }
+
+        return config;
+    }
+
+    /**
+     * Drop all the cached settings
+     */
+    public void clear() {
+        this.indexes.clear();
+    }
+
+    /**
+     * Index of a rc file along with the state of the file it comes from
+     */
+    private static class CachedIndex {
+
+        private final RcIndex index;
+        private final long lastModified;
+        private final long length;
+
+        // Settings built from the index, indexed by stanza
+        private final Map<String, Map<EnumFwknopRcKey, String>> configs = new ConcurrentHashMap<>();
+
+        private CachedIndex(final RcIndex index, final long lastModified, final long length) {
+            this.index = index;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
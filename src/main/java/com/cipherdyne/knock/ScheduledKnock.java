@@ -0,0 +1,267 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import com.cipherdyne.jfwknop.IKnockCommand;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Knock command scheduled by the {@link KnockScheduler}.
+ *
+ * Each run is due at start + n * period. The jitter only shifts the run itself and is not carried
+ * over to the next deadline. A run is skipped if the previous one is still in progress.
+ *
+ * Periodic commands are asked to prepare each run shortly before its deadline, so that only the
+ * send stage is left when the deadline is reached.
+ *
+ * An adaptive knock has no fixed period: once a run completes, the next one is scheduled from the
+ * start of that run using the period given by its {@link AdaptiveKnockInterval}. The jitter then
+ * only brings runs forward, so that they never go past the expiry of the access.
+ */
+public class ScheduledKnock {
+
+    static final Logger LOGGER = LogManager.getLogger(ScheduledKnock.class.getName());
+
+    // Time before the deadline of a run at which the command is prepared, in nanoseconds
+    private static final long PREPARE_LEAD_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+
+    // Command to run
+    private final IKnockCommand command;
+
+    // Wheel holding the deadlines
+    private final TimerWheel wheel;
+
+    // Threads running the command
+    private final Executor executor;
+
+    // Period between two runs in nanoseconds - 0 to run the command once
+    private final long periodNanos;
+
+    // Maximum random shift of a run in nanoseconds
+    private final long jitterNanos;
+
+    // Period of an adaptive knock - null for a fixed period
+    private final AdaptiveKnockInterval interval;
+
+    // Deadline of the next run without jitter - only accessed by the wheel thread once started
+    private long nominalNanos;
+
+    // Timeout of the next run
+    private volatile TimerWheel.Timeout timeout;
+
+    // Timeout of the preparation of the next run
+    private volatile TimerWheel.Timeout prepareTimeout;
+
+    // Set to true while the command is being prepared
+    private final AtomicBoolean isPreparing = new AtomicBoolean(false);
+
+    // Set to true while the command is running
+    private final AtomicBoolean isRunning = new AtomicBoolean(false);
+
+    private volatile boolean cancelled;
+
+    ScheduledKnock(final IKnockCommand command, final TimerWheel wheel, final Executor executor,
+        final long periodNanos, final long jitterNanos) {
+        this.command = command;
+        this.wheel = wheel;
+        this.executor = executor;
+        this.periodNanos = periodNanos;
+        this.jitterNanos = periodNanos > 0 ? Math.min(jitterNanos, periodNanos / 2) : 0;
+        this.interval = null;
+        this.cancelled = false;
+    }
+
+    ScheduledKnock(final IKnockCommand command, final TimerWheel wheel, final Executor executor,
+        final AdaptiveKnockInterval interval, final long jitterNanos) {
+        this.command = command;
+        this.wheel = wheel;
+        this.executor = executor;
+        this.periodNanos = 0;
+        this.jitterNanos = jitterNanos;
+        this.interval = interval;
+        this.cancelled = false;
+        KnockEventBus.getInstance().subscribe(interval);
+    }
+
+    /**
+     * Schedule the first run
+     *
+     * @param startNanos time of the first run as given by System.nanoTime()
+     */
+    void start(final long startNanos) {
+        this.nominalNanos = startNanos;
+        this.timeout = this.wheel.schedule(this::fire, startNanos);
+    }
+
+    /**
+     * Called by the wheel thread when a run is due
+     */
+    private void fire() {
+        if (this.cancelled) {
+            return;
+        }
+
+        final long fireNanos = System.nanoTime();
+        if (this.isRunning.compareAndSet(false, true)) {
+            try {
+                this.executor.execute(() -> runCommand(fireNanos));
+            } catch (RejectedExecutionException e) {
+                this.isRunning.set(false);
+                LOGGER.error("Unable to run scheduled knock", e);
+                if (this.interval != null) {
+                    scheduleAdaptive(fireNanos);
+                }
+            }
+        } else {
+            LOGGER.info("Previous knock still running, skipping this run");
+        }
+
+        if (this.periodNanos > 0) {
+            scheduleNext();
+        }
+    }
+
+    /**
+     * Compute the next deadline from the previous nominal one. Periods missed while the host was
+     * suspended are skipped rather than run in a burst.
+     */
+    private void scheduleNext() {
+        final long now = System.nanoTime();
+        this.nominalNanos += this.periodNanos;
+        if (this.nominalNanos - now < 0) {
+            final long missed = (now - this.nominalNanos) / this.periodNanos + 1;
+            this.nominalNanos += missed * this.periodNanos;
+        }
+
+        long deadline = this.nominalNanos;
+        if (this.jitterNanos > 0) {
+            deadline += ThreadLocalRandom.current().nextLong(-this.jitterNanos, this.jitterNanos + 1);
+        }
+
+        scheduleRun(deadline, this.periodNanos);
+    }
+
+    /**
+     * Schedule the next run of an adaptive knock from the start of the previous one
+     *
+     * @param lastStartNanos time at which the previous run started as given by System.nanoTime()
+     */
+    private void scheduleAdaptive(final long lastStartNanos) {
+        final long period = TimeUnit.MILLISECONDS.toNanos(this.interval.getPeriod());
+        LOGGER.info("Next adaptive knock: " + this.interval);
+
+        long deadline = Math.max(lastStartNanos + period, System.nanoTime());
+        final long jitter = Math.min(this.jitterNanos, period / 2);
+        if (jitter > 0) {
+            deadline -= ThreadLocalRandom.current().nextLong(jitter + 1);
+        }
+
+        scheduleRun(deadline, period);
+    }
+
+    /**
+     * @param deadline time of the next run as given by System.nanoTime()
+     * @param period time since the previous run in nanoseconds
+     */
+    private void scheduleRun(final long deadline, final long period) {
+        if (!this.cancelled) {
+            if (period > PREPARE_LEAD_NANOS) {
+                this.prepareTimeout = this.wheel.schedule(this::firePrepare, deadline - PREPARE_LEAD_NANOS);
+            }
+            this.timeout = this.wheel.schedule(this::fire, deadline);
+        }
+    }
+
+    /**
+     * Called by the wheel thread when the next run has to be prepared
+     */
+    private void firePrepare() {
+        if (this.cancelled || !this.isPreparing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            this.executor.execute(this::prepareCommand);
+        } catch (RejectedExecutionException e) {
+            this.isPreparing.set(false);
+            LOGGER.error("Unable to prepare scheduled knock", e);
+        }
+    }
+
+    private void prepareCommand() {
+        try {
+            if (!this.cancelled) {
+                this.command.prepare();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to prepare scheduled knock", e);
+        } finally {
+            this.isPreparing.set(false);
+        }
+    }
+
+    /**
+     * @param startNanos time at which the run was due as given by System.nanoTime()
+     */
+    private void runCommand(final long startNanos) {
+        try {
+            if (!this.cancelled) {
+                this.command.run();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Scheduled knock failed", e);
+        } finally {
+            this.isRunning.set(false);
+        }
+
+        // The result of the run has been published by now and is accounted in the next period
+        if (this.interval != null) {
+            scheduleAdaptive(startNanos);
+        }
+    }
+
+    /**
+     * Cancel the next runs and stop the command if it is running
+     */
+    public void cancel() {
+        this.cancelled = true;
+        if (this.interval != null) {
+            KnockEventBus.getInstance().unsubscribe(this.interval);
+        }
+        final TimerWheel.Timeout current = this.timeout;
+        if (current != null) {
+            current.cancel();
+        }
+        final TimerWheel.Timeout currentPrepare = this.prepareTimeout;
+        if (currentPrepare != null) {
+            currentPrepare.cancel();
+        }
+        this.command.stop();
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+}
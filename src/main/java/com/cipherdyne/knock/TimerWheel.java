@@ -0,0 +1,291 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.knock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Hierarchical timer wheel driven by a single thread.
+ *
+ * Timeouts are stored in four levels of 64 slots. The first level has one slot per tick, each
+ * upper level slot covers a full turn of the level below it. When a lower level wraps, the matching
+ * upper level slot is cascaded down, so scheduling and expiring a timeout cost O(1) whatever the
+ * number of pending timeouts. Expired tasks run on the wheel thread and must return quickly.
+ */
+public class TimerWheel {
+
+    static final Logger LOGGER = LogManager.getLogger(TimerWheel.class.getName());
+
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    // Longest delay that can be stored without re-insertion, in ticks
+    private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    // Duration of a tick in nanoseconds
+    private final long tickNanos;
+
+    // Slots of each level
+    private final List<List<List<Timeout>>> wheel = new ArrayList<>();
+
+    // Timeouts scheduled by other threads, waiting to be put in the wheel
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    // Time at which the wheel has been started
+    private final long startNanos;
+
+    // Thread that advances the wheel
+    private final Thread worker;
+
+    // Last tick processed - only accessed by the worker thread
+    private long currentTick;
+
+    // Number of timeouts stored in the wheel - only accessed by the worker thread
+    private int size;
+
+    private volatile boolean isRunning;
+
+    /**
+     * Create and start a timer wheel
+     *
+     * @param tickDuration duration of a tick
+     * @param unit unit of the tick duration
+     * @param name name of the wheel thread
+     */
+    public TimerWheel(final long tickDuration, final TimeUnit unit, final String name) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        for (int level = 0; level < LEVELS; level++) {
+            List<List<Timeout>> slots = new ArrayList<>(SLOTS);
+            for (int slot = 0; slot < SLOTS; slot++) {
+                slots.add(new ArrayList<>());
+            }
+            this.wheel.add(slots);
+        }
+
+        this.startNanos = System.nanoTime();
+        this.currentTick = 0;
+        this.size = 0;
+        this.isRunning = true;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Schedule a task at an absolute time
+     *
+     * @param task task to run on the wheel thread
+     * @param deadlineNanos time, as given by System.nanoTime(), at which the task has to run
+     * @return the timeout that can be used to cancel the task
+     */
+    public Timeout schedule(final Runnable task, final long deadlineNanos) {
+        final Timeout timeout = new Timeout(task, deadlineNanos);
+        this.pending.add(timeout);
+
+        // Wake up the worker if it is waiting for timeouts
+        synchronized (this) {
+            notifyAll();
+        }
+
+        return timeout;
+    }
+
+    /**
+     * Stop the wheel. Pending timeouts are dropped.
+     */
+    public void stop() {
+        this.isRunning = false;
+        this.worker.interrupt();
+    }
+
+    /**
+     * Main loop of the wheel thread
+     */
+    private void run() {
+        while (this.isRunning) {
+            try {
+                // Wait for something to do
+                synchronized (this) {
+                    while (this.size == 0 && this.pending.isEmpty() && this.isRunning) {
+                        wait();
+                    }
+                }
+
+                // Catch up with the clock, one tick at a time
+                final long targetTick = (System.nanoTime() - this.startNanos) / this.tickNanos;
+                drainPending();
+                while (this.currentTick < targetTick) {
+                    this.currentTick++;
+                    cascade();
+                    expire(this.wheel.get(0).get((int) (this.currentTick & SLOT_MASK)));
+                    drainPending();
+                }
+
+                // Sleep until the next tick
+                final long nextTickNanos = this.startNanos + (this.currentTick + 1) * this.tickNanos;
+                final long sleepNanos = nextTickNanos - System.nanoTime();
+                if (sleepNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+            } catch (InterruptedException e) {
+                // Checked by the loop condition
+            }
+        }
+    }
+
+    /**
+     * Move the timeouts scheduled by other threads into the wheel
+     */
+    private void drainPending() {
+        Timeout timeout;
+        while ((timeout = this.pending.poll()) != null) {
+            if (!timeout.isCancelled()) {
+                insert(timeout);
+            }
+        }
+    }
+
+    /**
+     * Put a timeout in the level and slot matching its deadline. Overdue timeouts are run at once.
+     *
+     * @param timeout timeout to insert
+     */
+    private void insert(final Timeout timeout) {
+        final long deadlineTick = ceilDiv(timeout.deadlineNanos - this.startNanos, this.tickNanos);
+        long delta = deadlineTick - this.currentTick;
+
+        if (delta <= 0) {
+            runTask(timeout);
+            return;
+        }
+
+        // Deadlines beyond the wheel range are re-inserted when their slot is cascaded
+        long tick = deadlineTick;
+        if (delta > MAX_TICKS) {
+            delta = MAX_TICKS;
+            tick = this.currentTick + MAX_TICKS;
+        }
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+
+        final int slot = (int) ((tick >> (SLOT_BITS * level)) & SLOT_MASK);
+        this.wheel.get(level).get(slot).add(timeout);
+        this.size++;
+    }
+
+    /**
+     * When the lower levels wrap, re-insert the timeouts of the matching upper level slots
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((this.currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                break;
+            }
+            final int slot = (int) ((this.currentTick >> (SLOT_BITS * level)) & SLOT_MASK);
+            final List<Timeout> timeouts = this.wheel.get(level).get(slot);
+            if (!timeouts.isEmpty()) {
+                final List<Timeout> cascaded = new ArrayList<>(timeouts);
+                timeouts.clear();
+                this.size -= cascaded.size();
+                for (final Timeout timeout : cascaded) {
+                    if (!timeout.isCancelled()) {
+                        insert(timeout);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the timeouts of a first level slot
+     *
+     * @param timeouts timeouts of the slot matching the current tick
+     */
+    private void expire(final List<Timeout> timeouts) {
+        if (timeouts.isEmpty()) {
+            return;
+        }
+
+        final List<Timeout> expired = new ArrayList<>(timeouts);
+        timeouts.clear();
+        this.size -= expired.size();
+        for (final Timeout timeout : expired) {
+            if (!timeout.isCancelled()) {
+                runTask(timeout);
+            }
+        }
+    }
+
+    private void runTask(final Timeout timeout) {
+        try {
+            timeout.task.run();
+        } catch (RuntimeException e) {
+            LOGGER.error("Timer task failed", e);
+        }
+    }
+
+    private static long ceilDiv(final long value, final long divisor) {
+        return value <= 0 ? value / divisor : (value + divisor - 1) / divisor;
+    }
+
+    /**
+     * Task scheduled in the wheel
+     */
+    public static class Timeout {
+
+        private final Runnable task;
+        private final long deadlineNanos;
+        private volatile boolean cancelled;
+
+        private Timeout(final Runnable task, final long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+            this.cancelled = false;
+        }
+
+        /**
+         * Cancel the task. A cancelled task is dropped from the wheel when its slot is reached.
+         */
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return this.cancelled;
+        }
+
+        /**
+         * @return the time, as given by System.nanoTime(), at which the task is due
+         */
+        public long getDeadlineNanos() {
+            return this.deadlineNanos;
+        }
+    }
+}
@@ -20,13 +20,31 @@ package com.cipherdyne.model;
 
 import com.cipherdyne.gui.MainWindowView;
 import com.cipherdyne.jfwknop.EnumFwknopConfigKey;
+import com.cipherdyne.jfwknop.EnumFwknopRcKey;
+import com.cipherdyne.jfwknop.EnumKnockEngine;
 import com.cipherdyne.jfwknop.ExternalCommand;
+import com.cipherdyne.jfwknop.IKnockCommand;
 import com.cipherdyne.jfwknop.JFwknopConfig;
+import com.cipherdyne.jfwknop.SpaCommand;
+import com.cipherdyne.knock.AdaptiveKnockInterval;
+import com.cipherdyne.knock.EnumKnockPhase;
+import com.cipherdyne.knock.KnockConsoleListener;
+import com.cipherdyne.knock.KnockEventBus;
+import com.cipherdyne.knock.KnockFanOut;
+import com.cipherdyne.knock.KnockResult;
+import com.cipherdyne.knock.KnockScheduler;
+import com.cipherdyne.knock.KnockTarget;
+import com.cipherdyne.knock.KnockTimings;
+import com.cipherdyne.knock.ScheduledKnock;
+import com.cipherdyne.spa.SpaEncoder;
+import com.cipherdyne.spa.SpaException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
@@ -36,7 +54,10 @@ public class FwknopClientModel {
 
     private final MainWindowView view;
     private final Map<EnumFwknopConfigKey, String> fwknopConfig = new HashMap<>();
-    private ExternalCommand command;
+    private Map<EnumFwknopRcKey, String> rcConfig = new HashMap<>();
+    private KnockTarget knockTarget;
+    private ScheduledKnock scheduledKnock;
+    private KnockFanOut knockFanOut;
 
     public FwknopClientModel(final MainWindowView view) {
         this.view = view;
@@ -47,6 +68,11 @@ public class FwknopClientModel {
             JFwknopConfig.getInstance().getConfigKey().get(EnumFwknopConfigKey.FWKNOP_EXTRA_ARGS));
         this.fwknopConfig.put(EnumFwknopConfigKey.FWKNOP_VERBOSE,
             JFwknopConfig.getInstance().getConfigKey().get(EnumFwknopConfigKey.FWKNOP_VERBOSE));
+        this.fwknopConfig.put(EnumFwknopConfigKey.KNOCK_ENGINE,
+            JFwknopConfig.getInstance().getConfigKey().get(EnumFwknopConfigKey.KNOCK_ENGINE));
+        this.fwknopConfig.put(EnumFwknopConfigKey.KNOCK_JITTER,
+            JFwknopConfig.getInstance().getConfigKey().get(EnumFwknopConfigKey.KNOCK_JITTER));
+        KnockEventBus.getInstance().subscribe(new KnockConsoleListener(view));
         updateListeners();
     }
 
@@ -64,6 +90,24 @@ public class FwknopClientModel {
         this.fwknopConfig.put(key, value);
     }
 
+    /**
+     * Store the rc settings used by the in-process SPA engine. The value is not saved.
+     *
+     * @param rcConfig fwknoprc settings of the stanza to knock
+     */
+    public void setRcConfig(final Map<EnumFwknopRcKey, String> rcConfig) {
+        this.rcConfig = new HashMap<>(rcConfig);
+    }
+
+    /**
+     * Set the configuration knocked by {@link #start(long)}, used to report the knock latencies
+     *
+     * @param knockTarget configuration knocked - null if unknown
+     */
+    public void setKnockTarget(final KnockTarget knockTarget) {
+        this.knockTarget = knockTarget;
+    }
+
     /**
      * Save the fwknop client settings.
      *
@@ -86,23 +130,122 @@ public class FwknopClientModel {
     }
 
     /**
-     * Start a fwknop command
+     * Start a fwknop command. Any periodic command previously started is stopped. A single knock
+     * is skipped while the access opened by a previous knock of the same settings is still open.
      *
-     * @param period period between to knock. Set to 0 to knowk only once
+     * @param period period between to knock in seconds. Set to 0 to knowk only once
      */
     public void start(final long period) {
-        command = new ExternalCommand(buildArgs(), period, this.view);
-        Thread thread = new Thread(command);
-        thread.start();
+        final IKnockCommand command = createCommand(period > 0);
+
+        stop();
+        this.scheduledKnock = KnockScheduler.getInstance().schedule(command,
+            TimeUnit.SECONDS.toMillis(period), TimeUnit.SECONDS.toMillis(getJitter()));
+    }
+
+    /**
+     * Start a fwknop command and run it again each time the access it opened is about to expire.
+     * The period is computed from the FW_TIMEOUT of the stanza and the observed knock latency. Any
+     * periodic command previously started is stopped.
+     */
+    public void startAdaptive() {
+        final IKnockCommand command = createCommand(true);
+        final AdaptiveKnockInterval interval = new AdaptiveKnockInterval(this.knockTarget, this.rcConfig);
+        this.view.appendToConsole("[*] Knocking again " + interval.getMargin() / 1000
+            + " s before the access timeout of " + interval.getFwTimeout() / 1000 + " s expires");
+
+        stop();
+        this.scheduledKnock = KnockScheduler.getInstance().schedule(command, interval,
+            TimeUnit.SECONDS.toMillis(getJitter()));
+    }
+
+    /**
+     * @param renew true to knock even if the access is still open, false to skip the knock then
+     * @return the command knocking the current configuration
+     */
+    private IKnockCommand createCommand(final boolean renew) {
+        final KnockTimings timings = new KnockTimings();
+        final boolean spaEngine = useSpaEngine();
+        timings.mark(EnumKnockPhase.CONFIG);
+
+        final IKnockCommand command;
+        if (spaEngine) {
+            command = new SpaCommand(this.rcConfig, "1".equals(this.fwknopConfig.get(EnumFwknopConfigKey.FWKNOP_VERBOSE)),
+                isTestEnabled(), this.view, this.knockTarget, timings, renew);
+        } else {
+            final String[] args = buildArgs();
+            command = new ExternalCommand(args, ExternalCommand.KNOCK_TIMEOUT, this.view, this.knockTarget,
+                this.rcConfig, timings, renew, isTestEnabled());
+        }
+        timings.mark(EnumKnockPhase.BUILD);
+
+        return command;
+    }
+
+    /**
+     * @return the maximum random shift applied to periodic knocks in seconds
+     */
+    private long getJitter() {
+        try {
+            return Math.max(0, Long.parseLong(this.fwknopConfig.get(EnumFwknopConfigKey.KNOCK_JITTER).trim()));
+        } catch (NullPointerException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Check whether the in-process SPA engine is selected and able to handle the current rc
+     * settings. The fwknop binary is used as a fallback otherwise.
+     *
+     * @return true if the knock can be run with the in-process SPA engine
+     */
+    private boolean useSpaEngine() {
+        boolean useSpaEngine = false;
+
+        if (EnumKnockEngine.JAVA == EnumKnockEngine.fromValue(this.fwknopConfig.get(EnumFwknopConfigKey.KNOCK_ENGINE))) {
+            try {
+                SpaEncoder.checkSupported(this.rcConfig);
+                useSpaEngine = true;
+            } catch (SpaException e) {
+                LOGGER.info("Falling back to the fwknop binary: " + e.getMessage());
+                this.view.appendToConsole("[*] Falling back to the fwknop binary: " + e.getMessage());
+            }
+        }
+
+        return useSpaEngine;
+    }
+
+    /**
+     * @return true if the fwknop arguments request the test mode
+     */
+    private boolean isTestEnabled() {
+        return Arrays.asList(this.fwknopConfig.get(EnumFwknopConfigKey.FWKNOP_ARGS).split(" ")).contains("--test");
+    }
+
+    /**
+     * Knock several configurations concurrently. Each knock and the aggregated summary are logged
+     * to the console.
+     *
+     * @param targets configurations to knock
+     * @return a future completed with the results once all knocks are done
+     */
+    public CompletableFuture<List<KnockResult>> knockAll(final List<KnockTarget> targets) {
+        if (this.knockFanOut == null) {
+            this.knockFanOut = new KnockFanOut(KnockFanOut.DEFAULT_PARALLELISM, this.view);
+        }
+
+        return this.knockFanOut.knock(targets,
+            EnumKnockEngine.fromValue(this.fwknopConfig.get(EnumFwknopConfigKey.KNOCK_ENGINE)),
+            this.fwknopConfig.get(EnumFwknopConfigKey.FWKNOP_FILEPATH));
     }
 
     /**
      * Stop the current knock
      */
     public void stop() {
-        if (this.command != null) {
-            this.command.stop();
-            this.command = null;
+        if (this.scheduledKnock != null) {
+            this.scheduledKnock.cancel();
+            this.scheduledKnock = null;
         }
     }
 
@@ -21,6 +21,7 @@ package com.cipherdyne.model;
 import com.cipherdyne.gui.MainWindowView;
 import com.cipherdyne.jfwknop.EnumFwknopRcKey;
 import com.cipherdyne.jfwknop.RcFile;
+import com.cipherdyne.jfwknop.RcIndex;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
@@ -76,12 +77,12 @@ public class RcFileModel {
      */
     public void convertToSingleStanzaFile(String rcFilename) throws IOException {
 
-        RcFile legacyRcFile = new RcFile(rcFilename);
-        List<String> stanzaList = legacyRcFile.lookUpStanza();
-        for (String stanza : stanzaList) {
-            RcFile singleStanzaRcFile = new RcFile(rcFilename);
-            singleStanzaRcFile.parse(stanza);
-            singleStanzaRcFile.saveAs(rcFilename + "." + stanza);
+        // Read the legacy file once, reusing the index of the current rc file if this is the same
+        final RcIndex index = rcFilename.equals(getRcFilename()) ? this.rcFile.getIndex() : RcIndex.load(rcFilename);
+        for (String stanza : index.getStanzaNames()) {
+            RcFile singleStanzaRcFile = new RcFile(rcFilename + "." + stanza);
+            singleStanzaRcFile.setConfig(index.getConfig(stanza));
+            singleStanzaRcFile.save();
         }
     }
 
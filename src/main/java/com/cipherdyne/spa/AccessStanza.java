@@ -0,0 +1,291 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import com.cipherdyne.jfwknop.EnumFwknopdRcKey;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stanza of a fwknopd access.conf file, as used by the {@link SpaReceiver} to authenticate and
+ * decrypt SPA packets.
+ *
+ * Only Rijndael stanzas are handled: SOURCE, KEY or KEY_BASE64 and, if a HMAC is expected,
+ * HMAC_KEY or HMAC_KEY_BASE64 along with HMAC_DIGEST_TYPE. SOURCE is either ANY or a comma
+ * separated list of IPv4 addresses and networks, as a prefix length or a netmask.
+ */
+public class AccessStanza {
+
+    // SOURCE value that allows any address
+    private static final String ANY_SOURCE = "ANY";
+
+    // Index of the stanza in the access file, starting at 1
+    private final int index;
+
+    // SOURCE setting of the stanza
+    private final String source;
+
+    // Networks allowed by SOURCE as {address, mask} pairs - null for ANY
+    private final List<int[]> networks;
+
+    // Cipher holding the Rijndael key
+    private final RijndaelCipher cipher;
+
+    // HMAC key - null if packets are not authenticated
+    private final byte[] hmacKey;
+
+    // HMAC algorithm
+    private final EnumSpaDigest hmacDigest;
+
+    // HMAC instance of each receiving thread, initialized with the HMAC key
+    private final ThreadLocal<Mac> macs = new ThreadLocal<>();
+
+    /**
+     * @param index index of the stanza in the access file, starting at 1
+     * @param settings settings of the stanza
+     * @throws SpaException if the stanza is invalid or not supported
+     */
+    public AccessStanza(final int index, final Map<EnumFwknopdRcKey, String> settings) throws SpaException {
+        this.index = index;
+        this.source = settings.get(EnumFwknopdRcKey.SOURCE);
+        this.networks = parseSource(this.source);
+
+        final byte[] key = getKey(settings, EnumFwknopdRcKey.KEY, EnumFwknopdRcKey.KEY_BASE64);
+        if (key == null) {
+            throw new SpaException(settings.containsKey(EnumFwknopdRcKey.GPG_DECRYPT_ID)
+                ? "GPG stanzas are not supported" : "KEY or KEY_BASE64 must be set");
+        }
+        this.cipher = new RijndaelCipher(key);
+
+        this.hmacKey = getKey(settings, EnumFwknopdRcKey.HMAC_KEY, EnumFwknopdRcKey.HMAC_KEY_BASE64);
+        if (this.hmacKey == null && "Y".equalsIgnoreCase(settings.get(EnumFwknopdRcKey.USE_HMAC))) {
+            throw new SpaException("USE_HMAC is set but neither HMAC_KEY nor HMAC_KEY_BASE64");
+        }
+        this.hmacDigest = EnumSpaDigest.fromRcValue(settings.get(EnumFwknopdRcKey.HMAC_DIGEST_TYPE), EnumSpaDigest.SHA256);
+    }
+
+    /**
+     * @param settings settings of the stanza
+     * @param clearKey key that stores the clear passphrase
+     * @param base64Key key that stores the base64 passphrase
+     * @return the passphrase, null if none is set
+     * @throws SpaException if the base64 passphrase is invalid
+     */
+    private static byte[] getKey(final Map<EnumFwknopdRcKey, String> settings, final EnumFwknopdRcKey clearKey,
+        final EnumFwknopdRcKey base64Key) throws SpaException {
+        final String base64 = settings.get(base64Key);
+        if (base64 != null && !base64.isEmpty()) {
+            return SpaBase64.decode(base64);
+        }
+        final String clear = settings.get(clearKey);
+        return clear != null && !clear.isEmpty() ? clear.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * @param source SOURCE setting
+     * @return the allowed networks, null for ANY
+     * @throws SpaException if the setting is invalid
+     */
+    private static List<int[]> parseSource(final String source) throws SpaException {
+        if (source == null || source.isEmpty()) {
+            throw new SpaException("SOURCE must be set");
+        }
+        if (ANY_SOURCE.equalsIgnoreCase(source)) {
+            return null;
+        }
+
+        final List<int[]> networks = new ArrayList<>();
+        for (final String network : source.split("\\s*,\\s*")) {
+            final int slash = network.indexOf('/');
+            final int address = parseIpv4(slash < 0 ? network : network.substring(0, slash));
+            int mask = -1;
+            if (slash >= 0) {
+                final String suffix = network.substring(slash + 1);
+                if (suffix.contains(".")) {
+                    mask = parseIpv4(suffix);
+                } else {
+                    try {
+                        final int prefix = Integer.parseInt(suffix);
+                        if (prefix < 0 || prefix > 32) {
+                            throw new SpaException("Invalid SOURCE prefix length: " + network);
+                        }
+                        mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+                    } catch (NumberFormatException e) {
+                        throw new SpaException("Invalid SOURCE prefix length: " + network, e);
+                    }
+                }
+            }
+            networks.add(new int[]{address & mask, mask});
+        }
+
+        return networks;
+    }
+
+    /**
+     * @param value IPv4 address in dotted notation
+     * @return the address as an int
+     * @throws SpaException if the address is invalid
+     */
+    static int parseIpv4(final String value) throws SpaException {
+        final String[] bytes = value.trim().split("\\.", -1);
+        if (bytes.length != 4) {
+            throw new SpaException("Invalid IPv4 address: " + value);
+        }
+
+        int address = 0;
+        for (final String octet : bytes) {
+            try {
+                final int number = Integer.parseInt(octet);
+                if (number < 0 || number > 255) {
+                    throw new SpaException("Invalid IPv4 address: " + value);
+                }
+                address = (address << 8) | number;
+            } catch (NumberFormatException e) {
+                throw new SpaException("Invalid IPv4 address: " + value, e);
+            }
+        }
+
+        return address;
+    }
+
+    /**
+     * @param address source address of a packet
+     * @return true if SOURCE allows the address
+     */
+    public boolean matchesSource(final InetAddress address) {
+        if (this.networks == null) {
+            return true;
+        }
+        if (!(address instanceof Inet4Address)) {
+            return false;
+        }
+
+        final byte[] bytes = address.getAddress();
+        return matchesSource((bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff));
+    }
+
+    /**
+     * @param address IPv4 address as an int
+     * @return true if SOURCE allows the address
+     */
+    public boolean matchesSource(final int address) {
+        if (this.networks == null) {
+            return true;
+        }
+        for (final int[] network : this.networks) {
+            if ((address & network[1]) == network[0]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Authenticate, decrypt and decode SPA data
+     *
+     * @param data SPA data as received
+     * @return the decoded SPA message
+     * @throws SpaRejectException if the data cannot be authenticated, decrypted or decoded with the
+     * keys of the stanza
+     */
+    public SpaMessage decode(final String data) throws SpaRejectException {
+        String encrypted = data;
+
+        if (this.hmacKey != null) {
+            final int hmacLength = this.hmacDigest.getBase64Length();
+            if (data.length() <= hmacLength) {
+                throw new SpaRejectException(EnumSpaRejectReason.MALFORMED_PACKET, "SPA data shorter than its HMAC");
+            }
+            encrypted = data.substring(0, data.length() - hmacLength);
+            checkHmac(encrypted, data.substring(data.length() - hmacLength));
+        }
+
+        final String plaintext;
+        try {
+            plaintext = this.cipher.decrypt(encrypted);
+        } catch (SpaException e) {
+            throw new SpaRejectException(EnumSpaRejectReason.DECRYPTION_FAILED, e.getMessage(), e);
+        }
+
+        return SpaMessage.decode(plaintext);
+    }
+
+    /**
+     * Check the HMAC the way fwknopd does: over the encrypted data with its constant prefix, which
+     * is stripped from the wire
+     *
+     * @param encrypted encrypted data found in front of the HMAC
+     * @param hmac base64 HMAC found at the end of the data
+     * @throws SpaRejectException if the HMAC does not match
+     */
+    private void checkHmac(final String encrypted, final String hmac) throws SpaRejectException {
+        final String authenticated = encrypted.startsWith(RijndaelCipher.B64_RIJNDAEL_SALT) ? encrypted
+            : RijndaelCipher.B64_RIJNDAEL_SALT + encrypted;
+        final byte[] computed;
+        try {
+            computed = SpaBase64.encode(getMac().doFinal(authenticated.getBytes(StandardCharsets.US_ASCII)))
+                .getBytes(StandardCharsets.US_ASCII);
+        } catch (SpaException e) {
+            throw new SpaRejectException(EnumSpaRejectReason.HMAC_MISMATCH, e.getMessage(), e);
+        }
+
+        if (!MessageDigest.isEqual(computed, hmac.getBytes(StandardCharsets.US_ASCII))) {
+            throw new SpaRejectException(EnumSpaRejectReason.HMAC_MISMATCH, "HMAC mismatch");
+        }
+    }
+
+    /**
+     * @return the HMAC instance of the current thread
+     * @throws SpaException if the HMAC cannot be initialized
+     */
+    private Mac getMac() throws SpaException {
+        Mac mac = this.macs.get();
+        if (mac == null) {
+            mac = this.hmacDigest.createMac();
+            try {
+                mac.init(new SecretKeySpec(this.hmacKey, this.hmacDigest.getHmacAlgorithm()));
+            } catch (final InvalidKeyException e) {
+                throw new SpaException("Invalid HMAC key", e);
+            }
+            this.macs.set(mac);
+        }
+        return mac;
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+
+    public String getSource() {
+        return this.source;
+    }
+
+    @Override
+    public String toString() {
+        return "stanza #" + this.index + " (SOURCE " + this.source + ")";
+    }
+}
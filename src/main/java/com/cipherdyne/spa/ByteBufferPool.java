@@ -0,0 +1,91 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct byte buffers of a fixed capacity.
+ *
+ * Direct buffers are expensive to allocate, so the buffers used to send SPA packets are kept and
+ * reused. Buffers released while the pool is full are left to the garbage collector.
+ */
+public class ByteBufferPool {
+
+    // Capacity of each buffer in bytes
+    private final int bufferCapacity;
+
+    // Maximum number of buffers kept in the pool
+    private final int maxPooled;
+
+    // Buffers ready to be used
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    // Number of buffers in the queue
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param bufferCapacity capacity of each buffer in bytes
+     * @param maxPooled maximum number of buffers kept in the pool
+     */
+    public ByteBufferPool(final int bufferCapacity, final int maxPooled) {
+        this.bufferCapacity = bufferCapacity;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Get a cleared buffer from the pool, or allocate a new one if the pool is empty
+     *
+     * @return a direct buffer ready to be written
+     */
+    public ByteBuffer acquire() {
+        final ByteBuffer buffer = this.buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(this.bufferCapacity);
+        }
+
+        this.pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. The buffer must not be used afterwards.
+     *
+     * @param buffer buffer previously acquired from this pool
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer.capacity() != this.bufferCapacity) {
+            return;
+        }
+
+        if (this.pooled.incrementAndGet() <= this.maxPooled) {
+            this.buffers.offer(buffer);
+        } else {
+            this.pooled.decrementAndGet();
+        }
+    }
+
+    public int getBufferCapacity() {
+        return this.bufferCapacity;
+    }
+}
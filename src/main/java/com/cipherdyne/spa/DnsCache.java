@@ -0,0 +1,230 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Cache of the addresses of the SPA servers and HTTP proxies.
+ *
+ * Resolved addresses are kept for TTL milliseconds and failed lookups for NEGATIVE_TTL
+ * milliseconds. Hostnames knocked recently are resolved again in the background before their entry
+ * expires, and an expired entry is still served while it is being refreshed, so only the very first
+ * knock of a hostname waits for the DNS. A failed refresh keeps the last known address, which is
+ * resolved again after NEGATIVE_TTL milliseconds: failed lookups are only cached for hostnames that
+ * have never been resolved. Java does not expose the TTL of DNS records, the cache times are
+ * therefore fixed.
+ */
+public class DnsCache {
+
+    static final Logger LOGGER = LogManager.getLogger(DnsCache.class.getName());
+
+    // Time a resolved address is cached, in milliseconds
+    static final long TTL = 60000;
+
+    // Time a failed lookup is cached, in milliseconds
+    static final long NEGATIVE_TTL = 10000;
+
+    // Age, as a fraction of the cache time, after which an entry is refreshed in the background
+    private static final double REFRESH_RATIO = 0.8;
+
+    // Time after which an entry that has not been used is dropped instead of refreshed, in milliseconds
+    private static final long IDLE_TIMEOUT = 600000;
+
+    // Period of the background refresh, in milliseconds
+    private static final long REFRESH_PERIOD = 1000;
+
+    // Singleton
+    private static DnsCache instance;
+
+    // Entries indexed by hostname
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // Thread refreshing the entries
+    private final ScheduledExecutorService refresher;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private DnsCache() {
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dns-cache-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.refresher.scheduleWithFixedDelay(this::refreshEntries, REFRESH_PERIOD, REFRESH_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized DnsCache getInstance() {
+        if (instance == null) {
+            instance = new DnsCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Get the address of a host from the cache, or resolve it if it is not known yet
+     *
+     * @param host hostname or IP address
+     * @return the address of the host
+     * @throws SpaException if the host cannot be resolved or has failed to resolve recently
+     */
+    public InetAddress lookup(final String host) throws SpaException {
+        Entry entry = this.entries.get(host);
+
+        if (entry == null) {
+            this.misses.incrementAndGet();
+            entry = resolve(host);
+            this.entries.put(host, entry);
+        } else {
+            entry.lastAccess = System.currentTimeMillis();
+            if (entry.address != null) {
+                this.hits.incrementAndGet();
+            } else {
+                this.negativeHits.incrementAndGet();
+            }
+            if (entry.isExpired()) {
+                // Serve the expired entry once more and refresh it at once
+                scheduleRefresh(host, entry);
+            }
+        }
+
+        if (entry.address == null) {
+            throw new SpaException("Unable to resolve " + host + " : " + entry.error);
+        }
+
+        return entry.address;
+    }
+
+    /**
+     * Drop all the entries
+     */
+    public void clear() {
+        this.entries.clear();
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getNegativeHits() {
+        return this.negativeHits.get();
+    }
+
+    public long getRefreshes() {
+        return this.refreshes.get();
+    }
+
+    /**
+     * Refresh the entries that are about to expire and drop the ones that are not used anymore
+     */
+    private void refreshEntries() {
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<String, Entry> mapEntry : this.entries.entrySet()) {
+            final Entry entry = mapEntry.getValue();
+            if (now - entry.lastAccess > IDLE_TIMEOUT) {
+                this.entries.remove(mapEntry.getKey(), entry);
+            } else if (now - entry.resolutionTime > entry.ttl * REFRESH_RATIO) {
+                scheduleRefresh(mapEntry.getKey(), entry);
+            }
+        }
+    }
+
+    /**
+     * Resolve a host again in the background, unless it is already being resolved
+     *
+     * @param host hostname or IP address
+     * @param entry current entry of the host
+     */
+    private void scheduleRefresh(final String host, final Entry entry) {
+        if (entry.isRefreshing.compareAndSet(false, true)) {
+            this.refresher.execute(() -> {
+                this.refreshes.incrementAndGet();
+                Entry refreshed = resolve(host);
+                if (refreshed.address == null && entry.address != null) {
+                    // Keep serving the last known address and try again later
+                    LOGGER.info("Unable to refresh " + host + ", keeping its last known address: " + refreshed.error);
+                    refreshed = new Entry(entry.address, null, NEGATIVE_TTL);
+                }
+                refreshed.lastAccess = entry.lastAccess;
+                this.entries.replace(host, entry, refreshed);
+            });
+        }
+    }
+
+    /**
+     * @param host hostname or IP address
+     * @return a new entry holding the address of the host, or the error if it cannot be resolved
+     */
+    private static Entry resolve(final String host) {
+        try {
+            return new Entry(InetAddress.getByName(host), null, TTL);
+        } catch (UnknownHostException e) {
+            LOGGER.debug("Unable to resolve " + host, e);
+            return new Entry(null, e.getMessage(), NEGATIVE_TTL);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DNS cache: " + getHits() + " hits, " + getMisses() + " misses, " + getNegativeHits() + " negative hits, "
+            + getRefreshes() + " refreshes";
+    }
+
+    /**
+     * Address of a host, or the error raised while resolving it
+     */
+    private static class Entry {
+
+        private final InetAddress address;
+        private final String error;
+        private final long ttl;
+        private final long resolutionTime;
+        private final AtomicBoolean isRefreshing = new AtomicBoolean();
+        private volatile long lastAccess;
+
+        private Entry(final InetAddress address, final String error, final long ttl) {
+            this.address = address;
+            this.error = error;
+            this.ttl = ttl;
+            this.resolutionTime = System.currentTimeMillis();
+            this.lastAccess = this.resolutionTime;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - this.resolutionTime >= this.ttl;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Security;
+import javax.crypto.Mac;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * Digest algorithms supported by fwknop for the SPA message digest and the HMAC. The names match
+ * the values accepted by the DIGEST_TYPE and HMAC_DIGEST_TYPE rc keys.
+ */
+public enum EnumSpaDigest {
+
+    MD5("MD5", "HmacMD5", 16, false),
+    SHA1("SHA-1", "HmacSHA1", 20, false),
+    SHA256("SHA-256", "HmacSHA256", 32, false),
+    SHA384("SHA-384", "HmacSHA384", 48, false),
+    SHA512("SHA-512", "HmacSHA512", 64, false),
+    SHA3_256("SHA3-256", "HMACSHA3-256", 32, true),
+    SHA3_512("SHA3-512", "HMACSHA3-512", 64, true);
+
+    // Name of the algorithm when used as a message digest
+    private final String digestAlgorithm;
+
+    // Name of the algorithm when used as a HMAC
+    private final String hmacAlgorithm;
+
+    // Size of the digest in bytes
+    private final int length;
+
+    // True if the algorithm is only available through the BouncyCastle provider
+    private final boolean bouncyCastle;
+
+    private EnumSpaDigest(final String digestAlgorithm, final String hmacAlgorithm, final int length,
+        final boolean bouncyCastle) {
+        this.digestAlgorithm = digestAlgorithm;
+        this.hmacAlgorithm = hmacAlgorithm;
+        this.length = length;
+        this.bouncyCastle = bouncyCastle;
+    }
+
+    /**
+     * @return a new message digest instance for this algorithm
+     * @throws SpaException if the algorithm is not available
+     */
+    public MessageDigest createDigest() throws SpaException {
+        try {
+            if (this.bouncyCastle) {
+                return MessageDigest.getInstance(this.digestAlgorithm, BouncyCastle.PROVIDER_NAME);
+            }
+            return MessageDigest.getInstance(this.digestAlgorithm);
+        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+            throw new SpaException("Digest algorithm not available: " + this.name(), e);
+        }
+    }
+
+    /**
+     * @return a new, uninitialized, HMAC instance for this algorithm
+     * @throws SpaException if the algorithm is not available
+     */
+    public Mac createMac() throws SpaException {
+        try {
+            if (this.bouncyCastle) {
+                return Mac.getInstance(this.hmacAlgorithm, BouncyCastle.PROVIDER_NAME);
+            }
+            return Mac.getInstance(this.hmacAlgorithm);
+        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+            throw new SpaException("HMAC algorithm not available: " + this.name(), e);
+        }
+    }
+
+    /**
+     * @return the length of the digest once base64 encoded without padding, as found in SPA data
+     */
+    public int getBase64Length() {
+        return (this.length * 8 + 5) / 6;
+    }
+
+    /**
+     * @return the JCE name of the HMAC algorithm
+     */
+    public String getHmacAlgorithm() {
+        return this.hmacAlgorithm;
+    }
+
+    /**
+     * Look up a digest from a fwknop rc value
+     *
+     * @param value DIGEST_TYPE or HMAC_DIGEST_TYPE value, null or empty to use the default
+     * @param defaultDigest digest to use when the value is not set
+     * @return the matching digest
+     * @throws SpaException if the value does not match any supported digest
+     */
+    public static EnumSpaDigest fromRcValue(final String value, final EnumSpaDigest defaultDigest) throws SpaException {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultDigest;
+        }
+        try {
+            return EnumSpaDigest.valueOf(value.trim().toUpperCase());
+        } catch (final IllegalArgumentException e) {
+            throw new SpaException("Unsupported digest type: " + value);
+        }
+    }
+
+    /**
+     * Registration of the BouncyCastle provider. Kept in its own class so that the signed
+     * BouncyCastle jar is only loaded, and its signature verified, when an algorithm requires it.
+     */
+    private static class BouncyCastle {
+
+        static final String PROVIDER_NAME = register();
+
+        private static String register() {
+            Security.addProvider(new BouncyCastleProvider());
+            return BouncyCastleProvider.PROVIDER_NAME;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+/**
+ * Reasons why the {@link SpaReceiver} rejects a SPA packet. The reasons are declared in the order
+ * of the checks, so that the furthest one reached is reported when no stanza accepts a packet.
+ */
+public enum EnumSpaRejectReason {
+
+    // The receive queue is full
+    OVERLOADED,
+    // The packet is too short, too long or not made of base64 data
+    MALFORMED_PACKET,
+    // No stanza allows the source address of the packet
+    UNKNOWN_SOURCE,
+    // The HMAC does not match the HMAC key of any stanza
+    HMAC_MISMATCH,
+    // The data cannot be decrypted with the key of any stanza
+    DECRYPTION_FAILED,
+    // The decrypted message is not a valid SPA access message
+    MALFORMED_MESSAGE,
+    // The digest of the decrypted message does not match its content
+    DIGEST_MISMATCH,
+    // The timestamp of the message is outside the accepted time window
+    STALE,
+    // The address the message requests access for is not allowed by the stanza
+    SOURCE_MISMATCH,
+    // The packet has already been received
+    REPLAYED
+}
@@ -0,0 +1,311 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import com.cipherdyne.jfwknop.EnumFwknopConfigKey;
+import com.cipherdyne.jfwknop.EnumFwknopRcKey;
+import com.cipherdyne.jfwknop.JFwknopConfig;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Resolve the externally routable IP address of the client the same way the fwknop client does
+ * when ALLOW_IP is set to "resolve".
+ *
+ * RESOLVE_URL can hold several comma or space separated services. They are queried at the same
+ * time and the first valid answer wins. The resolved address is cached for a configurable time and
+ * dropped as soon as the addresses of the local interfaces change, so that periodic knocks do not
+ * pay a round trip to the resolution services every time.
+ */
+public class ExternalIpResolver {
+
+    static final Logger LOGGER = LogManager.getLogger(ExternalIpResolver.class.getName());
+
+    // Default resolution services used by the fwknop client
+    static final String DEFAULT_RESOLVE_URL_HTTPS = "https://www.cipherdyne.org/cgi-bin/myip";
+    static final String DEFAULT_RESOLVE_URL_HTTP = "http://www.cipherdyne.org/cgi-bin/myip";
+
+    // Connect and read timeout in milliseconds
+    private static final int TIMEOUT = 5000;
+
+    // Pattern that matches an IPv4 address in the service answer
+    private static final Pattern IPV4_PATTERN = Pattern.compile("(\\d{1,3}(?:\\.\\d{1,3}){3})");
+
+    // Separators of the services listed in RESOLVE_URL
+    private static final Pattern URL_SEPARATOR = Pattern.compile("[,\\s]+");
+
+    // Threads querying the resolution services
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "ip-resolver-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Singleton
+    private static ExternalIpResolver instance;
+
+    // Resolved addresses indexed by list of services
+    private final Map<List<String>, CachedIp> cache = new ConcurrentHashMap<>();
+
+    // Time a resolved address is cached, in milliseconds
+    private final LongSupplier ttl;
+
+    // Addresses of the local interfaces when the cache was last checked
+    private volatile String interfaceAddresses;
+
+    /**
+     * @param ttl supplier of the time a resolved address is cached in milliseconds - 0 to disable
+     * the cache
+     */
+    public ExternalIpResolver(final LongSupplier ttl) {
+        this.ttl = ttl;
+        this.interfaceAddresses = listInterfaceAddresses();
+    }
+
+    /**
+     * @return the resolver shared by all knocks, whose cache time is read from the JFwknop settings
+     */
+    public static synchronized ExternalIpResolver getInstance() {
+        if (instance == null) {
+            instance = new ExternalIpResolver(() -> {
+                try {
+                    return TimeUnit.SECONDS.toMillis(Long.parseLong(
+                        JFwknopConfig.getInstance().getConfigKey().get(EnumFwknopConfigKey.RESOLVE_IP_TTL).trim()));
+                } catch (NullPointerException | NumberFormatException e) {
+                    return 0;
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Resolve the external IP according to the RESOLVE_URL and RESOLVE_HTTP_ONLY rc keys
+     *
+     * @param config rc file settings
+     * @return the external IP address
+     * @throws SpaException if the IP address cannot be resolved
+     */
+    public static String resolve(final Map<EnumFwknopRcKey, String> config) throws SpaException {
+        return getInstance().resolve(getResolveUrls(config));
+    }
+
+    /**
+     * @param config rc file settings
+     * @return the resolution services to query
+     */
+    public static List<String> getResolveUrls(final Map<EnumFwknopRcKey, String> config) {
+        final String urls = config.get(EnumFwknopRcKey.RESOLVE_URL);
+        if (urls == null || urls.trim().isEmpty()) {
+            return Collections.singletonList("Y".equalsIgnoreCase(config.get(EnumFwknopRcKey.RESOLVE_HTTP_ONLY))
+                ? DEFAULT_RESOLVE_URL_HTTP : DEFAULT_RESOLVE_URL_HTTPS);
+        }
+        return Arrays.asList(URL_SEPARATOR.split(urls.trim()));
+    }
+
+    /**
+     * Get the external IP from the cache, or from the first resolution service that answers
+     *
+     * @param urls URLs of the resolution services
+     * @return the external IP address
+     * @throws SpaException if none of the services answers an IP address
+     */
+    public String resolve(final List<String> urls) throws SpaException {
+        checkInterfaces();
+
+        final CachedIp cached = this.cache.get(urls);
+        final long now = System.currentTimeMillis();
+        if (cached != null && now - cached.resolutionTime < this.ttl.getAsLong()) {
+            return cached.ip;
+        }
+
+        final String ip = urls.size() == 1 ? query(urls.get(0)) : race(urls);
+        this.cache.put(new ArrayList<>(urls), new CachedIp(ip, now));
+
+        return ip;
+    }
+
+    /**
+     * Get the external IP from the cache only, without querying any service
+     *
+     * @param urls URLs of the resolution services
+     * @return the cached external IP address, or null if it is not cached or has expired
+     */
+    public String getCached(final List<String> urls) {
+        checkInterfaces();
+
+        final CachedIp cached = this.cache.get(urls);
+        return cached != null && System.currentTimeMillis() - cached.resolutionTime < this.ttl.getAsLong()
+            ? cached.ip : null;
+    }
+
+    /**
+     * Drop all the cached addresses
+     */
+    public void invalidate() {
+        this.cache.clear();
+    }
+
+    /**
+     * Drop the cached addresses if the addresses of the local interfaces have changed, since the
+     * external address is likely to have changed too
+     */
+    private void checkInterfaces() {
+        final String addresses = listInterfaceAddresses();
+        if (!addresses.equals(this.interfaceAddresses)) {
+            LOGGER.info("Local interfaces changed, dropping the cached external IP");
+            this.interfaceAddresses = addresses;
+            invalidate();
+        }
+    }
+
+    /**
+     * @return the addresses of the local interfaces that are up, as a single string
+     */
+    public static String listInterfaceAddresses() {
+        final List<String> addresses = new ArrayList<>();
+        try {
+            for (final NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (networkInterface.isUp()) {
+                    for (final InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                        addresses.add(networkInterface.getName() + "/" + address.getHostAddress());
+                    }
+                }
+            }
+        } catch (SocketException | NullPointerException e) {
+            LOGGER.debug("Unable to list the local interfaces", e);
+        }
+        Collections.sort(addresses);
+
+        return addresses.toString();
+    }
+
+    /**
+     * Query all the services at the same time and return the first valid answer
+     *
+     * @param urls URLs of the resolution services
+     * @return the external IP address
+     * @throws SpaException if none of the services answers an IP address
+     */
+    private static String race(final List<String> urls) throws SpaException {
+        final CompletionService<String> completionService = new ExecutorCompletionService<>(EXECUTOR);
+        final List<Future<String>> futures = new ArrayList<>();
+        for (final String url : urls) {
+            futures.add(completionService.submit(() -> query(url)));
+        }
+
+        final List<String> errors = new ArrayList<>();
+        try {
+            for (int ix = 0; ix < urls.size(); ix++) {
+                try {
+                    return completionService.take().get();
+                } catch (ExecutionException e) {
+                    errors.add(e.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SpaException("Interrupted while resolving external IP", e);
+        } finally {
+            // The slower queries are not needed anymore
+            for (final Future<String> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        throw new SpaException("Unable to resolve external IP : " + String.join(" ; ", errors));
+    }
+
+    /**
+     * Query a resolution service and extract the IP address from its answer
+     *
+     * @param url URL of the resolution service
+     * @return the external IP address
+     * @throws SpaException if the service cannot be reached or does not answer an IP address
+     */
+    public static String query(final String url) throws SpaException {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setRequestProperty("User-Agent", "Fwknop/jfwknop");
+
+            try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(connection.getInputStream(), StandardCharsets.US_ASCII))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final Matcher matcher = IPV4_PATTERN.matcher(line);
+                    if (matcher.find()) {
+                        return matcher.group(1);
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            throw new SpaException("Unable to resolve external IP from " + url + " : " + e.getMessage(), e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+
+        throw new SpaException("No IP address returned by " + url);
+    }
+
+    /**
+     * External IP address along with the time it has been resolved
+     */
+    private static class CachedIp {
+
+        private final String ip;
+        private final long resolutionTime;
+
+        private CachedIp(final String ip, final long resolutionTime) {
+            this.ip = ip;
+            this.resolutionTime = resolutionTime;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Date;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+
+/**
+ * GPG encryption of SPA messages compatible with libfko.
+ *
+ * The message is signed (if a signing key is provided), compressed and encrypted for the
+ * recipient. The binary output is base64 encoded and the constant "hQ" prefix of the public key
+ * encrypted session packet is removed before the data is put on the wire.
+ */
+public class GpgCipher {
+
+    // Base64 prefix that libfko strips from GPG encrypted SPA packets
+    static final String B64_GPG_PREFIX = "hQ";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Key of the fwknop server
+    private final PGPPublicKey recipientKey;
+
+    // Unlocked client key used to sign the message - null to not sign
+    private final PGPPrivateKey signingKey;
+
+    /**
+     * @param recipientKey key of the fwknop server
+     * @param signingKey unlocked client key, or null to send unsigned messages
+     */
+    public GpgCipher(final PGPPublicKey recipientKey, final PGPPrivateKey signingKey) {
+        this.recipientKey = recipientKey;
+        this.signingKey = signingKey;
+    }
+
+    /**
+     * Sign and encrypt a SPA message
+     *
+     * @param plaintext encoded SPA message along with its digest
+     * @return the encrypted message as base64 without the GPG prefix
+     * @throws SpaException if the encryption fails
+     */
+    public String encrypt(final String plaintext) throws SpaException {
+        final byte[] data = plaintext.getBytes(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+
+        try {
+            final PGPEncryptedDataGenerator encryptedGenerator = new PGPEncryptedDataGenerator(
+                new JcePGPDataEncryptorBuilder(SymmetricKeyAlgorithmTags.AES_256)
+                    .setWithIntegrityPacket(true)
+                    .setSecureRandom(RANDOM)
+                    .setProvider(BouncyCastleProvider.PROVIDER_NAME));
+            encryptedGenerator.addMethod(new JcePublicKeyKeyEncryptionMethodGenerator(this.recipientKey)
+                .setProvider(BouncyCastleProvider.PROVIDER_NAME));
+
+            final OutputStream encryptedOut = encryptedGenerator.open(out, new byte[1024]);
+            final PGPCompressedDataGenerator compressedGenerator = new PGPCompressedDataGenerator(CompressionAlgorithmTags.ZIP);
+            final OutputStream compressedOut = compressedGenerator.open(encryptedOut);
+
+            // Start the signature
+            PGPSignatureGenerator signatureGenerator = null;
+            if (this.signingKey != null) {
+                signatureGenerator = new PGPSignatureGenerator(new JcaPGPContentSignerBuilder(
+                    this.signingKey.getPublicKeyPacket().getAlgorithm(), HashAlgorithmTags.SHA256)
+                    .setProvider(BouncyCastleProvider.PROVIDER_NAME));
+                signatureGenerator.init(PGPSignature.BINARY_DOCUMENT, this.signingKey);
+                signatureGenerator.generateOnePassVersion(false).encode(compressedOut);
+            }
+
+            // Write the message
+            final PGPLiteralDataGenerator literalGenerator = new PGPLiteralDataGenerator();
+            final OutputStream literalOut = literalGenerator.open(compressedOut, PGPLiteralData.BINARY,
+                PGPLiteralData.CONSOLE, data.length, new Date());
+            literalOut.write(data);
+            literalGenerator.close();
+
+            // Append the signature
+            if (signatureGenerator != null) {
+                signatureGenerator.update(data);
+                signatureGenerator.generate().encode(compressedOut);
+            }
+
+            compressedGenerator.close();
+            encryptedGenerator.close();
+        } catch (IOException | PGPException e) {
+            throw new SpaException("Unable to GPG encrypt SPA message: " + e.getMessage(), e);
+        }
+
+        final String encrypted = SpaBase64.encode(out.toByteArray());
+        return encrypted.startsWith(B64_GPG_PREFIX) ? encrypted.substring(B64_GPG_PREFIX.length()) : encrypted;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import com.cipherdyne.utils.GpgUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+
+/**
+ * Cache of the GPG keys used to build SPA packets.
+ *
+ * Keyrings are parsed and signing keys are unlocked only once. Cached keys are dropped as soon as
+ * the keyring file they come from is modified. An unlocked signing key is only returned for the
+ * passphrase it has been unlocked with, whose salted digest is kept along with the key.
+ */
+public class GpgKeyCache {
+
+    private static GpgKeyCache instance = null;
+
+    // Encryption keys indexed by GPG home directory and recipient id
+    private final Map<String, CachedKey<PGPPublicKey>> encryptionKeys = new ConcurrentHashMap<>();
+
+    // Unlocked signing keys indexed by GPG home directory and signer id
+    private final Map<String, CachedKey<PGPPrivateKey>> signingKeys = new ConcurrentHashMap<>();
+
+    // Salt of the passphrase digests
+    private final byte[] salt = new byte[16];
+
+    private GpgKeyCache() {
+        new SecureRandom().nextBytes(this.salt);
+    }
+
+    public static synchronized GpgKeyCache getInstance() {
+        if (instance == null) {
+            instance = new GpgKeyCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Get the key used to encrypt SPA data for a recipient
+     *
+     * @param gpgHomeDirectory GPG home directory
+     * @param recipientId GPG_RECIPIENT key id
+     * @return the encryption key
+     * @throws SpaException if the key cannot be found
+     */
+    public PGPPublicKey getEncryptionKey(final String gpgHomeDirectory, final String recipientId) throws SpaException {
+        final String cacheKey = gpgHomeDirectory + ":" + recipientId;
+        final long lastModified = new File(GpgUtils.getPublicKeyringPath(gpgHomeDirectory)).lastModified();
+
+        CachedKey<PGPPublicKey> cached = this.encryptionKeys.get(cacheKey);
+        if (cached == null || cached.lastModified != lastModified) {
+            final PGPPublicKey key;
+            try {
+                key = GpgUtils.findEncryptionKey(GpgUtils.readPublicKeyRings(gpgHomeDirectory), recipientId);
+            } catch (IOException | PGPException e) {
+                throw new SpaException("Unable to read public keyring from " + gpgHomeDirectory, e);
+            }
+            if (key == null) {
+                throw new SpaException("No encryption key found for GPG recipient " + recipientId);
+            }
+            cached = new CachedKey<>(key, lastModified, null);
+            this.encryptionKeys.put(cacheKey, cached);
+        }
+
+        return cached.key;
+    }
+
+    /**
+     * Get the unlocked key used to sign SPA data
+     *
+     * @param gpgHomeDirectory GPG home directory
+     * @param signerId GPG_SIGNER key id
+     * @param passphrase passphrase of the signing key
+     * @return the unlocked signing key
+     * @throws SpaException if the key cannot be found or unlocked
+     */
+    public PGPPrivateKey getSigningKey(final String gpgHomeDirectory, final String signerId, final char[] passphrase) throws SpaException {
+        final String cacheKey = gpgHomeDirectory + ":" + signerId;
+        final long lastModified = new File(GpgUtils.getPrivateKeyringPath(gpgHomeDirectory)).lastModified();
+
+        final byte[] passphraseDigest = digest(passphrase);
+
+        CachedKey<PGPPrivateKey> cached = this.signingKeys.get(cacheKey);
+        if (cached == null || cached.lastModified != lastModified
+            || !MessageDigest.isEqual(cached.passphraseDigest, passphraseDigest)) {
+            final PGPPrivateKey key;
+            try {
+                final PGPSecretKey secretKey = GpgUtils.findSigningKey(GpgUtils.readSecretKeyRings(gpgHomeDirectory), signerId);
+                if (secretKey == null) {
+                    throw new SpaException("No signing key found for GPG signer " + signerId);
+                }
+                key = secretKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder()
+                    .setProvider(BouncyCastleProvider.PROVIDER_NAME).build(passphrase));
+            } catch (IOException | PGPException e) {
+                throw new SpaException("Unable to unlock GPG signing key " + signerId + " : " + e.getMessage(), e);
+            }
+            cached = new CachedKey<>(key, lastModified, passphraseDigest);
+            this.signingKeys.put(cacheKey, cached);
+        }
+
+        return cached.key;
+    }
+
+    /**
+     * @param passphrase passphrase of a signing key
+     * @return the salted SHA-256 digest of the passphrase
+     * @throws SpaException if SHA-256 is not available
+     */
+    private byte[] digest(final char[] passphrase) throws SpaException {
+        final ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(passphrase));
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(this.salt);
+            digest.update(bytes.duplicate());
+            return digest.digest();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new SpaException("SHA-256 not available", e);
+        } finally {
+            if (bytes.hasArray()) {
+                Arrays.fill(bytes.array(), (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Drop all cached keys
+     */
+    public void clear() {
+        this.encryptionKeys.clear();
+        this.signingKeys.clear();
+    }
+
+    /**
+     * Key along with the modification time of the keyring it has been read from
+     */
+    private static class CachedKey<T> {
+
+        final private T key;
+        final private long lastModified;
+
+        // Salted digest of the passphrase the key has been unlocked with - null for public keys
+        final private byte[] passphraseDigest;
+
+        CachedKey(final T key, final long lastModified, final byte[] passphraseDigest) {
+            this.key = key;
+            this.lastModified = lastModified;
+            this.passphraseDigest = passphraseDigest;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Non-blocking HTTP/1.1 connection used to send SPA packets.
+ *
+ * A connection runs one request/response exchange at a time. The response is read entirely so
+ * that the connection can be reused for the next request, unless the server closes it or the
+ * length of the response body is unknown.
+ *
+ * An exchange that gets no response within the response timeout completes with NO_RESPONSE and
+ * the read is left pending: the connection stays usable as long as the server neither closes it
+ * nor sends anything. The following requests are only written and wait on that same read.
+ */
+class HttpConnection {
+
+    static final Logger LOGGER = LogManager.getLogger(HttpConnection.class.getName());
+
+    // Status reported when the server does not answer - fwknopd sniffs the request without replying
+    static final int NO_RESPONSE = 0;
+
+    // Size of the buffer used to read the responses
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private static final Pattern STATUS_PATTERN = Pattern.compile("^HTTP/1\\.(\\d) (\\d{3})");
+    private static final Pattern CONTENT_LENGTH_PATTERN = Pattern.compile("(?im)^content-length:\\s*(\\d+)\\s*$");
+    private static final Pattern CONNECTION_CLOSE_PATTERN = Pattern.compile("(?im)^(proxy-)?connection:\\s*close\\s*$");
+    private static final Pattern KEEP_ALIVE_PATTERN = Pattern.compile("(?im)^(proxy-)?connection:\\s*keep-alive\\s*$");
+
+    private final AsynchronousSocketChannel channel;
+
+    // Buffer used to read the responses
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    // Timer completing the exchanges that get no response
+    private final ScheduledExecutorService timer;
+
+    // Timeout of each read and write in milliseconds
+    private final long timeout;
+
+    // Time to wait for a response once the request is written, in milliseconds
+    private final long responseTimeout;
+
+    // Read left pending by an exchange that got no response, null if the server answers
+    private volatile CompletableFuture<Integer> pendingResponse;
+
+    // Number of exchanges completed on this connection
+    private int exchanges;
+
+    // Set to false once the connection cannot be used for another request
+    private volatile boolean reusable;
+
+    // Time at which the connection has been released to the pool, in milliseconds since the epoch
+    private volatile long lastUsed;
+
+    private HttpConnection(final AsynchronousSocketChannel channel, final ScheduledExecutorService timer,
+        final long timeout, final long responseTimeout) {
+        this.channel = channel;
+        this.timer = timer;
+        this.timeout = timeout;
+        this.responseTimeout = responseTimeout;
+        this.pendingResponse = null;
+        this.exchanges = 0;
+        this.reusable = true;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Open a connection
+     *
+     * @param group channel group running the completion handlers
+     * @param timer timer completing the exchanges that get no response
+     * @param address address to connect to
+     * @param timeout timeout of each read and write in milliseconds
+     * @param responseTimeout time to wait for a response once a request is written, in milliseconds
+     * @return a future completed with the connection once connected
+     */
+    static CompletableFuture<HttpConnection> open(final AsynchronousChannelGroup group,
+        final ScheduledExecutorService timer, final InetSocketAddress address, final long timeout,
+        final long responseTimeout) {
+
+        final AsynchronousSocketChannel channel;
+        try {
+            channel = AsynchronousSocketChannel.open(group);
+        } catch (IOException e) {
+            final CompletableFuture<HttpConnection> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        final CompletableFuture<Void> connected = new CompletableFuture<>();
+        channel.connect(address, null, handler(connected));
+
+        return connected.handle((v, e) -> {
+            if (e != null) {
+                closeQuietly(channel);
+                throw new CompletionException(e);
+            }
+            return new HttpConnection(channel, timer, timeout, responseTimeout);
+        });
+    }
+
+    /**
+     * Send a request and read its response
+     *
+     * @param request request ready to be written
+     * @return a future completed with the HTTP status, or NO_RESPONSE if the server did not answer
+     * within the response timeout
+     */
+    CompletableFuture<Integer> exchange(final ByteBuffer request) {
+        this.exchanges++;
+        return write(request).thenCompose(v -> awaitResponse());
+    }
+
+    /**
+     * Wait for the response to the request just written, at most for the response timeout
+     */
+    private CompletableFuture<Integer> awaitResponse() {
+        final CompletableFuture<Integer> response = this.pendingResponse != null
+            ? this.pendingResponse : readResponse();
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        final ScheduledFuture<?> timeout = this.timer.schedule(() -> {
+            if (!result.isDone()) {
+                // Keep reading in the background to notice when the server closes the connection.
+                // The read is recorded before completing, which releases the connection to the pool.
+                this.pendingResponse = response;
+                if (response.isDone()) {
+                    this.reusable = false;
+                }
+                result.complete(NO_RESPONSE);
+            }
+        }, this.responseTimeout, TimeUnit.MILLISECONDS);
+
+        response.whenComplete((status, e) -> {
+            timeout.cancel(false);
+            if (this.pendingResponse == response) {
+                // Closed by the server, or a late answer that leaves the connection out of sync
+                this.reusable = false;
+            }
+            if (e == null) {
+                result.complete(status);
+            } else {
+                result.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Write a buffer entirely
+     */
+    private CompletableFuture<Void> write(final ByteBuffer buffer) {
+        final CompletableFuture<Integer> written = new CompletableFuture<>();
+        this.channel.write(buffer, this.timeout, TimeUnit.MILLISECONDS, null, handler(written));
+
+        return written.thenCompose(n -> buffer.hasRemaining() ? write(buffer) : CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * Read into the read buffer
+     *
+     * @param timed false to wait without timeout, the first read of a response being bounded by
+     * the response timeout instead
+     * @return a future completed with the number of bytes read, -1 at the end of the stream
+     */
+    private CompletableFuture<Integer> read(final boolean timed) {
+        final CompletableFuture<Integer> read = new CompletableFuture<>();
+        if (!timed) {
+            this.channel.read(this.readBuffer, null, handler(read));
+        } else {
+            this.channel.read(this.readBuffer, this.timeout, TimeUnit.MILLISECONDS, null, handler(read));
+        }
+
+        return read;
+    }
+
+    /**
+     * Read the response headers and skip its body
+     */
+    private CompletableFuture<Integer> readResponse() {
+        this.readBuffer.clear();
+
+        return readHeaders().handle((status, e) -> {
+            if (e == null) {
+                return CompletableFuture.completedFuture(status);
+            }
+            final Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof InterruptedByTimeoutException) {
+                // The request has been delivered but nobody answers it
+                this.reusable = false;
+                return CompletableFuture.completedFuture(NO_RESPONSE);
+            }
+            final CompletableFuture<Integer> failed = new CompletableFuture<>();
+            failed.completeExceptionally(cause);
+            return failed;
+        }).thenCompose(f -> f);
+    }
+
+    private CompletableFuture<Integer> readHeaders() {
+        return read(this.readBuffer.position() > 0).thenCompose(n -> {
+            if (n < 0) {
+                this.reusable = false;
+                if (this.readBuffer.position() == 0) {
+                    if (this.exchanges > 1) {
+                        // The server closed the idle connection before the request could be read
+                        throw new CompletionException(new IOException("Connection closed by the server"));
+                    }
+                    return CompletableFuture.completedFuture(NO_RESPONSE);
+                }
+                throw new CompletionException(new IOException("Truncated HTTP response"));
+            }
+
+            final int headerEnd = indexOfHeaderEnd();
+            if (headerEnd < 0) {
+                if (!this.readBuffer.hasRemaining()) {
+                    throw new CompletionException(new IOException("HTTP response headers too large"));
+                }
+                return readHeaders();
+            }
+
+            return parseHeaders(headerEnd);
+        });
+    }
+
+    /**
+     * Parse the headers found in the read buffer and skip the body
+     *
+     * @param headerEnd offset of the end of the headers in the read buffer
+     */
+    private CompletableFuture<Integer> parseHeaders(final int headerEnd) {
+        final String headers = new String(this.readBuffer.array(), 0, headerEnd, StandardCharsets.ISO_8859_1);
+        final Matcher statusMatcher = STATUS_PATTERN.matcher(headers);
+        if (!statusMatcher.find()) {
+            throw new CompletionException(new IOException("Invalid HTTP response"));
+        }
+        final int status = Integer.parseInt(statusMatcher.group(2));
+
+        // Persistent connection unless told otherwise (HTTP/1.1) or not told so (HTTP/1.0)
+        if (CONNECTION_CLOSE_PATTERN.matcher(headers).find()
+            || ("0".equals(statusMatcher.group(1)) && !KEEP_ALIVE_PATTERN.matcher(headers).find())) {
+            this.reusable = false;
+        }
+
+        long bodyLength = 0;
+        if (status >= 200 && status != 204 && status != 304) {
+            final Matcher lengthMatcher = CONTENT_LENGTH_PATTERN.matcher(headers);
+            if (lengthMatcher.find()) {
+                bodyLength = Long.parseLong(lengthMatcher.group(1));
+            } else {
+                // Chunked or delimited by the end of the stream - do not bother reading it
+                this.reusable = false;
+                return CompletableFuture.completedFuture(status);
+            }
+        }
+
+        final long remaining = bodyLength - (this.readBuffer.position() - headerEnd - HEADER_END.length);
+        if (remaining < 0) {
+            // More data than announced, the connection is out of sync
+            this.reusable = false;
+        }
+
+        return skipBody(remaining).thenApply(v -> status);
+    }
+
+    /**
+     * Read and discard the body of the response
+     *
+     * @param remaining number of bytes left to read
+     */
+    private CompletableFuture<Void> skipBody(final long remaining) {
+        if (remaining <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        this.readBuffer.clear();
+        if (remaining < this.readBuffer.capacity()) {
+            this.readBuffer.limit((int) remaining);
+        }
+
+        return read(true).thenCompose(n -> {
+            if (n < 0) {
+                this.reusable = false;
+                return CompletableFuture.completedFuture(null);
+            }
+            return skipBody(remaining - n);
+        });
+    }
+
+    /**
+     * @return the offset of the empty line that ends the headers, or -1 if not read yet
+     */
+    private int indexOfHeaderEnd() {
+        final byte[] data = this.readBuffer.array();
+        for (int ix = 0; ix <= this.readBuffer.position() - HEADER_END.length; ix++) {
+            if (data[ix] == '\r' && data[ix + 1] == '\n' && data[ix + 2] == '\r' && data[ix + 3] == '\n') {
+                return ix;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the connection can be used for another request
+     */
+    boolean isReusable() {
+        return this.reusable && this.channel.isOpen();
+    }
+
+    /**
+     * @return true if the connection has already been used
+     */
+    boolean isReused() {
+        return this.exchanges > 1;
+    }
+
+    long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    void touch() {
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    void close() {
+        this.reusable = false;
+        closeQuietly(this.channel);
+    }
+
+    private static void closeQuietly(final AsynchronousSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to close HTTP connection", e);
+        }
+    }
+
+    /**
+     * @return a completion handler that completes a future
+     */
+    private static <V> CompletionHandler<V, Void> handler(final CompletableFuture<V> future) {
+        return new CompletionHandler<V, Void>() {
+            @Override
+            public void completed(final V result, final Void attachment) {
+                future.complete(result);
+            }
+
+            @Override
+            public void failed(final Throwable e, final Void attachment) {
+                future.completeExceptionally(e);
+            }
+        };
+    }
+}
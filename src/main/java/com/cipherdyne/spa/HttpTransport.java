@@ -0,0 +1,305 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.charset.StandardCharsets;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * HTTP transport that sends SPA packets as GET requests the way the fwknop client does.
+ *
+ * Connections are non-blocking and kept alive in a pool per endpoint (the SPA server or the HTTP
+ * proxy), so that periodic knocks do not pay a TCP handshake every time. An idle connection closed
+ * by the server is detected on use and the request is sent again on a new connection.
+ *
+ * fwknopd only sniffs the request and never answers it, so a knock is considered sent once the
+ * request has been written and no response came back within a short delay.
+ */
+public class HttpTransport implements ISpaTransport {
+
+    static final Logger LOGGER = LogManager.getLogger(HttpTransport.class.getName());
+
+    // User agent sent when HTTP_USER_AGENT is not set
+    public static final String DEFAULT_HTTP_USER_AGENT = "Fwknop/jfwknop";
+
+    // Default HTTP port
+    public static final int DEFAULT_HTTP_PORT = 80;
+
+    // Timeout of each read and write in milliseconds
+    private static final long IO_TIMEOUT = 5000;
+
+    // Time to wait for a response once the request is written, in milliseconds
+    private static final long RESPONSE_TIMEOUT = 200;
+
+    // Time after which an idle connection is not reused, in milliseconds
+    private static final long IDLE_TIMEOUT = 30000;
+
+    // Maximum number of idle connections kept per endpoint
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+
+    // Number of threads running the completion handlers
+    private static final int THREADS = 2;
+
+    private static HttpTransport instance = null;
+
+    // Channel group shared by all the connections
+    private final AsynchronousChannelGroup group;
+
+    // Timer completing the exchanges that get no response
+    private final ScheduledExecutorService timer;
+
+    // Idle connections indexed by endpoint, most recently used first
+    private final Map<InetSocketAddress, Deque<HttpConnection>> idleConnections = new ConcurrentHashMap<>();
+
+    private HttpTransport() throws IOException {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.group = AsynchronousChannelGroup.withFixedThreadPool(THREADS, r -> {
+            Thread thread = new Thread(r, "spa-http-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "spa-http-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the transport shared by all the knocks
+     * @throws SpaException if the channel group cannot be created
+     */
+    public static synchronized HttpTransport getInstance() throws SpaException {
+        if (instance == null) {
+            try {
+                instance = new HttpTransport();
+            } catch (IOException e) {
+                throw new SpaException("Unable to create HTTP transport: " + e.getMessage(), e);
+            }
+        }
+        return instance;
+    }
+
+    @Override
+    public int send(final SpaPacket packet) throws SpaException {
+        try {
+            return sendAsync(packet).get(3 * IO_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new SpaException("Unable to send SPA packet to " + packet + " : " + e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            throw new SpaException("Timeout while sending SPA packet to " + packet, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SpaException("Interrupted while sending SPA packet to " + packet, e);
+        }
+    }
+
+    /**
+     * Send a SPA packet without blocking
+     *
+     * @param packet SPA packet to send
+     * @return a future completed with the number of bytes sent once the response has been read, or
+     * once the response timeout has elapsed if the server does not answer
+     * @throws SpaException if the endpoint cannot be resolved
+     */
+    public CompletableFuture<Integer> sendAsync(final SpaPacket packet) throws SpaException {
+        final InetSocketAddress endpoint = getEndpoint(packet);
+        final byte[] request = buildRequest(packet);
+
+        return send(endpoint, request, true).thenApply(status -> {
+            LOGGER.debug("HTTP status " + status + " for SPA packet sent to " + packet);
+            if (packet.getHttpProxy() != null && status >= 400) {
+                throw new CompletionException(new IOException("HTTP proxy answered " + status));
+            }
+            return request.length;
+        });
+    }
+
+    /**
+     * Send a request on a pooled connection, or on a new one if none is available
+     *
+     * @param endpoint server or proxy address
+     * @param request request to send
+     * @param retry true to send the request again on a new connection if a pooled one is stale
+     * @return a future completed with the HTTP status
+     */
+    private CompletableFuture<Integer> send(final InetSocketAddress endpoint, final byte[] request, final boolean retry) {
+        final HttpConnection pooled = acquire(endpoint);
+        final CompletableFuture<HttpConnection> connection = pooled != null
+            ? CompletableFuture.completedFuture(pooled)
+            : HttpConnection.open(this.group, this.timer, endpoint, IO_TIMEOUT, RESPONSE_TIMEOUT);
+
+        return connection.thenCompose(c -> c.exchange(ByteBuffer.wrap(request)).handle((status, e) -> {
+            if (e == null) {
+                release(endpoint, c);
+                return CompletableFuture.completedFuture(status);
+            }
+            c.close();
+            if (retry && c.isReused()) {
+                LOGGER.debug("Stale HTTP connection to " + endpoint + ", retrying on a new one");
+                return send(endpoint, request, false);
+            }
+            final CompletableFuture<Integer> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+            return failed;
+        }).thenCompose(f -> f));
+    }
+
+    /**
+     * Take a live idle connection from the pool
+     *
+     * @param endpoint server or proxy address
+     * @return a connection or null if none is available
+     */
+    private HttpConnection acquire(final InetSocketAddress endpoint) {
+        final Deque<HttpConnection> connections = this.idleConnections.get(endpoint);
+        if (connections == null) {
+            return null;
+        }
+
+        HttpConnection connection;
+        while ((connection = connections.pollFirst()) != null) {
+            if (connection.isReusable() && System.currentTimeMillis() - connection.getLastUsed() < IDLE_TIMEOUT) {
+                return connection;
+            }
+            connection.close();
+        }
+
+        return null;
+    }
+
+    /**
+     * Give a connection back to the pool, or close it if it cannot be reused
+     *
+     * @param endpoint server or proxy address
+     * @param connection connection to release
+     */
+    private void release(final InetSocketAddress endpoint, final HttpConnection connection) {
+        if (!connection.isReusable()) {
+            connection.close();
+            return;
+        }
+
+        connection.touch();
+        final Deque<HttpConnection> connections = this.idleConnections.computeIfAbsent(endpoint,
+            k -> new ConcurrentLinkedDeque<>());
+        connections.offerFirst(connection);
+
+        // Close the least recently used connections beyond the limit
+        while (connections.size() > MAX_IDLE_CONNECTIONS) {
+            final HttpConnection eldest = connections.pollLast();
+            if (eldest != null) {
+                eldest.close();
+            }
+        }
+    }
+
+    /**
+     * @param packet SPA packet to send
+     * @return the address of the HTTP proxy if set, the SPA server otherwise
+     * @throws SpaException if the address cannot be resolved
+     */
+    private static InetSocketAddress getEndpoint(final SpaPacket packet) throws SpaException {
+        if (packet.getHttpProxy() == null) {
+            return packet.resolve();
+        }
+
+        final String proxy = stripScheme(packet.getHttpProxy());
+        final int colon = proxy.lastIndexOf(':');
+        String host = proxy;
+        int port = DEFAULT_HTTP_PORT;
+        if (colon > 0) {
+            host = proxy.substring(0, colon);
+            try {
+                port = Integer.parseInt(proxy.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new SpaException("Invalid HTTP proxy port: " + packet.getHttpProxy(), e);
+            }
+        }
+
+        return new InetSocketAddress(DnsCache.getInstance().lookup(host), port);
+    }
+
+    /**
+     * Build the GET request carrying the SPA data. As done by the fwknop client, the base64
+     * characters that are not URL safe are replaced.
+     *
+     * @param packet SPA packet to send
+     * @return the request as ASCII bytes
+     */
+    static byte[] buildRequest(final SpaPacket packet) {
+        String host = packet.getServer();
+        if (packet.getPort() != DEFAULT_HTTP_PORT) {
+            host = host + ":" + packet.getPort();
+        }
+
+        final StringBuilder sb = new StringBuilder(packet.getData().length() + 256);
+        sb.append("GET ");
+        if (packet.getHttpProxy() != null) {
+            sb.append("http://").append(host);
+        }
+        sb.append('/').append(packet.getData().replace('+', '-').replace('/', '_')).append(" HTTP/1.1\r\n");
+        sb.append("User-Agent: ").append(packet.getHttpUserAgent() != null
+            ? packet.getHttpUserAgent() : DEFAULT_HTTP_USER_AGENT).append("\r\n");
+        sb.append("Accept: */*\r\n");
+        sb.append("Host: ").append(host).append("\r\n");
+        sb.append("Connection: keep-alive\r\n");
+        sb.append("\r\n");
+
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String stripScheme(final String url) {
+        String stripped = url.trim();
+        if (stripped.toLowerCase().startsWith("http://")) {
+            stripped = stripped.substring("http://".length());
+        }
+        if (stripped.endsWith("/")) {
+            stripped = stripped.substring(0, stripped.length() - 1);
+        }
+        return stripped;
+    }
+
+    @Override
+    public void close() {
+        for (final Deque<HttpConnection> connections : this.idleConnections.values()) {
+            HttpConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+/**
+ * This interface provides the methods expected from a transport used to put SPA packets on the
+ * wire.
+ */
+public interface ISpaTransport {
+
+    /**
+     * Send a SPA packet to its destination
+     *
+     * @param packet SPA packet to send
+     * @return the number of bytes sent
+     * @throws SpaException if the packet cannot be sent
+     */
+    public int send(SpaPacket packet) throws SpaException;
+
+    /**
+     * Release the resources held by the transport
+     */
+    public void close();
+}
@@ -0,0 +1,144 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Rijndael (AES-256 CBC) encryption compatible with libfko.
+ *
+ * The key and IV are derived from the passphrase and a random salt the same way OpenSSL does with
+ * EVP_BytesToKey (MD5, one iteration). The encrypted data is prefixed with "Salted__" and the salt,
+ * base64 encoded and the constant base64 prefix of the "Salted__" string is removed before the
+ * data is put on the wire.
+ */
+public class RijndaelCipher {
+
+    // Base64 representation of the "Salted__" prefix that libfko strips from SPA packets
+    static final String B64_RIJNDAEL_SALT = "U2FsdGVkX1";
+
+    // OpenSSL salted data marker
+    private static final byte[] SALTED = "Salted__".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int SALT_LEN = 8;
+    private static final int KEY_LEN = 32;
+    private static final int IV_LEN = 16;
+
+    // Source of salts - shared as SecureRandom is thread safe
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Passphrase used to derive encryption keys
+    private final byte[] passphrase;
+
+    /**
+     * @param passphrase Rijndael passphrase as set in the KEY or KEY_BASE64 rc key
+     */
+    public RijndaelCipher(final byte[] passphrase) {
+        this.passphrase = passphrase.clone();
+    }
+
+    /**
+     * Encrypt a SPA message
+     *
+     * @param plaintext encoded SPA message along with its digest
+     * @return the encrypted message as base64 without the salt prefix
+     * @throws SpaException if the encryption fails
+     */
+    public String encrypt(final String plaintext) throws SpaException {
+        final byte[] salt = new byte[SALT_LEN];
+        RANDOM.nextBytes(salt);
+
+        try {
+            final Cipher cipher = createCipher(Cipher.ENCRYPT_MODE, salt);
+            final byte[] encrypted = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
+
+            final byte[] data = new byte[SALTED.length + SALT_LEN + encrypted.length];
+            System.arraycopy(SALTED, 0, data, 0, SALTED.length);
+            System.arraycopy(salt, 0, data, SALTED.length, SALT_LEN);
+            System.arraycopy(encrypted, 0, data, SALTED.length + SALT_LEN, encrypted.length);
+
+            return SpaBase64.encode(data).substring(B64_RIJNDAEL_SALT.length());
+        } catch (final GeneralSecurityException e) {
+            throw new SpaException("Unable to encrypt SPA message: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decrypt SPA data previously encrypted with the same passphrase
+     *
+     * @param data encrypted data as found on the wire (without the salt prefix)
+     * @return the decrypted SPA message along with its digest
+     * @throws SpaException if the data cannot be decrypted
+     */
+    public String decrypt(final String data) throws SpaException {
+        final byte[] raw = SpaBase64.decode(B64_RIJNDAEL_SALT + data);
+        if (raw.length <= SALTED.length + SALT_LEN
+            || !Arrays.equals(SALTED, Arrays.copyOfRange(raw, 0, SALTED.length))) {
+            throw new SpaException("Invalid Rijndael data");
+        }
+
+        final byte[] salt = Arrays.copyOfRange(raw, SALTED.length, SALTED.length + SALT_LEN);
+        try {
+            final Cipher cipher = createCipher(Cipher.DECRYPT_MODE, salt);
+            final byte[] decrypted = cipher.doFinal(raw, SALTED.length + SALT_LEN, raw.length - SALTED.length - SALT_LEN);
+            return new String(decrypted, StandardCharsets.UTF_8);
+        } catch (final GeneralSecurityException e) {
+            throw new SpaException("Unable to decrypt SPA data: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Derive the key and IV from the passphrase and the salt and initialize an AES cipher
+     *
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param salt 8 byte salt
+     * @return an initialized cipher
+     * @throws GeneralSecurityException
+     */
+    private Cipher createCipher(final int mode, final byte[] salt) throws GeneralSecurityException {
+        final MessageDigest md5 = MessageDigest.getInstance("MD5");
+        final byte[] keyAndIv = new byte[KEY_LEN + IV_LEN];
+        byte[] previous = new byte[0];
+        int offset = 0;
+
+        while (offset < keyAndIv.length) {
+            md5.update(previous);
+            md5.update(this.passphrase);
+            md5.update(salt);
+            previous = md5.digest();
+            final int len = Math.min(previous.length, keyAndIv.length - offset);
+            System.arraycopy(previous, 0, keyAndIv, offset, len);
+            offset += len;
+        }
+
+        final Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(mode,
+            new SecretKeySpec(keyAndIv, 0, KEY_LEN, "AES"),
+            new IvParameterSpec(keyAndIv, KEY_LEN, IV_LEN));
+
+        return cipher;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Base64 helpers following the libfko conventions: the trailing '=' padding characters are always
+ * stripped from encoded fields and are optional when decoding.
+ */
+final class SpaBase64 {
+
+    private SpaBase64() {
+    }
+
+    /**
+     * @param data bytes to encode
+     * @return the base64 representation of the data without padding
+     */
+    static String encode(final byte[] data) {
+        return Base64.getEncoder().withoutPadding().encodeToString(data);
+    }
+
+    /**
+     * @param data string to encode as UTF-8
+     * @return the base64 representation of the string without padding
+     */
+    static String encode(final String data) {
+        return encode(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param data base64 string with or without padding
+     * @return the decoded bytes
+     * @throws SpaException if the string is not valid base64
+     */
+    static byte[] decode(final String data) throws SpaException {
+        try {
+            return Base64.getDecoder().decode(data);
+        } catch (final IllegalArgumentException e) {
+            throw new SpaException("Invalid base64 data", e);
+        }
+    }
+
+    /**
+     * @param data base64 string with or without padding
+     * @return the decoded string
+     * @throws SpaException if the string is not valid base64
+     */
+    static String decodeToString(final String data) throws SpaException {
+        return new String(decode(data), StandardCharsets.UTF_8);
+    }
+}
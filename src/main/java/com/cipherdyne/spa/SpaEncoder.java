@@ -0,0 +1,439 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import com.cipherdyne.jfwknop.EnumFwknopRcKey;
+import com.cipherdyne.utils.GpgUtils;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+
+/**
+ * Build SPA packets in-process from fwknoprc settings.
+ *
+ * Rijndael and GPG encryption, with or without HMAC, are handled over udp, tcp and http. GPG keys are
+ * read from GPG v1 keyrings with BouncyCastle. Settings that require the fwknop binary (GPG agent,
+ * raw sockets, spoofed source...) are reported by {@link #checkSupported(Map)} so that the caller
+ * can fall back to the external command.
+ */
+public class SpaEncoder {
+
+    // Default fwknopd port
+    public static final int DEFAULT_SPA_SERVER_PORT = 62201;
+
+    // Default transport protocol
+    public static final String DEFAULT_SPA_SERVER_PROTO = "udp";
+
+    // Address used when the server has to use the packet source address
+    private static final String SOURCE_ADDRESS = "0.0.0.0";
+
+    // Range used to pick a random destination port when RAND_PORT is set
+    private static final int MIN_RAND_PORT = 10000;
+    private static final int MAX_RAND_PORT = 65535;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Settings of the stanza to knock
+    private final Map<EnumFwknopRcKey, String> config;
+
+    /**
+     * @param config fwknoprc settings of the stanza to knock - a copy is kept
+     */
+    public SpaEncoder(final Map<EnumFwknopRcKey, String> config) {
+        this.config = new HashMap<>(config);
+    }
+
+    /**
+     * Check whether the in-process engine is able to handle a configuration
+     *
+     * @param config fwknoprc settings
+     * @throws SpaException describing the first unsupported setting found
+     */
+    public static void checkSupported(final Map<EnumFwknopRcKey, String> config) throws SpaException {
+        if (isSet(config, EnumFwknopRcKey.USE_GPG)) {
+            checkGpgSupported(config);
+        } else if (config.get(EnumFwknopRcKey.KEY) == null && config.get(EnumFwknopRcKey.KEY_BASE64) == null) {
+            throw new SpaException("No Rijndael key set");
+        }
+        if (config.get(EnumFwknopRcKey.SPOOF_SOURCE_IP) != null) {
+            throw new SpaException("SPOOF_SOURCE_IP requires raw sockets");
+        }
+        if (config.get(EnumFwknopRcKey.KEY_FILE) != null) {
+            throw new SpaException("KEY_FILE is not supported");
+        }
+        final String mode = config.get(EnumFwknopRcKey.ENCRYPTION_MODE);
+        if (mode != null && !"CBC".equalsIgnoreCase(mode)) {
+            throw new SpaException("Unsupported encryption mode: " + mode);
+        }
+        final String proto = getProtocol(config);
+        if (!"udp".equals(proto) && !"tcp".equals(proto) && !"http".equals(proto)) {
+            throw new SpaException("Unsupported protocol: " + proto);
+        }
+        if (config.get(EnumFwknopRcKey.SPA_SERVER) == null) {
+            throw new SpaException("SPA_SERVER is not set");
+        }
+        if (config.get(EnumFwknopRcKey.ACCESS) == null) {
+            throw new SpaException("ACCESS is not set");
+        }
+    }
+
+    /**
+     * Check whether the GPG settings can be handled without the gpg binary
+     *
+     * @param config fwknoprc settings
+     * @throws SpaException describing the first unsupported setting found
+     */
+    private static void checkGpgSupported(final Map<EnumFwknopRcKey, String> config) throws SpaException {
+        if (isSet(config, EnumFwknopRcKey.USE_GPG_AGENT)) {
+            throw new SpaException("GPG agent requires the fwknop binary");
+        }
+        if (config.get(EnumFwknopRcKey.GPG_RECIPIENT) == null) {
+            throw new SpaException("GPG_RECIPIENT is not set");
+        }
+
+        final String gpgHomeDirectory = getGpgHomeDirectory(config);
+        if (!new File(GpgUtils.getPublicKeyringPath(gpgHomeDirectory)).isFile()) {
+            throw new SpaException("No GPG v1 public keyring found in " + gpgHomeDirectory);
+        }
+        if (config.get(EnumFwknopRcKey.GPG_SIGNER) != null
+            && !new File(GpgUtils.getPrivateKeyringPath(gpgHomeDirectory)).isFile()) {
+            throw new SpaException("No GPG v1 secret keyring found in " + gpgHomeDirectory);
+        }
+    }
+
+    /**
+     * Build and encrypt a new SPA packet
+     *
+     * @return the SPA packet ready to be sent
+     * @throws SpaException if the packet cannot be built
+     */
+    public SpaPacket encode() throws SpaException {
+        checkSupported(this.config);
+
+        final SpaMessage message = createMessage();
+        final String plaintext = message.encode(
+            EnumSpaDigest.fromRcValue(this.config.get(EnumFwknopRcKey.DIGEST_TYPE), EnumSpaDigest.SHA256));
+
+        String data;
+        final String prefix;
+        if (isSet(this.config, EnumFwknopRcKey.USE_GPG)) {
+            data = createGpgCipher().encrypt(plaintext);
+            prefix = GpgCipher.B64_GPG_PREFIX;
+        } else {
+            data = new RijndaelCipher(getKey(EnumFwknopRcKey.KEY, EnumFwknopRcKey.KEY_BASE64)).encrypt(plaintext);
+            prefix = RijndaelCipher.B64_RIJNDAEL_SALT;
+        }
+
+        // As libfko does, the HMAC is computed over the encrypted data before its constant prefix
+        // is stripped for the wire
+        if (useHmac()) {
+            data = data + computeHmac(prefix + data);
+        }
+
+        final SpaPacket packet = new SpaPacket(this.config.get(EnumFwknopRcKey.SPA_SERVER).trim(), getPort(),
+            getProtocol(this.config), data, message.getTimestamp());
+        if ("http".equals(packet.getProtocol())) {
+            packet.setHttpOptions(trimToNull(this.config.get(EnumFwknopRcKey.HTTP_USER_AGENT)),
+                trimToNull(this.config.get(EnumFwknopRcKey.HTTP_PROXY)));
+        }
+
+        return packet;
+    }
+
+    /**
+     * Build a SPA packet ahead of time. The packet is encrypted and its destination resolved, so
+     * that sending it later does not involve any cryptographic or name resolution work.
+     *
+     * @return the SPA packet ready to be sent
+     * @throws SpaException if the packet cannot be built or its destination resolved
+     */
+    public SpaPacket prepare() throws SpaException {
+        final SpaPacket packet = encode();
+        packet.resolve();
+
+        return packet;
+    }
+
+    /**
+     * Create the GPG cipher from the keys of the GPG home directory. Keys are looked up in the GPG
+     * key cache so that the keyrings are parsed and the signing key is unlocked only once.
+     *
+     * @return the GPG cipher
+     * @throws SpaException if the keys cannot be found or unlocked
+     */
+    private GpgCipher createGpgCipher() throws SpaException {
+        final String gpgHomeDirectory = getGpgHomeDirectory(this.config);
+        final GpgKeyCache keyCache = GpgKeyCache.getInstance();
+
+        PGPPrivateKey signingKey = null;
+        final String signer = this.config.get(EnumFwknopRcKey.GPG_SIGNER);
+        if (signer != null) {
+            String passphrase = this.config.get(EnumFwknopRcKey.GPG_SIGNING_PW);
+            if (this.config.get(EnumFwknopRcKey.GPG_SIGNING_PW_BASE64) != null) {
+                passphrase = SpaBase64.decodeToString(this.config.get(EnumFwknopRcKey.GPG_SIGNING_PW_BASE64).trim());
+            }
+            signingKey = keyCache.getSigningKey(gpgHomeDirectory, signer.trim(),
+                passphrase == null ? new char[0] : passphrase.toCharArray());
+        }
+
+        return new GpgCipher(keyCache.getEncryptionKey(gpgHomeDirectory,
+            this.config.get(EnumFwknopRcKey.GPG_RECIPIENT).trim()), signingKey);
+    }
+
+    /**
+     * @param config fwknoprc settings
+     * @return the GPG home directory set in GPG_HOMEDIR or the user default one
+     */
+    private static String getGpgHomeDirectory(final Map<EnumFwknopRcKey, String> config) {
+        final String gpgHomeDirectory = config.get(EnumFwknopRcKey.GPG_HOMEDIR);
+        return gpgHomeDirectory != null ? gpgHomeDirectory.trim()
+            : System.getProperty("user.home") + System.getProperty("file.separator") + ".gnupg";
+    }
+
+    /**
+     * Build the plaintext SPA message from the rc settings
+     *
+     * @return the SPA message
+     * @throws SpaException if a setting is invalid
+     */
+    private SpaMessage createMessage() throws SpaException {
+        final String access = this.config.get(EnumFwknopRcKey.ACCESS).replaceAll("\\s", "");
+        final SpaMessage message = new SpaMessage(getUsername(),
+            System.currentTimeMillis() / 1000 + getTimeOffset(),
+            getAllowIp() + "," + access);
+
+        // Configure NAT access
+        if (isSet(this.config, EnumFwknopRcKey.NAT_LOCAL)) {
+            message.setNatAccess(this.config.get(EnumFwknopRcKey.SPA_SERVER).trim() + "," + getNatPort(access), true);
+        } else if (this.config.get(EnumFwknopRcKey.NAT_ACCESS) != null) {
+            message.setNatAccess(this.config.get(EnumFwknopRcKey.NAT_ACCESS).trim().replaceAll("[:/]", ","), false);
+        }
+
+        // Configure the client timeout
+        final String timeout = this.config.get(EnumFwknopRcKey.FW_TIMEOUT);
+        if (timeout != null) {
+            message.setClientTimeout(parseInt(EnumFwknopRcKey.FW_TIMEOUT, timeout));
+        }
+
+        return message;
+    }
+
+    /**
+     * @return the user name to put in the SPA message
+     */
+    private String getUsername() {
+        final String spoofUser = this.config.get(EnumFwknopRcKey.SPOOF_USER);
+        return spoofUser != null ? spoofUser.trim() : System.getProperty("user.name");
+    }
+
+    /**
+     * Compute the IP address to allow according to the ALLOW_IP setting
+     *
+     * @return the IP address to allow
+     * @throws SpaException if the address cannot be resolved
+     */
+    private String getAllowIp() throws SpaException {
+        final String allowIp = this.config.get(EnumFwknopRcKey.ALLOW_IP);
+        String ip;
+
+        if (allowIp == null || "source".equalsIgnoreCase(allowIp.trim())) {
+            ip = SOURCE_ADDRESS;
+        } else if ("resolve".equalsIgnoreCase(allowIp.trim())) {
+            ip = ExternalIpResolver.resolve(this.config);
+        } else {
+            try {
+                ip = InetAddress.getByName(allowIp.trim()).getHostAddress();
+            } catch (final UnknownHostException e) {
+                throw new SpaException("Unable to resolve ALLOW_IP " + allowIp, e);
+            }
+        }
+
+        return ip;
+    }
+
+    /**
+     * @param access access string used to get the default port
+     * @return the port to use for local NAT access
+     * @throws SpaException if the NAT port is invalid
+     */
+    private String getNatPort(final String access) throws SpaException {
+        final String natPort = this.config.get(EnumFwknopRcKey.NAT_PORT);
+        if (natPort != null) {
+            return Integer.toString(parseInt(EnumFwknopRcKey.NAT_PORT, natPort));
+        }
+        if (isSet(this.config, EnumFwknopRcKey.NAT_RAND_PORT)) {
+            return Integer.toString(randomPort());
+        }
+
+        // Default to the first port of the access string
+        final String firstAccess = access.split(",")[0];
+        return firstAccess.substring(firstAccess.indexOf('/') + 1);
+    }
+
+    /**
+     * @return the destination port
+     * @throws SpaException if the port is invalid
+     */
+    private int getPort() throws SpaException {
+        if (isSet(this.config, EnumFwknopRcKey.RAND_PORT)) {
+            return randomPort();
+        }
+        final String port = this.config.get(EnumFwknopRcKey.SPA_SERVER_PORT);
+        if (port == null) {
+            return "http".equals(getProtocol(this.config)) ? HttpTransport.DEFAULT_HTTP_PORT : DEFAULT_SPA_SERVER_PORT;
+        }
+        return parseInt(EnumFwknopRcKey.SPA_SERVER_PORT, port);
+    }
+
+    /**
+     * Parse the TIME_OFFSET setting - a signed number of seconds optionally followed by a unit
+     * (s, m, h or d)
+     *
+     * @return the time offset in seconds
+     * @throws SpaException if the offset is invalid
+     */
+    private long getTimeOffset() throws SpaException {
+        String offset = this.config.get(EnumFwknopRcKey.TIME_OFFSET);
+        if (offset == null) {
+            return 0;
+        }
+
+        offset = offset.trim().toLowerCase();
+        long multiplier = 1;
+        if (offset.endsWith("s")) {
+            offset = offset.substring(0, offset.length() - 1);
+        } else if (offset.endsWith("m")) {
+            multiplier = 60;
+            offset = offset.substring(0, offset.length() - 1);
+        } else if (offset.endsWith("h")) {
+            multiplier = 3600;
+            offset = offset.substring(0, offset.length() - 1);
+        } else if (offset.endsWith("d")) {
+            multiplier = 86400;
+            offset = offset.substring(0, offset.length() - 1);
+        }
+
+        if (offset.startsWith("+")) {
+            offset = offset.substring(1);
+        }
+
+        return parseInt(EnumFwknopRcKey.TIME_OFFSET, offset) * multiplier;
+    }
+
+    /**
+     * @return true if the packet has to be authenticated with a HMAC
+     */
+    private boolean useHmac() {
+        return isSet(this.config, EnumFwknopRcKey.USE_HMAC)
+            || this.config.get(EnumFwknopRcKey.HMAC_KEY) != null
+            || this.config.get(EnumFwknopRcKey.HMAC_KEY_BASE64) != null;
+    }
+
+    /**
+     * Compute the HMAC of the encrypted data
+     *
+     * @param data encrypted data as sent on the wire
+     * @return the base64 HMAC to append to the data
+     * @throws SpaException if the HMAC cannot be computed
+     */
+    private String computeHmac(final String data) throws SpaException {
+        final EnumSpaDigest digest = EnumSpaDigest.fromRcValue(
+            this.config.get(EnumFwknopRcKey.HMAC_DIGEST_TYPE), EnumSpaDigest.SHA256);
+        final Mac mac = digest.createMac();
+        try {
+            mac.init(new SecretKeySpec(getKey(EnumFwknopRcKey.HMAC_KEY, EnumFwknopRcKey.HMAC_KEY_BASE64),
+                digest.getHmacAlgorithm()));
+        } catch (final InvalidKeyException e) {
+            throw new SpaException("Invalid HMAC key", e);
+        }
+
+        return SpaBase64.encode(mac.doFinal(data.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * Get a key from its clear or base64 rc setting
+     *
+     * @param clearKey rc key that stores the clear passphrase
+     * @param base64Key rc key that stores the base64 passphrase
+     * @return the key as a byte array
+     * @throws SpaException if none of the settings is set
+     */
+    private byte[] getKey(final EnumFwknopRcKey clearKey, final EnumFwknopRcKey base64Key) throws SpaException {
+        final String base64 = this.config.get(base64Key);
+        if (base64 != null) {
+            return SpaBase64.decode(base64.trim());
+        }
+
+        final String clear = this.config.get(clearKey);
+        if (clear != null) {
+            return clear.getBytes(StandardCharsets.UTF_8);
+        }
+
+        throw new SpaException(clearKey + " or " + base64Key + " must be set");
+    }
+
+    /**
+     * @param config fwknoprc settings
+     * @return the transport protocol in lower case
+     */
+    private static String getProtocol(final Map<EnumFwknopRcKey, String> config) {
+        final String proto = config.get(EnumFwknopRcKey.SPA_SERVER_PROTO);
+        return proto == null ? DEFAULT_SPA_SERVER_PROTO : proto.trim().toLowerCase();
+    }
+
+    /**
+     * @param config fwknoprc settings
+     * @param key Y/N rc key to check
+     * @return true if the key is set to Y
+     */
+    private static boolean isSet(final Map<EnumFwknopRcKey, String> config, final EnumFwknopRcKey key) {
+        return "Y".equalsIgnoreCase(config.get(key));
+    }
+
+    /**
+     * @return a random port between 10000 and 65535
+     */
+    private static int randomPort() {
+        return MIN_RAND_PORT + RANDOM.nextInt(MAX_RAND_PORT - MIN_RAND_PORT + 1);
+    }
+
+    /**
+     * @param value rc value
+     * @return the trimmed value, or null if not set or blank
+     */
+    private static String trimToNull(final String value) {
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    private static int parseInt(final EnumFwknopRcKey key, final String value) throws SpaException {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (final NumberFormatException e) {
+            throw new SpaException("Invalid value for " + key + ": " + value, e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+/**
+ * Exception raised when a SPA packet cannot be built or sent by the in-process engine
+ */
+public class SpaException extends Exception {
+
+    static final long serialVersionUID = 1L;
+
+    /**
+     * @param message Reason of the failure
+     */
+    public SpaException(final String message) {
+        super(message);
+    }
+
+    /**
+     * @param message Reason of the failure
+     * @param cause Underlying exception
+     */
+    public SpaException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+}
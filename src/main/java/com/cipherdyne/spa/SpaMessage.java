@@ -0,0 +1,316 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Plaintext SPA message as defined by libfko.
+ *
+ * The encoded form is a colon separated list of fields:
+ * rand_val:b64(user):timestamp:version:msg_type:b64(access)[:b64(nat_access)][:client_timeout]
+ * followed by the base64 digest of these fields.
+ */
+public class SpaMessage {
+
+    // Protocol version announced in the SPA message
+    public static final String PROTOCOL_VERSION = "3.0.0";
+
+    // Message types
+    public static final int COMMAND_MSG = 0;
+    public static final int ACCESS_MSG = 1;
+    public static final int NAT_ACCESS_MSG = 2;
+    public static final int CLIENT_TIMEOUT_ACCESS_MSG = 3;
+    public static final int CLIENT_TIMEOUT_NAT_ACCESS_MSG = 4;
+    public static final int LOCAL_NAT_ACCESS_MSG = 5;
+    public static final int CLIENT_TIMEOUT_LOCAL_NAT_ACCESS_MSG = 6;
+
+    // Number of digits of the random value
+    private static final int RAND_VAL_SIZE = 16;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String randomValue;
+    private final String username;
+    private final long timestamp;
+    private final String accessMessage;
+    private String natAccess;
+    private boolean localNat;
+    private int clientTimeout;
+
+    // Base64 digest of a decoded message - null if the message has been built locally
+    private final String digest;
+
+    /**
+     * Create a SPA access message
+     *
+     * @param username user name to put in the message
+     * @param timestamp time of the message in seconds since the epoch
+     * @param accessMessage access request as "ip,proto/port[,proto/port...]"
+     */
+    public SpaMessage(final String username, final long timestamp, final String accessMessage) {
+        this.randomValue = createRandomValue();
+        this.username = username;
+        this.timestamp = timestamp;
+        this.accessMessage = accessMessage;
+        this.natAccess = null;
+        this.localNat = false;
+        this.clientTimeout = 0;
+        this.digest = null;
+    }
+
+    private SpaMessage(final String randomValue, final String username, final long timestamp,
+        final String accessMessage, final String digest) {
+        this.randomValue = randomValue;
+        this.username = username;
+        this.timestamp = timestamp;
+        this.accessMessage = accessMessage;
+        this.natAccess = null;
+        this.localNat = false;
+        this.clientTimeout = 0;
+        this.digest = digest;
+    }
+
+    /**
+     * Decode a decrypted SPA access message and check its digest. The digest algorithm is found
+     * from the length of the digest as libfko does.
+     *
+     * @param plaintext decrypted SPA message along with its digest
+     * @return the decoded message
+     * @throws SpaRejectException if the message is malformed or its digest does not match
+     */
+    public static SpaMessage decode(final String plaintext) throws SpaRejectException {
+        final int digestStart = plaintext.lastIndexOf(':');
+        if (digestStart < 0) {
+            throw new SpaRejectException(EnumSpaRejectReason.MALFORMED_MESSAGE, "No digest in SPA message");
+        }
+        checkDigest(plaintext.substring(0, digestStart), plaintext.substring(digestStart + 1));
+
+        final String[] fields = plaintext.substring(0, digestStart).split(":", -1);
+        if (fields.length < 6) {
+            throw new SpaRejectException(EnumSpaRejectReason.MALFORMED_MESSAGE,
+                "Not enough fields in SPA message: " + fields.length);
+        }
+
+        final long type = parseNumber(fields[4]);
+        if (type < ACCESS_MSG || type > CLIENT_TIMEOUT_LOCAL_NAT_ACCESS_MSG) {
+            throw new SpaRejectException(EnumSpaRejectReason.MALFORMED_MESSAGE, "Unsupported message type: " + type);
+        }
+        final boolean nat = type != ACCESS_MSG && type != CLIENT_TIMEOUT_ACCESS_MSG;
+        final boolean timeout = type == CLIENT_TIMEOUT_ACCESS_MSG || type == CLIENT_TIMEOUT_NAT_ACCESS_MSG
+            || type == CLIENT_TIMEOUT_LOCAL_NAT_ACCESS_MSG;
+        final int expectedFields = 6 + (nat ? 1 : 0) + (timeout ? 1 : 0);
+        if (fields.length != expectedFields) {
+            throw new SpaRejectException(EnumSpaRejectReason.MALFORMED_MESSAGE, "Expected " + expectedFields
+                + " fields in SPA message of type " + type + ", got " + fields.length);
+        }
+
+        final SpaMessage message = new SpaMessage(fields[0], decodeField(fields[1]), parseNumber(fields[2]),
+            decodeField(fields[5]), plaintext.substring(digestStart + 1));
+        int field = 6;
+        if (nat) {
+            message.setNatAccess(decodeField(fields[field++]),
+                type == LOCAL_NAT_ACCESS_MSG || type == CLIENT_TIMEOUT_LOCAL_NAT_ACCESS_MSG);
+        }
+        if (timeout) {
+            message.setClientTimeout((int) parseNumber(fields[field]));
+        }
+
+        return message;
+    }
+
+    private static String decodeField(final String field) throws SpaRejectException {
+        try {
+            return SpaBase64.decodeToString(field);
+        } catch (SpaException e) {
+            throw new SpaRejectException(EnumSpaRejectReason.MALFORMED_MESSAGE, "Invalid base64 field in SPA message", e);
+        }
+    }
+
+    private static long parseNumber(final String field) throws SpaRejectException {
+        try {
+            return Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            throw new SpaRejectException(EnumSpaRejectReason.MALFORMED_MESSAGE, "Invalid number in SPA message: " + field, e);
+        }
+    }
+
+    /**
+     * @param content encoded fields of the message
+     * @param digest base64 digest found at the end of the message
+     * @throws SpaRejectException if no supported digest of the content matches
+     */
+    private static void checkDigest(final String content, final String digest) throws SpaRejectException {
+        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        final byte[] expected = digest.getBytes(StandardCharsets.US_ASCII);
+        boolean supported = false;
+
+        for (final EnumSpaDigest digestType : EnumSpaDigest.values()) {
+            if (digestType.getBase64Length() != digest.length()) {
+                continue;
+            }
+            supported = true;
+            try {
+                final byte[] computed = SpaBase64.encode(digestType.createDigest().digest(bytes))
+                    .getBytes(StandardCharsets.US_ASCII);
+                if (MessageDigest.isEqual(computed, expected)) {
+                    return;
+                }
+            } catch (SpaException e) {
+                // Algorithm not available, try the next one of the same length
+            }
+        }
+
+        throw new SpaRejectException(supported ? EnumSpaRejectReason.DIGEST_MISMATCH
+            : EnumSpaRejectReason.MALFORMED_MESSAGE, supported ? "SPA message digest mismatch"
+            : "Unsupported SPA message digest length: " + digest.length());
+    }
+
+    /**
+     * Request NAT access
+     *
+     * @param natAccess NAT access as "ip,port"
+     * @param local true to request access to a local service through a forwarded port
+     */
+    public void setNatAccess(final String natAccess, final boolean local) {
+        this.natAccess = natAccess;
+        this.localNat = local;
+    }
+
+    /**
+     * @param clientTimeout firewall rule timeout requested by the client, 0 to use the server value
+     */
+    public void setClientTimeout(final int clientTimeout) {
+        this.clientTimeout = clientTimeout;
+    }
+
+    /**
+     * @return the message type according to the NAT and client timeout settings
+     */
+    public int getMessageType() {
+        final boolean timeout = this.clientTimeout > 0;
+        int type;
+
+        if (this.natAccess == null) {
+            type = timeout ? CLIENT_TIMEOUT_ACCESS_MSG : ACCESS_MSG;
+        } else if (this.localNat) {
+            type = timeout ? CLIENT_TIMEOUT_LOCAL_NAT_ACCESS_MSG : LOCAL_NAT_ACCESS_MSG;
+        } else {
+            type = timeout ? CLIENT_TIMEOUT_NAT_ACCESS_MSG : NAT_ACCESS_MSG;
+        }
+
+        return type;
+    }
+
+    /**
+     * @return the time of the message in seconds since the epoch
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public String getRandomValue() {
+        return this.randomValue;
+    }
+
+    public String getUsername() {
+        return this.username;
+    }
+
+    /**
+     * @return the access request as "ip,proto/port[,proto/port...]"
+     */
+    public String getAccessMessage() {
+        return this.accessMessage;
+    }
+
+    /**
+     * @return the address access is requested for, 0.0.0.0 to use the packet source address
+     */
+    public String getAllowIp() {
+        final int end = this.accessMessage.indexOf(',');
+        return end < 0 ? this.accessMessage : this.accessMessage.substring(0, end);
+    }
+
+    /**
+     * @return the NAT access as "ip,port" - null if not requested
+     */
+    public String getNatAccess() {
+        return this.natAccess;
+    }
+
+    /**
+     * @return the firewall rule timeout requested by the client, 0 to use the server value
+     */
+    public int getClientTimeout() {
+        return this.clientTimeout;
+    }
+
+    /**
+     * @return the base64 digest of a decoded message - null if the message has been built locally
+     */
+    public String getDigest() {
+        return this.digest;
+    }
+
+    /**
+     * Encode the message and append its digest
+     *
+     * @param digestType digest algorithm used to protect the message
+     * @return the plaintext ready to be encrypted
+     * @throws SpaException if the digest algorithm is not available
+     */
+    public String encode(final EnumSpaDigest digestType) throws SpaException {
+        final StringBuilder sb = new StringBuilder(256);
+
+        sb.append(this.randomValue)
+            .append(':').append(SpaBase64.encode(this.username))
+            .append(':').append(this.timestamp)
+            .append(':').append(PROTOCOL_VERSION)
+            .append(':').append(getMessageType())
+            .append(':').append(SpaBase64.encode(this.accessMessage));
+
+        if (this.natAccess != null) {
+            sb.append(':').append(SpaBase64.encode(this.natAccess));
+        }
+
+        if (this.clientTimeout > 0) {
+            sb.append(':').append(this.clientTimeout);
+        }
+
+        final byte[] digest = digestType.createDigest().digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+        sb.append(':').append(SpaBase64.encode(digest));
+
+        return sb.toString();
+    }
+
+    /**
+     * @return a random string of 16 digits
+     */
+    private static String createRandomValue() {
+        final char[] digits = new char[RAND_VAL_SIZE];
+        digits[0] = (char) ('1' + RANDOM.nextInt(9));
+        for (int ix = 1; ix < RAND_VAL_SIZE; ix++) {
+            digits[ix] = (char) ('0' + RANDOM.nextInt(10));
+        }
+        return new String(digits);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encrypted SPA packet ready to be sent along with its destination.
+ *
+ * The bytes to put on the wire are computed once and the destination is resolved on demand, so
+ * that a packet prepared ahead of time can be sent without any further work.
+ */
+public class SpaPacket {
+
+    // Hostname or IP address of the fwknop server
+    private final String server;
+
+    // Destination port
+    private final int port;
+
+    // Transport protocol (udp, tcp ...)
+    private final String protocol;
+
+    // Data to put on the wire
+    private final String data;
+
+    // Timestamp embedded in the SPA message, in seconds since the epoch
+    private final long timestamp;
+
+    // Data to put on the wire as ASCII bytes
+    private final byte[] bytes;
+
+    // Time at which the packet has been built, in milliseconds since the epoch
+    private final long creationTime;
+
+    // User agent of the http requests - null for the default one
+    private String httpUserAgent;
+
+    // HTTP proxy as host[:port] - null to connect to the server directly
+    private String httpProxy;
+
+    // Resolved destination - null until resolve() is called
+    private volatile InetSocketAddress destination;
+
+    /**
+     * @param server hostname or IP address of the fwknop server
+     * @param port destination port
+     * @param protocol transport protocol
+     * @param data encrypted SPA data
+     * @param timestamp timestamp embedded in the SPA message
+     */
+    public SpaPacket(final String server, final int port, final String protocol, final String data, final long timestamp) {
+        this.server = server;
+        this.port = port;
+        this.protocol = protocol;
+        this.data = data;
+        this.timestamp = timestamp;
+        this.bytes = data.getBytes(StandardCharsets.US_ASCII);
+        this.creationTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Set the options used when the packet is sent over http
+     *
+     * @param httpUserAgent user agent of the request - null for the default one
+     * @param httpProxy HTTP proxy as host[:port] - null to connect to the server directly
+     */
+    public void setHttpOptions(final String httpUserAgent, final String httpProxy) {
+        this.httpUserAgent = httpUserAgent;
+        this.httpProxy = httpProxy;
+    }
+
+    /**
+     * Resolve the destination of the packet through the DNS cache. The address is resolved only
+     * once.
+     *
+     * @return the resolved destination
+     * @throws SpaException if the server cannot be resolved
+     */
+    public InetSocketAddress resolve() throws SpaException {
+        InetSocketAddress address = this.destination;
+        if (address == null) {
+            address = new InetSocketAddress(DnsCache.getInstance().lookup(this.server), this.port);
+            this.destination = address;
+        }
+
+        return address;
+    }
+
+    /**
+     * Check whether the packet is recent enough to be accepted by the server
+     *
+     * @param maxAge maximum age of the packet in milliseconds
+     * @return true if the packet has been built less than maxAge milliseconds ago
+     */
+    public boolean isFresh(final long maxAge) {
+        final long age = System.currentTimeMillis() - this.creationTime;
+        return age >= 0 && age <= maxAge;
+    }
+
+    public String getServer() {
+        return this.server;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public String getProtocol() {
+        return this.protocol;
+    }
+
+    public String getData() {
+        return this.data;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * @return the data to put on the wire - the array must not be modified
+     */
+    public byte[] getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Copy the data to put on the wire into a buffer
+     *
+     * @param buffer buffer to write to
+     * @return false if the buffer is too small, in which case nothing is written
+     */
+    public boolean writeTo(final ByteBuffer buffer) {
+        if (buffer.remaining() < this.bytes.length) {
+            return false;
+        }
+
+        buffer.put(this.bytes);
+        return true;
+    }
+
+    public String getHttpUserAgent() {
+        return this.httpUserAgent;
+    }
+
+    public String getHttpProxy() {
+        return this.httpProxy;
+    }
+
+    public long getCreationTime() {
+        return this.creationTime;
+    }
+
+    @Override
+    public String toString() {
+        return this.protocol + "://" + this.server + ":" + this.port + " (" + this.data.length() + " bytes)";
+    }
+}
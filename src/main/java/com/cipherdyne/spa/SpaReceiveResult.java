@@ -0,0 +1,110 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import java.net.InetAddress;
+
+/**
+ * Outcome of a SPA packet received by the {@link SpaReceiver}
+ */
+public class SpaReceiveResult {
+
+    // Source address of the packet
+    private final InetAddress source;
+
+    // Stanza that accepted the packet, or that went the furthest before rejecting it - null if none
+    private final AccessStanza stanza;
+
+    // Decoded message - null if the packet has been rejected before being decrypted
+    private final SpaMessage message;
+
+    // Reason of the rejection - null if the packet has been accepted
+    private final EnumSpaRejectReason rejectReason;
+
+    // Details of the rejection - null if the packet has been accepted
+    private final String rejectMessage;
+
+    // Time spent to process the packet in microseconds
+    private final long processingTime;
+
+    SpaReceiveResult(final InetAddress source, final AccessStanza stanza, final SpaMessage message,
+        final EnumSpaRejectReason rejectReason, final String rejectMessage, final long processingTime) {
+        this.source = source;
+        this.stanza = stanza;
+        this.message = message;
+        this.rejectReason = rejectReason;
+        this.rejectMessage = rejectMessage;
+        this.processingTime = processingTime;
+    }
+
+    public boolean isAccepted() {
+        return this.rejectReason == null;
+    }
+
+    public InetAddress getSource() {
+        return this.source;
+    }
+
+    public AccessStanza getStanza() {
+        return this.stanza;
+    }
+
+    public SpaMessage getMessage() {
+        return this.message;
+    }
+
+    public EnumSpaRejectReason getRejectReason() {
+        return this.rejectReason;
+    }
+
+    public String getRejectMessage() {
+        return this.rejectMessage;
+    }
+
+    /**
+     * @return the time spent to process the packet in microseconds
+     */
+    public long getProcessingTime() {
+        return this.processingTime;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(isAccepted() ? "ACCEPTED " : "REJECTED ").append(this.source.getHostAddress());
+        if (this.stanza != null) {
+            sb.append(" by ").append(this.stanza);
+        }
+        if (this.message != null) {
+            sb.append(" - user ").append(this.message.getUsername()).append(", access ")
+                .append(this.message.getAccessMessage());
+            if (this.message.getNatAccess() != null) {
+                sb.append(", NAT ").append(this.message.getNatAccess());
+            }
+            if (this.message.getClientTimeout() > 0) {
+                sb.append(", timeout ").append(this.message.getClientTimeout()).append(" s");
+            }
+        }
+        if (!isAccepted()) {
+            sb.append(" [").append(this.rejectReason).append("] ").append(this.rejectMessage);
+        }
+        sb.append(" (").append(this.processingTime).append(" us)");
+        return sb.toString();
+    }
+}
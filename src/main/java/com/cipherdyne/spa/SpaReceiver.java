@@ -0,0 +1,451 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * SPA receiver checking packets against the stanzas of a fwknopd access.conf file, the way fwknopd
+ * does, without opening any firewall rule.
+ *
+ * Packets are received over udp, or over tcp with one connection per packet, by a single selector
+ * thread and handed to a pool of workers that authenticate, decrypt and check them. Each packet is
+ * tried against the stanzas whose SOURCE allows its address, and is accepted by the first one whose
+ * keys authenticate and decrypt it, if its timestamp is recent and it has not been received before.
+ *
+ * Packets received from the loopback interface are tried against all stanzas, and SOURCE is then
+ * checked against the address the message requests access for, since a local test cannot send
+ * packets from the address of the client.
+ */
+public class SpaReceiver implements Closeable {
+
+    static final Logger LOGGER = LogManager.getLogger(SpaReceiver.class.getName());
+
+    // Size limits of SPA data, as defined by libfko
+    public static final int MIN_SPA_DATA_SIZE = 140;
+    public static final int MAX_SPA_PACKET_LEN = 1500;
+
+    // Maximum difference between the timestamp of a message and the local time, in seconds, as
+    // the default MAX_SPA_PACKET_AGE of fwknopd
+    public static final long MAX_SPA_PACKET_AGE = 120;
+
+    // Address used by clients to request access for the source address of the packet
+    private static final String SOURCE_ADDRESS = "0.0.0.0";
+
+    // Number of packets waiting for a worker above which packets are dropped
+    private static final int QUEUE_SIZE = 8192;
+
+    // Number of digests recorded between two purges of the expired ones
+    private static final int PURGE_INTERVAL = 4096;
+
+    // Size of the socket receive buffer, large enough to absorb bursts of udp packets
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    // Stanzas of the access file, in the order of the file
+    private final List<AccessStanza> stanzas;
+
+    // Listener notified of each packet, on the worker threads - null if none
+    private final Consumer<SpaReceiveResult> listener;
+
+    // Digests of the messages received, with the time after which they are too old to be replayed
+    private final Map<String, Long> digests = new ConcurrentHashMap<>();
+    private final AtomicInteger digestsSincePurge = new AtomicInteger();
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLongArray rejected = new AtomicLongArray(EnumSpaRejectReason.values().length);
+
+    private final Selector selector;
+
+    // Channel packets or connections are received on
+    private final SelectableChannel channel;
+
+    // Port the receiver listens to
+    private final int port;
+
+    private final Thread receiverThread;
+    private final ThreadPoolExecutor workers;
+
+    private volatile boolean isRunning;
+
+    /**
+     * Create and start a receiver
+     *
+     * @param stanzas stanzas of the access file
+     * @param protocol udp or tcp
+     * @param address address to listen to
+     * @param port port to listen to - 0 for any free port
+     * @param threads number of workers checking the packets
+     * @param listener listener notified of each packet on the worker threads - null if none
+     * @throws IOException if the receiver cannot listen
+     */
+    public SpaReceiver(final List<AccessStanza> stanzas, final String protocol, final InetAddress address,
+        final int port, final int threads, final Consumer<SpaReceiveResult> listener) throws IOException {
+        this.stanzas = new ArrayList<>(stanzas);
+        this.listener = listener;
+        this.selector = Selector.open();
+        final InetSocketAddress socketAddress = new InetSocketAddress(address, port);
+
+        if ("tcp".equals(protocol)) {
+            final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(socketAddress, 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+            this.port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+            this.channel = serverChannel;
+        } else if ("udp".equals(protocol)) {
+            final DatagramChannel datagramChannel = DatagramChannel.open();
+            datagramChannel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            datagramChannel.bind(socketAddress);
+            datagramChannel.configureBlocking(false);
+            datagramChannel.register(this.selector, SelectionKey.OP_READ);
+            this.port = ((InetSocketAddress) datagramChannel.getLocalAddress()).getPort();
+            this.channel = datagramChannel;
+        } else {
+            this.selector.close();
+            throw new IOException("Unsupported receiver protocol: " + protocol);
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+                Thread thread = new Thread(r, "spa-receiver-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+        this.isRunning = true;
+        this.receiverThread = new Thread(this::run, "spa-receiver");
+        this.receiverThread.setDaemon(true);
+        this.receiverThread.start();
+    }
+
+    /**
+     * Main loop of the selector thread
+     */
+    private void run() {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_SPA_PACKET_LEN + 1);
+
+        while (this.isRunning) {
+            try {
+                this.selector.select();
+                final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                    } else if (key.channel() instanceof DatagramChannel) {
+                        receive((DatagramChannel) key.channel(), buffer);
+                    } else {
+                        read(key);
+                    }
+                }
+            } catch (IOException e) {
+                if (this.isRunning) {
+                    LOGGER.error("SPA receiver failed", e);
+                }
+            }
+        }
+    }
+
+    private void accept(final ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel client;
+        while ((client = serverChannel.accept()) != null) {
+            client.configureBlocking(false);
+            client.register(this.selector, SelectionKey.OP_READ, ByteBuffer.allocate(MAX_SPA_PACKET_LEN + 1));
+        }
+    }
+
+    private void receive(final DatagramChannel datagramChannel, final ByteBuffer buffer) throws IOException {
+        InetSocketAddress source;
+        buffer.clear();
+        while ((source = (InetSocketAddress) datagramChannel.receive(buffer)) != null) {
+            buffer.flip();
+            final byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            submit(data, source.getAddress());
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Read a tcp connection, its packet is checked once the client has closed it or the maximum
+     * packet length has been exceeded
+     */
+    private void read(final SelectionKey key) {
+        final SocketChannel client = (SocketChannel) key.channel();
+        final ByteBuffer buffer = (ByteBuffer) key.attachment();
+        try {
+            final int read = client.read(buffer);
+            if (read < 0 || !buffer.hasRemaining()) {
+                buffer.flip();
+                final byte[] data = new byte[buffer.remaining()];
+                buffer.get(data);
+                submit(data, ((InetSocketAddress) client.getRemoteAddress()).getAddress());
+                key.cancel();
+                client.close();
+            }
+        } catch (IOException e) {
+            key.cancel();
+            try {
+                client.close();
+            } catch (IOException ex) {
+                LOGGER.debug("Unable to close SPA connection", ex);
+            }
+        }
+    }
+
+    /**
+     * Hand a packet to the workers, or drop it if they are overloaded
+     */
+    private void submit(final byte[] data, final InetAddress source) {
+        try {
+            this.workers.execute(() -> notify(check(data, source)));
+        } catch (RejectedExecutionException e) {
+            notify(new SpaReceiveResult(source, null, null, EnumSpaRejectReason.OVERLOADED, "Receive queue full", 0));
+        }
+    }
+
+    /**
+     * Check a packet against the stanzas
+     *
+     * @param packet data received
+     * @param source source address of the packet
+     * @return the outcome of the checks
+     */
+    SpaReceiveResult check(final byte[] packet, final InetAddress source) {
+        final long start = System.nanoTime();
+        final String data = new String(packet, StandardCharsets.US_ASCII).trim();
+        if (data.length() < MIN_SPA_DATA_SIZE || data.length() > MAX_SPA_PACKET_LEN) {
+            return reject(source, null, null, new SpaRejectException(EnumSpaRejectReason.MALFORMED_PACKET,
+                "Invalid SPA data length: " + data.length()), start);
+        }
+
+        final boolean loopback = source.isLoopbackAddress();
+        SpaRejectException furthest = null;
+        AccessStanza furthestStanza = null;
+
+        for (final AccessStanza stanza : this.stanzas) {
+            if (!loopback && !stanza.matchesSource(source)) {
+                continue;
+            }
+
+            final SpaMessage message;
+            try {
+                message = stanza.decode(data);
+            } catch (SpaRejectException e) {
+                if (furthest == null || e.getReason().compareTo(furthest.getReason()) > 0) {
+                    furthest = e;
+                    furthestStanza = stanza;
+                }
+                continue;
+            }
+
+            // The stanza holds the keys of the packet, its checks are final
+            try {
+                checkMessage(stanza, message, source, loopback);
+                return new SpaReceiveResult(source, stanza, message, null, null, (System.nanoTime() - start) / 1000);
+            } catch (SpaRejectException e) {
+                return reject(source, stanza, message, e, start);
+            }
+        }
+
+        return reject(source, furthestStanza, null, furthest != null ? furthest
+            : new SpaRejectException(EnumSpaRejectReason.UNKNOWN_SOURCE, "No stanza allows " + source.getHostAddress()),
+            start);
+    }
+
+    /**
+     * Check the time window, the SOURCE of loopback packets and replays
+     *
+     * @param stanza stanza that decrypted the message
+     * @param message decoded message
+     * @param source source address of the packet
+     * @param loopback true if the packet has been received on the loopback interface
+     * @throws SpaRejectException if the message is rejected
+     */
+    private void checkMessage(final AccessStanza stanza, final SpaMessage message, final InetAddress source,
+        final boolean loopback) throws SpaRejectException {
+
+        final long age = System.currentTimeMillis() / 1000 - message.getTimestamp();
+        if (Math.abs(age) > MAX_SPA_PACKET_AGE) {
+            throw new SpaRejectException(EnumSpaRejectReason.STALE, "SPA message timestamp is " + age + " s off");
+        }
+
+        if (loopback) {
+            final String allowIp = message.getAllowIp();
+            final boolean allowed;
+            try {
+                allowed = SOURCE_ADDRESS.equals(allowIp) ? stanza.matchesSource(source)
+                    : stanza.matchesSource(AccessStanza.parseIpv4(allowIp));
+            } catch (SpaException e) {
+                throw new SpaRejectException(EnumSpaRejectReason.MALFORMED_MESSAGE, e.getMessage(), e);
+            }
+            if (!allowed) {
+                throw new SpaRejectException(EnumSpaRejectReason.SOURCE_MISMATCH, "SOURCE " + stanza.getSource()
+                    + " does not allow " + allowIp);
+            }
+        }
+
+        final long expiry = message.getTimestamp() + MAX_SPA_PACKET_AGE;
+        if (this.digests.putIfAbsent(message.getDigest(), expiry) != null) {
+            throw new SpaRejectException(EnumSpaRejectReason.REPLAYED, "SPA message already received");
+        }
+        if (this.digestsSincePurge.incrementAndGet() >= PURGE_INTERVAL) {
+            this.digestsSincePurge.set(0);
+            final long now = System.currentTimeMillis() / 1000;
+            this.digests.values().removeIf(digestExpiry -> digestExpiry < now);
+        }
+    }
+
+    private static SpaReceiveResult reject(final InetAddress source, final AccessStanza stanza,
+        final SpaMessage message, final SpaRejectException e, final long start) {
+        return new SpaReceiveResult(source, stanza, message, e.getReason(), e.getMessage(),
+            (System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Count a result and notify the listener
+     */
+    private void notify(final SpaReceiveResult result) {
+        if (result.isAccepted()) {
+            this.accepted.incrementAndGet();
+        } else {
+            this.rejected.incrementAndGet(result.getRejectReason().ordinal());
+        }
+
+        if (this.listener != null) {
+            try {
+                this.listener.accept(result);
+            } catch (RuntimeException e) {
+                LOGGER.error("SPA receiver listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * @return the port the receiver listens to
+     */
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * @return the number of packets accepted
+     */
+    public long getAccepted() {
+        return this.accepted.get();
+    }
+
+    /**
+     * @param reason reason of the rejection
+     * @return the number of packets rejected for the reason
+     */
+    public long getRejected(final EnumSpaRejectReason reason) {
+        return this.rejected.get(reason.ordinal());
+    }
+
+    /**
+     * @return the number of packets rejected
+     */
+    public long getRejected() {
+        long total = 0;
+        for (final EnumSpaRejectReason reason : EnumSpaRejectReason.values()) {
+            total += getRejected(reason);
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of packets received, accepted or rejected
+     */
+    public long getReceived() {
+        return getAccepted() + getRejected();
+    }
+
+    /**
+     * Stop the receiver once the packets already received have been checked, and release its port
+     */
+    @Override
+    public void close() throws IOException {
+        this.isRunning = false;
+        this.selector.wakeup();
+        try {
+            this.receiverThread.join(1000);
+            this.workers.shutdown();
+            this.workers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (final SelectionKey key : this.selector.keys()) {
+            key.channel().close();
+        }
+        this.channel.close();
+        this.selector.close();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("SPA receiver: ");
+        sb.append(getAccepted()).append(" accepted, ").append(getRejected()).append(" rejected");
+        String separator = " (";
+        for (final EnumSpaRejectReason reason : EnumSpaRejectReason.values()) {
+            final long count = getRejected(reason);
+            if (count > 0) {
+                sb.append(separator).append(reason).append(' ').append(count);
+                separator = ", ";
+            }
+        }
+        if (", ".equals(separator)) {
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+}
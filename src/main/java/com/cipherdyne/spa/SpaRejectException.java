@@ -0,0 +1,53 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+/**
+ * Exception raised when a received SPA packet is rejected
+ */
+public class SpaRejectException extends SpaException {
+
+    static final long serialVersionUID = 1L;
+
+    // Reason of the rejection
+    private final EnumSpaRejectReason reason;
+
+    /**
+     * @param reason Reason of the rejection
+     * @param message Details of the rejection
+     */
+    public SpaRejectException(final EnumSpaRejectReason reason, final String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    /**
+     * @param reason Reason of the rejection
+     * @param message Details of the rejection
+     * @param cause Underlying exception
+     */
+    public SpaRejectException(final EnumSpaRejectReason reason, final String message, final Throwable cause) {
+        super(message, cause);
+        this.reason = reason;
+    }
+
+    public EnumSpaRejectReason getReason() {
+        return this.reason;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+/**
+ * Send SPA packets to a fwknop server over udp, tcp or http.
+ *
+ * The transport is selected from the protocol of each packet. The udp and http transports are
+ * shared by all senders so that their channels, buffers and connections are reused across knocks.
+ */
+public class SpaSender {
+
+    // Transport used for tcp packets
+    private final ISpaTransport tcpTransport = new TcpTransport();
+
+    /**
+     * Send a SPA packet to its destination
+     *
+     * @param packet SPA packet to send
+     * @return the number of bytes sent
+     * @throws SpaException if the packet cannot be sent
+     */
+    public int send(final SpaPacket packet) throws SpaException {
+        return getTransport(packet.getProtocol()).send(packet);
+    }
+
+    /**
+     * @param protocol SPA_SERVER_PROTO value
+     * @return the transport handling the protocol
+     * @throws SpaException if the protocol is not supported
+     */
+    public ISpaTransport getTransport(final String protocol) throws SpaException {
+        switch (protocol) {
+            case "udp":
+                return UdpTransport.getInstance();
+            case "tcp":
+                return this.tcpTransport;
+            case "http":
+                return HttpTransport.getInstance();
+            default:
+                throw new SpaException("Unsupported protocol: " + protocol);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * TCP transport. A new connection is opened for each SPA packet since fwknopd only reads a single
+ * packet per connection.
+ */
+public class TcpTransport implements ISpaTransport {
+
+    // TCP connect timeout in milliseconds
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    @Override
+    public int send(final SpaPacket packet) throws SpaException {
+        final byte[] data = packet.getBytes();
+
+        try (Socket socket = new Socket()) {
+            socket.connect(packet.resolve(), CONNECT_TIMEOUT);
+            final OutputStream out = socket.getOutputStream();
+            out.write(data);
+            out.flush();
+        } catch (final IOException e) {
+            throw new SpaException("Unable to send SPA packet to " + packet + " : " + e.getMessage(), e);
+        }
+
+        return data.length;
+    }
+
+    @Override
+    public void close() {
+    }
+}
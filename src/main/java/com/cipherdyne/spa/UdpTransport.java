@@ -0,0 +1,164 @@
+/*
+ * JFwknop is developed primarily by the people listed in the file 'AUTHORS'.
+ * Copyright (C) 2016 JFwknop developers and contributors.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package com.cipherdyne.spa;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * UDP transport that keeps a connected datagram channel per destination.
+ *
+ * Channels are opened on the first packet sent to a destination and reused afterwards, the least
+ * recently used one is closed when too many destinations are known. The packet data is written
+ * straight into pooled direct buffers.
+ */
+public class UdpTransport implements ISpaTransport {
+
+    static final Logger LOGGER = LogManager.getLogger(UdpTransport.class.getName());
+
+    // Maximum size of a SPA packet handled by fwknopd
+    static final int MAX_SPA_PACKET_LENGTH = 1500;
+
+    // Maximum number of buffers kept in the pool
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    // Maximum number of channels kept open
+    private static final int MAX_CHANNELS = 256;
+
+    private static UdpTransport instance = null;
+
+    // Buffers used to write the packets
+    private final ByteBufferPool bufferPool = new ByteBufferPool(MAX_SPA_PACKET_LENGTH, MAX_POOLED_BUFFERS);
+
+    // Connected channels indexed by destination, in access order
+    private final Map<InetSocketAddress, DatagramChannel> channels = new LinkedHashMap<InetSocketAddress, DatagramChannel>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<InetSocketAddress, DatagramChannel> eldest) {
+            if (size() > MAX_CHANNELS) {
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * @return the transport shared by all the knocks
+     */
+    public static synchronized UdpTransport getInstance() {
+        if (instance == null) {
+            instance = new UdpTransport();
+        }
+        return instance;
+    }
+
+    @Override
+    public int send(final SpaPacket packet) throws SpaException {
+        final InetSocketAddress destination = packet.resolve();
+        final ByteBuffer buffer = this.bufferPool.acquire();
+
+        try {
+            if (!packet.writeTo(buffer)) {
+                throw new SpaException("SPA packet too large to be sent over udp: " + packet);
+            }
+            buffer.flip();
+
+            final DatagramChannel channel = getChannel(destination);
+            try {
+                return channel.write(buffer);
+            } catch (PortUnreachableException e) {
+                // fwknopd usually sniffs packets without listening on the port, so the ICMP error
+                // of a previous packet is expected. The error is cleared once reported.
+                buffer.rewind();
+                return channel.write(buffer);
+            } catch (IOException e) {
+                // The channel may have been broken by an ICMP error, retry once with a new one
+                LOGGER.debug("Reopening channel to " + destination, e);
+                discardChannel(destination);
+                buffer.rewind();
+                return getChannel(destination).write(buffer);
+            }
+        } catch (IOException e) {
+            discardChannel(destination);
+            throw new SpaException("Unable to send SPA packet to " + packet + " : " + e.getMessage(), e);
+        } finally {
+            this.bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Get the channel connected to a destination, opening it if needed
+     *
+     * @param destination resolved destination
+     * @return the connected channel
+     * @throws IOException if the channel cannot be opened
+     */
+    private DatagramChannel getChannel(final InetSocketAddress destination) throws IOException {
+        synchronized (this.channels) {
+            DatagramChannel channel = this.channels.get(destination);
+            if (channel == null || !channel.isOpen()) {
+                channel = DatagramChannel.open();
+                channel.connect(destination);
+                this.channels.put(destination, channel);
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Close and forget the channel connected to a destination
+     *
+     * @param destination resolved destination
+     */
+    private void discardChannel(final InetSocketAddress destination) {
+        final DatagramChannel channel;
+        synchronized (this.channels) {
+            channel = this.channels.remove(destination);
+        }
+        closeQuietly(channel);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this.channels) {
+            for (final Iterator<DatagramChannel> it = this.channels.values().iterator(); it.hasNext();) {
+                closeQuietly(it.next());
+                it.remove();
+            }
+        }
+    }
+
+    private static void closeQuietly(final DatagramChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.debug("Unable to close channel", e);
+            }
+        }
+    }
+}
@@ -18,6 +18,8 @@
  */
 package com.cipherdyne.utils;
 
+import com.cipherdyne.jfwknop.ProcessResult;
+import com.cipherdyne.jfwknop.ProcessRunner;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -72,6 +74,136 @@ public class GpgUtils {
     static private final String GPG1_PUBLIC_KEYRING = "pubring.gpg";
     static private final String GPG1_PRIVATE_KEYRING = "secring.gpg";
 
+    // Maximum time given to gpg to import a key, in milliseconds
+    static private final long GPG_IMPORT_TIMEOUT = 30000;
+
+    /**
+     * Read the GPG v1 public keyring of a GPG home directory
+     *
+     * @param gpgHomeDirectory GPG home directory where pubring.gpg file can be find
+     * @return the public key rings
+     * @throws FileNotFoundException
+     * @throws IOException
+     * @throws PGPException
+     */
+    static public PGPPublicKeyRingCollection readPublicKeyRings(final String gpgHomeDirectory) throws FileNotFoundException, IOException, PGPException {
+        Security.addProvider(new BouncyCastleProvider());
+        try (FileInputStream in = new FileInputStream(getPublicKeyringPath(gpgHomeDirectory))) {
+            return new PGPPublicKeyRingCollection(in, new JcaKeyFingerprintCalculator());
+        }
+    }
+
+    /**
+     * Read the GPG v1 secret keyring of a GPG home directory
+     *
+     * @param gpgHomeDirectory GPG home directory where secring.gpg file can be find
+     * @return the secret key rings
+     * @throws FileNotFoundException
+     * @throws IOException
+     * @throws PGPException
+     */
+    static public PGPSecretKeyRingCollection readSecretKeyRings(final String gpgHomeDirectory) throws FileNotFoundException, IOException, PGPException {
+        Security.addProvider(new BouncyCastleProvider());
+        try (FileInputStream in = new FileInputStream(getPrivateKeyringPath(gpgHomeDirectory))) {
+            return new PGPSecretKeyRingCollection(in, new JcaKeyFingerprintCalculator());
+        }
+    }
+
+    /**
+     * @param gpgHomeDirectory GPG home directory
+     * @return the path to the GPG v1 public keyring
+     */
+    static public String getPublicKeyringPath(final String gpgHomeDirectory) {
+        return gpgHomeDirectory + System.getProperty("file.separator") + GPG1_PUBLIC_KEYRING;
+    }
+
+    /**
+     * @param gpgHomeDirectory GPG home directory
+     * @return the path to the GPG v1 secret keyring
+     */
+    static public String getPrivateKeyringPath(final String gpgHomeDirectory) {
+        return gpgHomeDirectory + System.getProperty("file.separator") + GPG1_PRIVATE_KEYRING;
+    }
+
+    /**
+     * Check whether a key matches a key id as set in the fwknoprc file. Long (16 hex digits) and
+     * short (8 hex digits) key ids are supported.
+     *
+     * @param keyId id of the key
+     * @param id key id to look for, with or without the 0x prefix
+     * @return true if the key matches the id
+     */
+    static public boolean matchKeyId(final long keyId, final String id) {
+        String expectedId = id.trim().toUpperCase();
+        if (expectedId.startsWith("0X")) {
+            expectedId = expectedId.substring(2);
+        }
+        return !expectedId.isEmpty() && String.format("%016X", keyId).endsWith(expectedId);
+    }
+
+    /**
+     * Look up a key that can be used to encrypt data for a recipient
+     *
+     * @param pubRings public key rings to look up
+     * @param recipientId key id of the recipient - either the master key or a sub key id
+     * @return the encryption key or null if not found
+     */
+    static public PGPPublicKey findEncryptionKey(final PGPPublicKeyRingCollection pubRings, final String recipientId) {
+        Iterator rIt = pubRings.getKeyRings();
+        while (rIt.hasNext()) {
+            PGPPublicKeyRing keyRing = (PGPPublicKeyRing) rIt.next();
+
+            // Check whether one of the keys of the ring matches the recipient id
+            boolean ringMatches = false;
+            Iterator it = keyRing.getPublicKeys();
+            while (it.hasNext()) {
+                PGPPublicKey key = (PGPPublicKey) it.next();
+                if (matchKeyId(key.getKeyID(), recipientId)) {
+                    if (key.isEncryptionKey()) {
+                        return key;
+                    }
+                    ringMatches = true;
+                }
+            }
+
+            // The id matches a signing only key, use the first encryption sub key of the ring
+            if (ringMatches) {
+                it = keyRing.getPublicKeys();
+                while (it.hasNext()) {
+                    PGPPublicKey key = (PGPPublicKey) it.next();
+                    if (key.isEncryptionKey()) {
+                        return key;
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Look up a secret key that can be used to sign data
+     *
+     * @param secRings secret key rings to look up
+     * @param signerId key id of the signer
+     * @return the signing key or null if not found
+     */
+    static public PGPSecretKey findSigningKey(final PGPSecretKeyRingCollection secRings, final String signerId) {
+        Iterator rIt = secRings.getKeyRings();
+        while (rIt.hasNext()) {
+            PGPSecretKeyRing keyRing = (PGPSecretKeyRing) rIt.next();
+            Iterator it = keyRing.getSecretKeys();
+            while (it.hasNext()) {
+                PGPSecretKey key = (PGPSecretKey) it.next();
+                if (key.isSigningKey() && matchKeyId(key.getKeyID(), signerId)) {
+                    return key;
+                }
+            }
+        }
+
+        return null;
+    }
+
     static public void addPrivateKeyToKeyring(final String gpgHomeDirectory, final String keyringFile) throws FileNotFoundException, IOException, PGPException {
         Security.addProvider(new BouncyCastleProvider());
 
@@ -212,13 +344,16 @@ public class GpgUtils {
         // Create the command as a string
         String gpgCmd = "/usr/bin/gpg --homedir " + gpgHomeDirectory + " --batch --passphrase " + passphrase + " -a --import " + privateKeyFile;
 
-        // Build the process and run it
-        ProcessBuilder pb = new ProcessBuilder(gpgCmd.split(" "));
-        pb = pb.redirectErrorStream(true);
+        // Run the process and wait for the import to complete
         try {
-            Process p = pb.start();
+            ProcessResult result = new ProcessRunner(gpgCmd.split(" "), GPG_IMPORT_TIMEOUT, null).run();
+            if (!result.isSuccess()) {
+                LOGGER.error("Unable to import secret key to gnupg v2 keyring: gpg " + result);
+            }
         } catch (IOException ex) {
             LOGGER.error("Unable to import secret key to gnupg v2 keyring");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
 